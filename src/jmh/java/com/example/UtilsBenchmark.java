@@ -0,0 +1,41 @@
+package com.example;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Unsigned short conversion used by every STUN and beacon parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+    private final short[] values = new short[1024];
+    private int index;
+
+    @Setup
+    public void setup() {
+        // both signs, so the branch is not trivially predicted
+        Random random = new Random(1);
+        for (int i = 0; i < this.values.length; i++) this.values[i] = (short) random.nextInt();
+    }
+
+    @Benchmark
+    public int ushort2int() {
+        return Utils.ushort2int(this.values[this.index++ & (this.values.length - 1)]);
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.network;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loopback relay between two endpoints for the benchmarks that need a real
+ * path: it drops datagrams at random and, with a rate, makes each direction
+ * a bottleneck link like a home router's uplink, where datagrams wait in a
+ * drop-tail queue of the given size and leave at that rate.
+ *
+ * Endpoint a talks to {@link #front()} and endpoint b to {@link #back()},
+ * each as if it were the other endpoint.
+ */
+class Bottleneck implements AutoCloseable {
+    private static final Logger logger = System.getLogger(Bottleneck.class.getName());
+
+    private final DatagramChannel front;
+    private final DatagramChannel back;
+    private final InetSocketAddress a;
+    private final InetSocketAddress b;
+    private final double loss;
+    private final long rate;
+    private final int queue;
+    private final Thread[] threads;
+    final LongAdder dropped = new LongAdder();
+    final LongAdder overflows = new LongAdder();
+
+    private record Packet(ByteBuffer data, DatagramChannel to, InetSocketAddress target, long departure) implements Delayed {
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(this.departure - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(this.departure, ((Packet) other).departure);
+        }
+    }
+
+    /**
+     * @param rate   bytes per second of each direction, 0 for no limit
+     * @param queue  bytes the bottleneck queues before it drops
+     */
+    Bottleneck(int a, int b, double loss, long rate, int queue) throws IOException {
+        this.a = new InetSocketAddress(InetAddress.getLoopbackAddress(), a);
+        this.b = new InetSocketAddress(InetAddress.getLoopbackAddress(), b);
+        this.loss = loss;
+        this.rate = rate;
+        this.queue = queue;
+        this.front = this.open();
+        this.back = this.open();
+        this.threads = new Thread[] {
+            new Thread(() -> this.relay(this.front, this.back, this.b), "Relay(a->b)"),
+            new Thread(() -> this.relay(this.back, this.front, this.a), "Relay(b->a)"),
+        };
+        for (Thread thread: this.threads) thread.start();
+    }
+
+    private DatagramChannel open() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        // only the emulated loss should count, not buffer overruns
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+        return channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    InetSocketAddress front() throws IOException {
+        return (InetSocketAddress) this.front.getLocalAddress();
+    }
+
+    InetSocketAddress back() throws IOException {
+        return (InetSocketAddress) this.back.getLocalAddress();
+    }
+
+    private void relay(DatagramChannel from, DatagramChannel to, InetSocketAddress target) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        DelayQueue<Packet> link = new DelayQueue<>();
+        Thread transmitter = null;
+        if (this.rate > 0) {
+            transmitter = new Thread(() -> this.transmit(link), Thread.currentThread().getName() + " link");
+            transmitter.start();
+        }
+        long free = 0;
+        try {
+            while (true) {
+                from.receive(buffer.clear());
+                if (ThreadLocalRandom.current().nextDouble() < this.loss) {
+                    this.dropped.increment();
+                    continue;
+                }
+                if (this.rate == 0) {
+                    to.send(buffer.flip(), target);
+                    continue;
+                }
+                long now = System.nanoTime();
+                long backlog = Math.max(free - now, 0) * this.rate / 1_000_000_000L;
+                if (backlog + buffer.position() > this.queue) {
+                    this.overflows.increment();
+                    continue;
+                }
+                free = Math.max(free, now) + buffer.position() * 1_000_000_000L / this.rate;
+                ByteBuffer data = ByteBuffer.allocate(buffer.position()).put(buffer.flip()).flip();
+                link.add(new Packet(data, to, target, free));
+            }
+        } catch (ClosedChannelException e) {
+            // closed
+        } catch (IOException e) {
+            logger.log(Level.ERROR, "relay error", e);
+        } finally {
+            if (transmitter != null) transmitter.interrupt();
+        }
+    }
+
+    private void transmit(DelayQueue<Packet> link) {
+        try {
+            while (true) {
+                Packet packet = link.take();
+                packet.to().send(packet.data(), packet.target());
+            }
+        } catch (InterruptedException | ClosedChannelException e) {
+            // closed
+        } catch (IOException e) {
+            logger.log(Level.ERROR, "relay error", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.front.close();
+        this.back.close();
+        try {
+            for (Thread thread: this.threads) thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
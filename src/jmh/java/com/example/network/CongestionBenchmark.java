@@ -0,0 +1,116 @@
+package com.example.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * Bulk reliable transfer through a 10 Mbit/s bottleneck with a 32 KiB
+ * drop-tail queue, like a home router's uplink, with and without congestion
+ * control, while small latency probes share the connection, as chat
+ * messages would.
+ *
+ * Both run together as the "shared" group: {@code bulk} sends one message
+ * per invocation, with two windows outstanding, so its mean time is the
+ * message size over the goodput; {@code probe} sends an unreliable probe
+ * and waits until it arrives. A probe lost at the bottleneck is sampled as
+ * {@link #TIMEOUT}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class CongestionBenchmark {
+    private static final long RATE = 1_250_000;
+    private static final int QUEUE = 32 * 1024;
+    private static final int OUTSTANDING = ReliableChannel.WINDOW * 2;
+    private static final long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(250);
+
+    @Param({"none", "window"})
+    public String congestion;
+
+    @Param({"1024"})
+    public int size;
+
+    private final AtomicLong arrived = new AtomicLong();
+    private final Semaphore outstanding = new Semaphore(OUTSTANDING);
+    private UdpEndpoint a;
+    private UdpEndpoint b;
+    private Bottleneck relay;
+    private UdpConnection sender;
+    private ByteBuffer payload;
+    private long sequence;
+    private volatile Thread waiter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.a = new UdpEndpoint(0, 1);
+        this.b = new UdpEndpoint(0, 1);
+        this.a.start();
+        this.b.start();
+        this.relay = new Bottleneck(this.a.getPort(), this.b.getPort(), 0, RATE, QUEUE);
+        this.sender = this.a.add(this.relay.front())
+            .congestion(this.congestion.equals("window") ? new WindowController() : null);
+        UdpConnection receiver = this.b.add(this.relay.back())
+            .mailbox(0, SerialExecutor.OverflowPolicy.BLOCK)
+            .onReceiveBuffer(data -> {
+                // probes are the only 8 byte messages
+                if (data.remaining() != Long.BYTES) return;
+                this.arrived.accumulateAndGet(data.getLong(data.position()), Math::max);
+                LockSupport.unpark(this.waiter);
+            });
+        this.sender.start();
+        receiver.start();
+        this.payload = ByteBuffer.allocate(this.size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException, IOException {
+        this.outstanding.tryAcquire(OUTSTANDING, 30, TimeUnit.SECONDS);
+        this.relay.close();
+        this.a.stop();
+        this.b.stop();
+    }
+
+    @Benchmark
+    @Group("shared")
+    public void bulk() throws InterruptedException {
+        this.outstanding.acquire();
+        this.sender.sendReliable(this.payload).whenComplete((result, e) -> this.outstanding.release());
+    }
+
+    @Benchmark
+    @Group("shared")
+    public void probe() {
+        long sequence = ++this.sequence;
+        this.sender.offer(ByteBuffer.allocate(Long.BYTES).putLong(0, sequence));
+        this.waiter = Thread.currentThread();
+        long deadline = System.nanoTime() + TIMEOUT;
+        long remaining;
+        while (this.arrived.get() < sequence && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * Large reliable messages between two loopback endpoints through a relay
+ * dropping datagrams, once the path MTU is discovered. Messages per second
+ * times the size is the goodput.
+ *
+ * Run again with {@code -jvmArgsAppend -Dudp.pmtu.max=1200} to compare
+ * against fragments of the base size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class FragmentationBenchmark {
+    @Param({"16384", "262144", "1048576"})
+    public int size;
+
+    @Param({"0", "0.02"})
+    public double loss;
+
+    private UdpEndpoint a;
+    private UdpEndpoint b;
+    private Bottleneck relay;
+    private UdpConnection sender;
+    private ByteBuffer payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        this.a = new UdpEndpoint(0, 1);
+        this.b = new UdpEndpoint(0, 1);
+        this.a.start();
+        this.b.start();
+        this.relay = new Bottleneck(this.a.getPort(), this.b.getPort(), this.loss, 0, 0);
+        this.sender = this.a.add(this.relay.front()).config(100, 3_000);
+        UdpConnection receiver = this.b.add(this.relay.back()).config(100, 3_000)
+            .mailbox(0, SerialExecutor.OverflowPolicy.BLOCK)
+            .onReceiveBuffer(data -> {});
+        this.sender.start();
+        receiver.start();
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (this.sender.getPathMtu() < PathMtu.MAX && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        this.payload = ByteBuffer.allocate(this.size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException, IOException {
+        this.relay.close();
+        this.a.stop();
+        this.b.stop();
+    }
+
+    @Benchmark
+    public void send() throws InterruptedException, ExecutionException, TimeoutException {
+        // one message at a time, a large one fills the send queue
+        this.sender.sendReliable(this.payload.clear()).get(60, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * End to end echo between two endpoints on loopback: the client sends, the
+ * server's listener copies the datagram back, the client's listener counts
+ * it.
+ *
+ * {@code roundTrip} keeps one datagram in flight and is sampled, so JMH
+ * reports latency percentiles; {@code window} pipelines {@link #WINDOW}
+ * datagrams per invocation and reports throughput.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class LoopbackEchoBenchmark {
+    private static final int WINDOW = 32;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    @Param({"64", "1024"})
+    public int size;
+
+    private final AtomicLong echoed = new AtomicLong();
+    private UdpEndpoint server;
+    private UdpEndpoint client;
+    private UdpConnection connection;
+    // offered as duplicates: an echo can arrive before send() has moved the
+    // position of the buffer it was sent from
+    private ByteBuffer[] window;
+    private long sequence;
+    private volatile Thread waiter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.server = new UdpEndpoint(0, 1);
+        this.client = new UdpEndpoint(0, 1);
+        this.server.start();
+        this.client.start();
+        InetSocketAddress serverAddr = new InetSocketAddress(InetAddress.getLoopbackAddress(), this.server.getPort());
+        InetSocketAddress clientAddr = new InetSocketAddress(InetAddress.getLoopbackAddress(), this.client.getPort());
+
+        UdpConnection echo = this.server.add(clientAddr);
+        echo.onReceiveBuffer(data -> {
+            // the receive buffer goes back to the pool once the listener returns
+            echo.offer(ByteBuffer.allocate(data.remaining()).put(data).flip());
+        });
+        this.connection = this.client.add(serverAddr);
+        this.connection.onReceiveBuffer(data -> {
+            this.echoed.accumulateAndGet(data.getLong(data.position()), Math::max);
+            LockSupport.unpark(this.waiter);
+        });
+
+        this.window = new ByteBuffer[WINDOW];
+        for (int i = 0; i < WINDOW; i++) this.window[i] = ByteBuffer.allocateDirect(this.size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException, IOException {
+        this.client.stop();
+        this.server.stop();
+    }
+
+    private void await(long sequence) {
+        // a datagram lost on loopback costs one timeout instead of hanging the run
+        // parks rather than spins, so the I/O threads are not starved on small machines
+        this.waiter = Thread.currentThread();
+        long deadline = System.nanoTime() + TIMEOUT;
+        long remaining;
+        while (this.echoed.get() < sequence && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() {
+        long sequence = ++this.sequence;
+        this.connection.offer(this.window[0].duplicate().putLong(0, sequence));
+        this.await(sequence);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(WINDOW)
+    public void window() {
+        for (ByteBuffer data: this.window) {
+            this.connection.offer(data.duplicate().putLong(0, ++this.sequence));
+        }
+        this.await(this.sequence);
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.network;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * Cost of handing one received datagram to the connection's listeners, as
+ * the receiver thread sees it, without the socket.
+ * A mailbox of 0 runs the listener inline, otherwise it is queued to the
+ * connection's executor (blocking when full, so nothing is dropped).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveDispatchBenchmark {
+    @Param({"0", "64"})
+    public int mailbox;
+
+    @Param({"buffer", "bytes"})
+    public String listener;
+
+    @Param({"512"})
+    public int size;
+
+    private final LongAdder received = new LongAdder();
+    private BufferPool pool;
+    private ByteBuffer payload;
+    private UdpConnection connection;
+
+    @Setup
+    public void setup() {
+        this.pool = new BufferPool(this.size, 4 * Math.max(this.mailbox, 1));
+        this.payload = ByteBuffer.allocate(this.size).put(0, Frame.DATA);
+        this.connection = new UdpConnection(
+            new UdpEndpoint(0, 1),
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 9)
+        ).mailbox(
+            this.mailbox, SerialExecutor.OverflowPolicy.BLOCK
+        );
+        if (this.listener.equals("buffer")) {
+            this.connection.onReceiveBuffer(data -> this.received.add(data.remaining()));
+        } else {
+            this.connection.onReceive(data -> this.received.add(data.length));
+        }
+    }
+
+    @Benchmark
+    public boolean receive() {
+        BufferPool.Pooled pooled = this.pool.acquire();
+        pooled.buffer().put(this.payload.rewind());
+        boolean taken = this.connection.receive(pooled);
+        if (!taken) pooled.release();
+        return taken;
+    }
+}
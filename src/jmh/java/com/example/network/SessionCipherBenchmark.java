@@ -0,0 +1,71 @@
+package com.example.network;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the encryption of a secure connection per datagram, by frame
+ * size: sealing on the sending side, and sealing plus opening in a pooled
+ * receive buffer for the round trip.
+ * Compare against {@link ReceiveDispatchBenchmark} for what it adds to a
+ * receive, and multiply by the packet rate for the CPU it takes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionCipherBenchmark {
+    @Param({"AES/GCM/NoPadding", "ChaCha20-Poly1305"})
+    public String algorithm;
+
+    @Param({"64", "512", "1200", "1447"})
+    public int size;
+
+    private SessionCipher sender;
+    private SessionCipher receiver;
+    private ByteBuffer frame;
+    private ByteBuffer received;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] a = new byte[KeyExchange.KEY];
+        byte[] b = new byte[KeyExchange.KEY];
+        Random random = new Random(1);
+        random.nextBytes(a);
+        random.nextBytes(b);
+        this.sender = new SessionCipher(this.algorithm, a, b);
+        this.receiver = new SessionCipher(this.algorithm, b, a);
+        byte[] data = new byte[this.size];
+        random.nextBytes(data);
+        this.frame = ByteBuffer.allocateDirect(this.size).put(data).flip();
+        this.received = new BufferPool(PathMtu.MAX, 1).acquire().buffer();
+    }
+
+    @Benchmark
+    public ByteBuffer seal() throws Exception {
+        return this.sender.seal(this.frame);
+    }
+
+    @Benchmark
+    public int roundTrip() throws Exception {
+        ByteBuffer sealed = this.sender.seal(this.frame);
+        int size = sealed.remaining();
+        this.received.clear().put(sealed);
+        return this.receiver.open(this.received, size);
+    }
+}
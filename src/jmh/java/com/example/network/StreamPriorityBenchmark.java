@@ -0,0 +1,118 @@
+package com.example.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * Latency of small reliable control messages while a bulk reliable
+ * transfer saturates a 10 Mbit/s bottleneck with a 64 KiB drop-tail queue:
+ * sent on the bulk transfer's stream 1, where they wait behind it, or on
+ * stream 2 of their own with a higher priority.
+ *
+ * Both run together as the "shared" group: {@code bulk} keeps the bulk
+ * stream backlogged, {@code control} sends one control message and waits
+ * until it arrives.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class StreamPriorityBenchmark {
+    private static final long RATE = 1_250_000;
+    private static final int QUEUE = 64 * 1024;
+    // bulk messages queued ahead, more than the window so the stream is backlogged
+    private static final int BACKLOG = ReliableChannel.WINDOW * 8;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    @Param({"1", "2"})
+    public int stream;
+
+    @Param({"1024"})
+    public int size;
+
+    private final AtomicLong arrived = new AtomicLong();
+    private final Semaphore outstanding = new Semaphore(BACKLOG);
+    private UdpEndpoint a;
+    private UdpEndpoint b;
+    private Bottleneck relay;
+    private UdpStream bulk;
+    private UdpStream control;
+    private ByteBuffer payload;
+    private long sequence;
+    private volatile Thread waiter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.a = new UdpEndpoint(0, 1);
+        this.b = new UdpEndpoint(0, 1);
+        this.a.start();
+        this.b.start();
+        this.relay = new Bottleneck(this.a.getPort(), this.b.getPort(), 0, RATE, QUEUE);
+        UdpConnection sender = this.a.add(this.relay.front());
+        UdpConnection receiver = this.b.add(this.relay.back()).mailbox(0, SerialExecutor.OverflowPolicy.BLOCK);
+        for (int id: new int[] { 1, 2 }) {
+            receiver.stream(id).onReceiveBuffer(data -> {
+                // control messages are the only 8 byte messages
+                if (data.remaining() != Long.BYTES) return;
+                this.arrived.accumulateAndGet(data.getLong(data.position()), Math::max);
+                LockSupport.unpark(this.waiter);
+            });
+        }
+        sender.start();
+        receiver.start();
+        this.bulk = sender.stream(1).priority(7);
+        this.control = sender.stream(this.stream).priority(0);
+        this.payload = ByteBuffer.allocate(this.size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException, IOException {
+        this.outstanding.tryAcquire(BACKLOG, 30, TimeUnit.SECONDS);
+        this.relay.close();
+        this.a.stop();
+        this.b.stop();
+    }
+
+    @Benchmark
+    @Group("shared")
+    public void bulk() throws InterruptedException {
+        this.outstanding.acquire();
+        this.bulk.sendReliable(this.payload).whenComplete((result, e) -> this.outstanding.release());
+    }
+
+    @Benchmark
+    @Group("shared")
+    public void control() {
+        long sequence = ++this.sequence;
+        this.control.sendReliable(ByteBuffer.allocate(Long.BYTES).putLong(0, sequence));
+        this.waiter = Thread.currentThread();
+        long deadline = System.nanoTime() + TIMEOUT;
+        long remaining;
+        while (this.arrived.get() < sequence && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.network.global;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.network.global.StunClient.AttributeType;
+import com.example.network.global.StunClient.MappedAddressFamily;
+import com.example.network.global.StunClient.MessageType;
+
+/**
+ * Binding request encoding and binding response decoding, through the
+ * static methods and through a reused {@link StunMessage}, which with
+ * {@code -prof gc} shows no allocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StunClientBenchmark {
+    private static final int COOKIE = 0x2112A442;
+
+    @State(Scope.Thread)
+    public static class Response {
+        @Param({"IPv4", "IPv6"})
+        public MappedAddressFamily family;
+
+        @Param({"true", "false"})
+        public boolean xor;
+
+        private ByteBuffer response;
+
+        @Setup
+        public void setup() {
+            AttributeType attribute = this.xor ? AttributeType.XOR_MAPPED_ADDRESS : AttributeType.MAPPED_ADDRESS;
+            int[] transaction = { 0x01020304, 0x05060708, 0x090a0b0c };
+            byte[] addr = new byte[this.family.length()];
+            for (int i = 0; i < addr.length; i++) addr[i] = (byte) (192 + i);
+            int port = 50000;
+            if (this.xor) {
+                port = port ^ (COOKIE >> 16);
+                ByteBuffer mask = ByteBuffer.allocate(128 / 8).putInt(COOKIE);
+                for (int id: transaction) mask.putInt(id);
+                for (int i = 0; i < addr.length; i++) addr[i] ^= mask.get(i);
+            }
+            int attributeLength = 4 + addr.length; // family(2byte), port(2byte), address
+            this.response = ByteBuffer.allocate(20 + 4 + attributeLength);
+            this.response.putShort(MessageType.BINDING_SUCCESS_RESPONSE.value());
+            this.response.putShort((short) (4 + attributeLength));
+            this.response.putInt(COOKIE);
+            for (int id: transaction) this.response.putInt(id);
+            this.response.putShort(attribute.value());
+            this.response.putShort((short) attributeLength);
+            this.response.putShort(this.family.value());
+            this.response.putShort((short) port);
+            this.response.put(addr);
+            this.response.flip();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Codec {
+        private final StunMessage message = new StunMessage();
+        private final ByteBuffer request = ByteBuffer.allocate(StunMessage.HEADER);
+        private final byte[] address = new byte[16];
+    }
+
+    @Benchmark
+    public ByteBuffer generateRequest() {
+        return StunClient.generateRequest();
+    }
+
+    @Benchmark
+    public InetSocketAddress parseResponse(Response state) throws UnknownHostException {
+        return StunClient.parseResponse(state.response.rewind());
+    }
+
+    @Benchmark
+    public ByteBuffer encode(Codec codec) {
+        codec.message.request(codec.request.clear(), MessageType.BINDING_REQUEST);
+        return codec.request;
+    }
+
+    @Benchmark
+    public int decode(Response state, Codec codec) {
+        StunMessage message = codec.message;
+        if (!message.wrap(state.response.rewind())) return -1;
+        int port = -1;
+        while (message.next()) {
+            AttributeType type = message.attribute();
+            if (type == AttributeType.XOR_MAPPED_ADDRESS || type == AttributeType.MAPPED_ADDRESS) {
+                port = message.port() + message.address(codec.address);
+            }
+        }
+        return port;
+    }
+}
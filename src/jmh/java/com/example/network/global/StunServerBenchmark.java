@@ -0,0 +1,130 @@
+package com.example.network.global;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.network.global.StunClient.MessageType;
+
+/**
+ * Load on {@link StunServer} from clients on loopback, one per benchmark
+ * thread, each from its own socket.
+ *
+ * {@code roundTrip} keeps one binding request outstanding and is sampled,
+ * so JMH reports latency percentiles; {@code window} sends {@link #WINDOW}
+ * requests per invocation and waits for their answers, and reports
+ * requests per second. A request lost on loopback costs one
+ * {@link #TIMEOUT}.
+ */
+@Threads(4)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class StunServerBenchmark {
+    private static final int WINDOW = 8;
+    private static final long TIMEOUT = 100;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"1", "4"})
+        public int shards;
+
+        private StunServer server;
+        private InetSocketAddress address;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            this.server = new StunServer(0, this.shards);
+            this.server.start();
+            this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), this.server.getPort());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException, IOException {
+            this.server.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private final StunMessage message = new StunMessage();
+        private final ByteBuffer request = ByteBuffer.allocate(StunMessage.HEADER);
+        private final ByteBuffer response = ByteBuffer.allocate(1500);
+        private DatagramChannel channel;
+        private Selector selector;
+        private long sequence;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            this.channel = DatagramChannel.open();
+            this.channel.configureBlocking(false);
+            this.channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            this.selector = Selector.open();
+            this.channel.register(this.selector, SelectionKey.OP_READ);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            this.selector.close();
+            this.channel.close();
+        }
+
+        private void send(InetSocketAddress server) throws IOException {
+            this.message.request(this.request.clear(), MessageType.BINDING_REQUEST);
+            // the server echoes the transaction id, and with it the sequence number
+            this.request.putLong(8, ++this.sequence);
+            this.channel.send(this.request.flip(), server);
+        }
+
+        /**
+         * Waits for the answer to the last request sent.
+         */
+        private void await() throws IOException {
+            while (this.selector.select(TIMEOUT) > 0) {
+                this.selector.selectedKeys().clear();
+                while (this.channel.receive(this.response.clear()) != null) {
+                    if (!this.message.wrap(this.response.flip()) || !this.message.is(MessageType.BINDING_SUCCESS_RESPONSE)) continue;
+                    if (this.message.transactionHigh() == this.sequence) return;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip(Server server, Client client) throws IOException {
+        client.send(server.address);
+        client.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(WINDOW)
+    public void window(Server server, Client client) throws IOException {
+        for (int i = 0; i < WINDOW; i++) client.send(server.address);
+        client.await();
+    }
+}
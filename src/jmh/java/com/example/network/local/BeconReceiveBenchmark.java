@@ -0,0 +1,67 @@
+package com.example.network.local;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of handling one becon from another host, as the receiver thread
+ * sees it, without the socket. "enumerate" walks the interfaces for every
+ * becon first, as the own-address check did before the addresses were
+ * cached.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmulticast.port=0")
+public class BeconReceiveBenchmark {
+    @Param({"cached", "enumerate"})
+    public String self;
+
+    private final LongAdder received = new LongAdder();
+    private final ByteBuffer becon = ByteBuffer.allocate(Short.BYTES).putShort(0, (short) 5000);
+    private final InetSocketAddress source = new InetSocketAddress(InetAddress.getLoopbackAddress(), 12345);
+    private BeconManager manager;
+
+    @Setup
+    public void setup() throws IOException {
+        this.manager = new BeconManager(5000).onReceive(host -> this.received.increment());
+    }
+
+    private static boolean enumerate(InetAddress address) throws SocketException {
+        for (NetworkInterface nic: Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            for (InterfaceAddress addr: nic.getInterfaceAddresses()) {
+                if (addr.getAddress().isSiteLocalAddress() && addr.getAddress().getHostAddress().equals(address.getHostAddress())) return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public long receive() throws SocketException {
+        if (this.self.equals("enumerate") && enumerate(this.source.getAddress())) return 0;
+        this.manager.receive(this.becon.rewind(), this.source);
+        return this.received.sum();
+    }
+}
@@ -10,14 +10,19 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 
@@ -41,10 +46,14 @@ import javax.swing.ListSelectionModel;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 
+import com.example.network.Candidate;
+import com.example.network.Peer;
 import com.example.network.UdpConnectionManager;
 import com.example.network.UdpConnectionManager.UdpConnection;
 import com.example.network.UdpConnectionManager.UdpConnection.Status;
-import com.example.network.global.StunClient;
+import com.example.network.global.RendezvousClient;
+import com.example.network.global.StunDiscovery;
+import com.example.network.global.StunTransactionManager;
 import com.example.network.local.BeconManager;
 
 /**
@@ -57,15 +66,22 @@ public class App extends JFrame
 
     private enum NetworkArea {
         LAN,
-        WAN;
+        WAN,
+        WAN6;
     };
 
     private static class UdpConnectionElement {
-        private UdpConnection connection;
+        private Peer peer;
         private String history = "";
         private boolean unread = false;
+        public Peer getPeer() {
+            return peer;
+        }
         public UdpConnection getConnection() {
-            return connection;
+            return peer.getConnection();
+        }
+        public boolean has(InetSocketAddress host) {
+            return peer.has(host);
         }
         public String getHistory() {
             return history;
@@ -73,15 +89,15 @@ public class App extends JFrame
         public void setHistory(String history) {
             this.history = history;
         }
-        public UdpConnectionElement(UdpConnection connection) {
-            this.connection = connection;
+        public UdpConnectionElement(Peer peer) {
+            this.peer = peer;
         }
         public void setUnread(boolean unread) {
             this.unread = unread;
         }
         @Override
         public String toString() {
-            return Utils.format(this.connection.getHost()) + (this.unread ? "(!)" : "");
+            return Utils.format(this.getConnection().getHost()) + (this.unread ? "(!)" : "");
         }
     }
 
@@ -116,10 +132,17 @@ public class App extends JFrame
     private final Charset CHARSET = Charset.forName("utf-8");
     private BeconManager becon;
     private final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private final InetSocketAddress stun = new InetSocketAddress(
-        System.getProperty("stun.server.addr", "stun.l.google.com"),
-        Integer.getInteger("stun.server.port", 19302)
+    // shared with the peers, authenticates their keys; without it only eavesdroppers are kept out
+    private final String psk = System.getProperty("udp.secure.psk");
+    // host:port,... queried together; the first answers the keepalives
+    private final String stun = System.getProperty(
+        "stun.servers",
+        System.getProperty("stun.server.addr", "stun.l.google.com") + ":" + Integer.getInteger("stun.server.port", 19302)
     );
+    // host:port of a rendezvous server, and the ID to register there
+    private final String rendezvousServer = System.getProperty("rendezvous.server");
+    private final String rendezvousId = System.getProperty("rendezvous.id", System.getProperty("user.name"));
+    private RendezvousClient rendezvous;
     private final Thread refresh = new Thread(() -> {
         while (true) {
             Function<NetworkArea, String> format = area -> {
@@ -128,9 +151,11 @@ public class App extends JFrame
                 return value != null ? value : "-";
             }; 
             this.info.setText(String.format(
-                " [Listen] LAN=%s, WAN=%s",
+                " [Listen] LAN=%s, WAN=%s%s%s",
                 format.apply(NetworkArea.LAN),
-                format.apply(NetworkArea.WAN)
+                format.apply(NetworkArea.WAN),
+                this.listen.containsKey(NetworkArea.WAN6) ? ", IPv6=" + format.apply(NetworkArea.WAN6) : "",
+                this.rendezvous != null ? ", ID=" + this.rendezvous.getId() : ""
             ));
             try {
                 Thread.sleep(100);
@@ -265,12 +290,21 @@ public class App extends JFrame
                     @Override
                     public void actionPerformed(ActionEvent e) {
                         if (input.getText() != null && !"".equals(input.getText())) {
-                            String[] parts = input.getText().split(":");
-                            if (parts.length == 2) {
-                                InetSocketAddress addr = new InetSocketAddress(parts[0], Integer.valueOf(parts[1]));
-                                UdpConnection connection = connect(addr);
-                                hosts.addElement(new UdpConnectionElement(connection));
-                                connection.start();
+                            // host:port, or [host]:port for IPv6
+                            String text = input.getText();
+                            int colon = text.lastIndexOf(':');
+                            if (colon < 0 && rendezvous != null) {
+                                // a peer ID, both sides connect once the server answers
+                                rendezvous.connect(input.getText()).whenComplete((host, error) -> {
+                                    if (error != null) logger.log(Level.WARNING, "rendezvous connect error", error);
+                                });
+                                input.setText("");
+                                connectDialog.setVisible(false);
+                            } else if (colon > 0) {
+                                String host = text.substring(0, colon);
+                                if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+                                InetSocketAddress addr = new InetSocketAddress(host, Integer.valueOf(text.substring(colon + 1)));
+                                open(List.of(new Candidate(Candidate.Type.SERVER_REFLEXIVE, addr)));
                                 input.setText("");
                                 connectDialog.setVisible(false);
                             }
@@ -284,6 +318,8 @@ public class App extends JFrame
     private UdpConnection connect(InetSocketAddress host) {
         return UdpConnectionManager.add(
             host
+        ).secure(
+            this.psk != null ? this.psk.getBytes(CHARSET) : null
         ).onConnect(
             () -> {
                 UdpConnectionElement el = this.list.getSelectedValue();
@@ -309,13 +345,13 @@ public class App extends JFrame
                 Enumeration<UdpConnectionElement> enumeration = this.hosts.elements();
                 while (enumeration.hasMoreElements()) {
                     UdpConnectionElement el = enumeration.nextElement();
-                    if (el.getConnection().getHost().equals(host)) {
+                    if (el.has(host)) {
                         el.setHistory(String.format("%s%s -> %s\n", el.getHistory(), now, new String(data, CHARSET)));
                         el.setUnread(true);
                     }
                 }
                 UdpConnectionElement el = this.list.getSelectedValue();
-                if (el != null && el.getConnection().getHost().equals(host)) {
+                if (el != null && el.has(host)) {
                     this.history.setText(el.getHistory());
                     el.setUnread(false);
                 }
@@ -328,59 +364,149 @@ public class App extends JFrame
         long interval = Long.getLong("stun.interval", 3_000);
         long timeout = Long.getLong("stun.timeout", interval * 3);
 
-        UdpConnectionManager.add(
-            stun
-        ).config(
-            interval,
-            timeout
-        ).generator(
-            () -> StunClient.generateRequest()
-        ).onReceive(data -> {
-            // stun response
-            try {
-                InetSocketAddress mapped = StunClient.parseResponse(ByteBuffer.wrap(data));
-                this.listen.put(NetworkArea.WAN, mapped);
-            } catch (UnknownHostException e) {
-                // TODO: Dialog
-                logger.log(Level.ERROR, "invalid stun response", e);
-            }
-        });
         UdpConnectionManager.start();
 
-        this.becon = new BeconManager(
-            UdpConnectionManager.getPort()
-        ).onReceive(
-            host -> {
-                Enumeration<UdpConnectionElement> enumeration = this.hosts.elements();
-                while (enumeration.hasMoreElements()) {
-                    UdpConnectionElement el = enumeration.nextElement();
-                    if (el.getConnection().getHost().equals(host)) {
-                        return;
+        List<InetSocketAddress> servers = StunDiscovery.resolve(stun);
+        if (!servers.isEmpty()) {
+            StunDiscovery discovery = new StunDiscovery(UdpConnectionManager.getDefault(), servers);
+            discovery.discover(StandardProtocolFamily.INET).thenAccept(
+                mapped -> this.listen.put(NetworkArea.WAN, mapped)
+            );
+            discovery.discover(StandardProtocolFamily.INET6).thenAccept(mapped -> {
+                this.listen.put(NetworkArea.WAN6, mapped);
+                try {
+                    if (NetworkInterface.getByInetAddress(mapped.getAddress()) != null) {
+                        logger.log(Level.INFO, "native ipv6, peers can connect to {0} directly", Utils.format(mapped));
                     }
+                } catch (SocketException e) {
+                    // pass
                 }
-                UdpConnection connection = connect(host);
-                hosts.addElement(new UdpConnectionElement(connection));
-                connection.start();
+            });
+            discovery.classify().thenAccept(behavior -> {
+                if (behavior.isSymmetric()) {
+                    logger.log(Level.WARNING, "symmetric nat, peers outside the lan are unlikely to be reachable");
+                }
+            });
+            // every keepalive is a binding request, to a server of each family
+            for (NetworkArea area: List.of(NetworkArea.WAN, NetworkArea.WAN6)) {
+                discovery.getServers().stream().filter(
+                    server -> server.getConnection().getHost().getAddress() instanceof Inet4Address == (area == NetworkArea.WAN)
+                ).findFirst().ifPresent(server -> {
+                    StunTransactionManager keepalive = server.onMapped(
+                        mapped -> this.listen.put(area, mapped)
+                    );
+                    keepalive.getConnection().config(
+                        interval,
+                        timeout
+                    ).start();
+                });
             }
+        }
+
+        if (this.rendezvousServer != null) {
+            int colon = this.rendezvousServer.lastIndexOf(':');
+            // peers are told to punch each other, under the IDs they registered
+            this.rendezvous = new RendezvousClient(
+                UdpConnectionManager.getDefault(),
+                new InetSocketAddress(this.rendezvousServer.substring(0, colon), Integer.valueOf(this.rendezvousServer.substring(colon + 1))),
+                this.rendezvousId
+            ).onPunch(
+                (peer, host) -> this.open(List.of(new Candidate(Candidate.Type.SERVER_REFLEXIVE, host)))
+            );
+            this.rendezvous.getConnection().config(
+                interval,
+                timeout
+            ).start();
+        }
+
+        this.becon = new BeconManager(
+            UdpConnectionManager.getPort()
+        ).candidates(
+            this::gather
+        ).capabilities(
+            BeconManager.CAPABILITY_SECURE | (this.rendezvous != null ? BeconManager.CAPABILITY_RENDEZVOUS : 0)
+        ).onReceiveCandidates(
+            candidates -> this.open(candidates)
+        ).onExpire(
+            host -> this.expire(host)
         );
         this.becon.start();
 
         this.listen.put(NetworkArea.LAN, new InetSocketAddress("0.0.0.0", UdpConnectionManager.getPort()));
     }
 
-    private void sendMessage() {
+    /**
+     * Candidates of this host to announce, the STUN mapped addresses among
+     * them once known.
+     */
+    private List<Candidate> gather() {
         try {
-            UdpConnectionElement el = this.list.getSelectedValue();
-            if (el != null) {
-                el.getConnection().send(ByteBuffer.wrap(message.getText().getBytes(CHARSET)));
-                String now = this.formatter.format(new Date());
-                history.setText(String.format("%s%s <- %s\n", history.getText(), now, message.getText()));
-                message.setText("");
-                el.setHistory(this.history.getText());
+            List<InetSocketAddress> mapped = new ArrayList<>();
+            for (NetworkArea area: List.of(NetworkArea.WAN, NetworkArea.WAN6)) {
+                if (this.listen.containsKey(area)) mapped.add(this.listen.get(area));
+            }
+            return Candidate.gather(UdpConnectionManager.getPort(), mapped);
+        } catch (SocketException e) {
+            logger.log(Level.ERROR, "candidate gather error", e);
+            return List.of();
+        }
+    }
+
+    /**
+     * Adds the candidates to the peer in the list that has any of them,
+     * otherwise to a new one, which checks them all and keeps the fastest.
+     */
+    private synchronized void open(List<Candidate> candidates) {
+        Enumeration<UdpConnectionElement> enumeration = this.hosts.elements();
+        while (enumeration.hasMoreElements()) {
+            UdpConnectionElement el = enumeration.nextElement();
+            if (candidates.stream().anyMatch(candidate -> el.has(candidate.address()))) {
+                el.getPeer().add(candidates);
+                return;
+            }
+        }
+        UdpConnectionElement el = new UdpConnectionElement(new Peer(UdpConnectionManager.getDefault(), this::connect));
+        el.getPeer().onSelect(connection -> {
+            if (this.list.getSelectedValue() == el) {
+                this.message.setEnabled(true);
+                this.send.setEnabled(true);
+            }
+            this.list.repaint();
+        });
+        el.getPeer().add(candidates);
+        hosts.addElement(el);
+    }
+
+    /**
+     * Drops the peer a becon came from once it is gone from the LAN,
+     * unless it is still connected another way.
+     */
+    private synchronized void expire(InetSocketAddress host) {
+        Enumeration<UdpConnectionElement> enumeration = this.hosts.elements();
+        while (enumeration.hasMoreElements()) {
+            UdpConnectionElement el = enumeration.nextElement();
+            if (el.has(host) && !Status.Connected.equals(el.getConnection().getStatus())) {
+                el.getPeer().close();
+                this.hosts.removeElement(el);
+                return;
             }
-        } catch (IOException e) {
-            // TODO: Dialog
-            logger.log(Level.ERROR, "message send error", e);
+        }
+    }
+
+    private void sendMessage() {
+        UdpConnectionElement el = this.list.getSelectedValue();
+        if (el != null) {
+            // chat messages must not get lost or overtake each other
+            el.getConnection().sendReliable(ByteBuffer.wrap(message.getText().getBytes(CHARSET))).whenComplete((result, e) -> {
+                if (e != null) {
+                    // TODO: Dialog
+                    logger.log(Level.ERROR, "message send error", e);
+                }
+            });
+            String now = this.formatter.format(new Date());
+            history.setText(String.format("%s%s <- %s\n", history.getText(), now, message.getText()));
+            message.setText("");
+            el.setHistory(this.history.getText());
         }
     }
 
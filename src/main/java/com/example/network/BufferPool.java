@@ -0,0 +1,66 @@
+package com.example.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of direct buffers reused across receives.
+ *
+ * Each pooled buffer carries a read-only view so that listeners can be
+ * handed the payload without copying or allocating.
+ */
+public class BufferPool {
+    private final int capacity;
+    private final BlockingQueue<Pooled> free;
+
+    public static class Pooled {
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final ByteBuffer view;
+
+        private Pooled(BufferPool pool, int capacity) {
+            this.pool = pool;
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            this.view = this.buffer.asReadOnlyBuffer();
+        }
+
+        public ByteBuffer buffer() {
+            return this.buffer;
+        }
+
+        /**
+         * Read-only view of the buffer's current position and limit.
+         */
+        public ByteBuffer view() {
+            return this.view.limit(this.buffer.limit()).position(this.buffer.position());
+        }
+
+        public void release() {
+            this.pool.release(this);
+        }
+    }
+
+    public BufferPool(int capacity, int size) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity " + capacity);
+        if (size < 1) throw new IllegalArgumentException("size " + size);
+        this.capacity = capacity;
+        this.free = new ArrayBlockingQueue<>(size);
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    public Pooled acquire() {
+        Pooled pooled = this.free.poll();
+        if (pooled == null) pooled = new Pooled(this, this.capacity);
+        pooled.buffer.clear();
+        return pooled;
+    }
+
+    private void release(Pooled pooled) {
+        // drop it when the pool is already full
+        this.free.offer(pooled);
+    }
+}
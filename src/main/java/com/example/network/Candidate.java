@@ -0,0 +1,137 @@
+package com.example.network;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+////////////////////////////////////////////////////////////////////
+// candidate format
+////////////////////////////////////////////////////////////////////
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |     Type      | Family (4|6)  |             Port              |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                 Address (32 or 128 bits)                      |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+/**
+ * Address a peer may be reached at, as in ICE (RFC 8445).
+ *
+ * Every candidate shares the endpoint's one socket, so a candidate pair
+ * is decided by the remote candidate alone and is checked in the order of
+ * its priority.
+ */
+public record Candidate(Type type, InetSocketAddress address) {
+    public enum Type {
+        // an address of one of the peer's interfaces
+        HOST(126),
+        // the peer's address as a STUN server sees it
+        SERVER_REFLEXIVE(100);
+
+        private final int preference;
+
+        private Type(int preference) {
+            this.preference = preference;
+        }
+    }
+
+    // most candidates a list may carry, which also bounds the checks
+    public static final int MAX = 16;
+
+    /**
+     * Highest first.
+     */
+    public static final Comparator<Candidate> PRIORITY = Comparator.comparingLong(Candidate::priority).reversed();
+
+    /**
+     * RFC 8445 section 5.1.2.1, with one component. Among the addresses of
+     * a type, private IPv4 networks come first, as a peer that has one is
+     * most likely on the same LAN, then global IPv6, then the rest.
+     */
+    public long priority() {
+        return ((long) this.type.preference << 24) | ((long) localPreference(this.address.getAddress()) << 8) | 255;
+    }
+
+    private static int localPreference(InetAddress address) {
+        if (address instanceof Inet4Address && address.isSiteLocalAddress()) return 65535;
+        if (address instanceof Inet6Address && !address.isLinkLocalAddress() && !address.isSiteLocalAddress()) return 49151;
+        if (address instanceof Inet4Address) return 32767;
+        return 0;
+    }
+
+    /**
+     * Host candidates of every interface that is up, IPv4 and IPv6, and a
+     * server reflexive one for each mapped address that is not a host
+     * address, highest priority first. Loopback, link-local and multicast
+     * addresses are left out.
+     *
+     * @param mapped  addresses STUN servers reported, of either family
+     */
+    public static List<Candidate> gather(int port, Collection<InetSocketAddress> mapped) throws SocketException {
+        List<Candidate> candidates = new ArrayList<>();
+        for (NetworkInterface nic: Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!nic.isUp() || nic.isLoopback()) continue;
+            for (InterfaceAddress address: nic.getInterfaceAddresses()) {
+                InetAddress ip = address.getAddress();
+                if (ip.isLinkLocalAddress() || ip.isMulticastAddress() || ip.isAnyLocalAddress()) continue;
+                candidates.add(new Candidate(Type.HOST, new InetSocketAddress(ip, port)));
+            }
+        }
+        for (InetSocketAddress address: mapped) {
+            // behind no NAT, as is usual over IPv6, it is a host candidate already
+            if (candidates.stream().noneMatch(c -> c.address().equals(address))) {
+                candidates.add(new Candidate(Type.SERVER_REFLEXIVE, address));
+            }
+        }
+        candidates.sort(PRIORITY);
+        return candidates.size() > MAX ? candidates.subList(0, MAX) : candidates;
+    }
+
+    public ByteBuffer put(ByteBuffer buffer) {
+        byte[] ip = this.address.getAddress().getAddress();
+        return buffer
+            .put((byte) this.type.ordinal())
+            .put((byte) (ip.length == 4 ? 4 : 6))
+            .putShort((short) this.address.getPort())
+            .put(ip);
+    }
+
+    /**
+     * Bytes of the candidate on the wire.
+     */
+    public int size() {
+        return 4 + this.address.getAddress().getAddress().length;
+    }
+
+    /**
+     * Reads a candidate at the buffer's position.
+     *
+     * @return null if it is malformed, the position is then undefined
+     */
+    public static Candidate get(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) return null;
+        int type = buffer.get();
+        int family = buffer.get();
+        int port = buffer.getShort() & 0xffff;
+        byte[] ip = new byte[family == 4 ? 4 : family == 6 ? 16 : 0];
+        if (type < 0 || type >= Type.values().length || ip.length == 0 || buffer.remaining() < ip.length) return null;
+        buffer.get(ip);
+        try {
+            return new Candidate(Type.values()[type], new InetSocketAddress(InetAddress.getByAddress(ip), port));
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.network;
+
+/**
+ * Decides how fast one connection may send.
+ *
+ * The sender thread asks {@link #delay(int, long)} before every queued
+ * datagram and holds the connection back until it returns 0. Keepalives,
+ * probes and ACKs are not paced. The reliable channel keeps at most
+ * {@link #window()} messages in flight and reports what happens to them.
+ *
+ * Methods are called from the sender, receiver and timer threads, so an
+ * implementation must be thread safe. Times are {@link System#nanoTime()}.
+ */
+public interface CongestionController {
+    /**
+     * @param bytes  size of the datagram on the wire
+     * @return nanoseconds to wait before it may be sent, 0 to send it now
+     */
+    long delay(int bytes, long now);
+
+    /**
+     * A datagram that {@link #delay(int, long)} allowed has been sent.
+     */
+    void sent(int bytes, long now);
+
+    /**
+     * Reliable messages allowed in flight.
+     */
+    int window();
+
+    /**
+     * A reliable message was acknowledged.
+     *
+     * @param rtt  round trip in nanoseconds, -1 if it was retransmitted
+     */
+    void acked(int bytes, long rtt, long now);
+
+    /**
+     * A reliable message was lost.
+     *
+     * @param sent  when its lost transmission was sent
+     */
+    void lost(long sent, long now);
+
+    /**
+     * Current pacing rate in bytes per second.
+     */
+    long rate();
+}
@@ -0,0 +1,22 @@
+package com.example.network;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event recorded when the first datagram arrives from a peer, and again
+ * after every timeout.
+ */
+@Name("com.example.network.Connect")
+@Label("UDP Connect")
+@Category({"Network", "UDP"})
+@Description("Peer became reachable")
+class ConnectEvent extends jdk.jfr.Event {
+    @Label("Host")
+    String host;
+
+    @Label("Reconnect")
+    boolean reconnect;
+}
@@ -0,0 +1,105 @@
+package com.example.network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters of one connection.
+ *
+ * Each counter is a {@link LongAdder}: the hot paths only add, and the
+ * threads touching one connection (receiver, sender, timer) rarely contend,
+ * so recording costs about one uncontended CAS.
+ * Keepalives are counted separately and not as packets.
+ */
+public class ConnectionMetrics {
+    final LongAdder packetsIn = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder packetsOut = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder keepalivesIn = new LongAdder();
+    final LongAdder keepalivesOut = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder reconnects = new LongAdder();
+    final LongAdder sendErrors = new LongAdder();
+    final LongAdder drops = new LongAdder();
+    final LongAdder retransmits = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    final LongAdder incomplete = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    volatile long lastReceive = 0;
+
+    /**
+     * Point in time copy of the counters.
+     *
+     * @param host              peer address, null for endpoint totals
+     * @param retransmits       reliable messages sent again
+     * @param duplicates        reliable messages received more than once
+     * @param incomplete        fragmented messages dropped before all parts arrived
+     * @param rejected          datagrams of a secure connection that were forged,
+     *                          replayed or not encrypted
+     * @param sinceLastReceive  milliseconds since anything was received, -1 if never
+     * @param rtt               smoothed round trip time in microseconds, -1 if unknown
+     * @param rate              pacing rate in bytes per second, -1 if not paced
+     */
+    public record Snapshot(
+        String host,
+        long packetsIn,
+        long bytesIn,
+        long packetsOut,
+        long bytesOut,
+        long keepalivesIn,
+        long keepalivesOut,
+        long timeouts,
+        long reconnects,
+        long sendErrors,
+        long drops,
+        long retransmits,
+        long duplicates,
+        long incomplete,
+        long rejected,
+        long sinceLastReceive,
+        long rtt,
+        long rate
+    ) {}
+
+    void add(ConnectionMetrics other) {
+        this.packetsIn.add(other.packetsIn.sum());
+        this.bytesIn.add(other.bytesIn.sum());
+        this.packetsOut.add(other.packetsOut.sum());
+        this.bytesOut.add(other.bytesOut.sum());
+        this.keepalivesIn.add(other.keepalivesIn.sum());
+        this.keepalivesOut.add(other.keepalivesOut.sum());
+        this.timeouts.add(other.timeouts.sum());
+        this.reconnects.add(other.reconnects.sum());
+        this.sendErrors.add(other.sendErrors.sum());
+        this.drops.add(other.drops.sum());
+        this.retransmits.add(other.retransmits.sum());
+        this.duplicates.add(other.duplicates.sum());
+        this.incomplete.add(other.incomplete.sum());
+        this.rejected.add(other.rejected.sum());
+        this.lastReceive = Math.max(this.lastReceive, other.lastReceive);
+    }
+
+    Snapshot snapshot(String host, long rtt, long rate) {
+        long lastReceive = this.lastReceive;
+        return new Snapshot(
+            host,
+            this.packetsIn.sum(),
+            this.bytesIn.sum(),
+            this.packetsOut.sum(),
+            this.bytesOut.sum(),
+            this.keepalivesIn.sum(),
+            this.keepalivesOut.sum(),
+            this.timeouts.sum(),
+            this.reconnects.sum(),
+            this.sendErrors.sum(),
+            this.drops.sum(),
+            this.retransmits.sum(),
+            this.duplicates.sum(),
+            this.incomplete.sum(),
+            this.rejected.sum(),
+            lastReceive != 0 ? System.currentTimeMillis() - lastReceive : -1,
+            rtt,
+            rate
+        );
+    }
+}
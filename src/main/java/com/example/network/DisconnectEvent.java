@@ -0,0 +1,25 @@
+package com.example.network;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event recorded when a connected peer times out or is stopped.
+ */
+@Name("com.example.network.Disconnect")
+@Label("UDP Disconnect")
+@Category({"Network", "UDP"})
+@Description("Peer timed out or was stopped")
+class DisconnectEvent extends jdk.jfr.Event {
+    @Label("Host")
+    String host;
+
+    @Label("Reason")
+    String reason;
+
+    @Label("Since Last Receive")
+    @jdk.jfr.Timespan(jdk.jfr.Timespan.MILLISECONDS)
+    long sinceLastReceive;
+}
@@ -0,0 +1,129 @@
+package com.example.network;
+
+////////////////////////////////////////////////////////////////////
+// frame format
+//   every datagram between two peers starts with a type byte,
+//   an empty datagram is a keepalive of older versions
+////////////////////////////////////////////////////////////////////
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |     Type      |            Payload (variable)                 |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// PING / PONG
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |  Type (1, 2)  |                                               |
+// +-+-+-+-+-+-+-+-+                                               +
+// |           Timestamp (sender's nanoTime, 64 bits)              |
+// +               +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |               |
+// +-+-+-+-+-+-+-+-+
+//
+// RELIABLE / RELIABLE_FRAGMENT
+//   a RELIABLE_FRAGMENT continues in the next sequence number,
+//   the RELIABLE frame after it ends the message
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |  Type (3, 6)  |              Session                          |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |               |              Sequence                         |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |               |            Payload (variable)                 |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// ACK
+//   Cumulative is the next sequence expected, bit i of the SACK bitmap
+//   (least significant bit of each byte first) acknowledges
+//   Cumulative + 1 + i
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |   Type (4)    |              Session                          |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |               |              Cumulative                       |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |               |          SACK bitmap (variable)               |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// FRAGMENT
+//   part of an unreliable message too large for one datagram,
+//   the message is lost if any part is
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |   Type (5)    |              Message ID                       |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |               |            Index              |    Count      |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |               |            Payload (variable)                 |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// MTU_PROBE / MTU_ACK
+//   a probe is padded to the datagram size being tested, the ACK
+//   carries the size received
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |  Type (7, 8)  |              Size                             |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |               |            Padding (variable, probe only)     |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// HANDSHAKE
+//   ephemeral X25519 public key of a secure connection and the peer's
+//   key it answers, zero until known, with an HMAC-SHA256 of both keyed
+//   by the pre-shared key if there is one
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |   Type (9)    |                                               |
+// +-+-+-+-+-+-+-+-+                                               +
+// |                  Public Key (256 bits)                        |
+// +               +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |               |           Peer Key (256 bits)                 |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                    MAC (256 bits, optional)                   |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// STREAM
+//   a DATA, FRAGMENT, RELIABLE, RELIABLE_FRAGMENT or ACK frame of a
+//   stream other than 0; frames of stream 0 go without it
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |   Type (11)   |          Stream ID            | Frame (var.)  |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// SECURE
+//   any of the frames above except HANDSHAKE, encrypted with the
+//   session key; the counter is the nonce and never repeats
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |   Type (10)   |                                               |
+// +-+-+-+-+-+-+-+-+                                               +
+// |                     Counter (64 bits)                         |
+// +               +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |               |       Encrypted Frame (variable)              |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                     Tag (128 bits)                            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+/**
+ * Frame types of the peer to peer protocol.
+ * A PONG echoes the PING it answers unchanged except for the type.
+ */
+final class Frame {
+    static final byte DATA = 0;
+    static final byte PING = 1;
+    static final byte PONG = 2;
+    static final byte RELIABLE = 3;
+    static final byte ACK = 4;
+    static final byte FRAGMENT = 5;
+    static final byte RELIABLE_FRAGMENT = 6;
+    static final byte MTU_PROBE = 7;
+    static final byte MTU_ACK = 8;
+    static final byte HANDSHAKE = 9;
+    static final byte SECURE = 10;
+    static final byte STREAM = 11;
+
+    static final int HEADER = 1;
+    static final int PING_SIZE = HEADER + Long.BYTES;
+    static final int RELIABLE_HEADER = HEADER + 2 * Integer.BYTES;
+    static final int ACK_HEADER = HEADER + 2 * Integer.BYTES;
+    static final int FRAGMENT_HEADER = HEADER + Integer.BYTES + 2 * Short.BYTES;
+    static final int MTU_SIZE = HEADER + Integer.BYTES;
+    static final int SECURE_HEADER = HEADER + Long.BYTES;
+    static final int STREAM_HEADER = HEADER + Short.BYTES;
+
+    private Frame() {
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.network;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Ephemeral X25519 key exchange of a secure connection.
+ *
+ * Both peers send their public key in HANDSHAKE frames, there is no
+ * initiator, and each derives the same pair of session keys from the
+ * shared secret with HKDF-SHA256. A new key pair is made on every start.
+ *
+ * Each HANDSHAKE also carries the peer key it answers, zero until the
+ * sender has heard one. A session is only derived from a HANDSHAKE that
+ * answers the current key pair; any other is answered with a hello, so
+ * one from an earlier connection, made for a key pair that is gone,
+ * starts nothing.
+ *
+ * Without a pre-shared key, this only keeps passive eavesdroppers out:
+ * anyone on the path can swap in their own key. With one, the HANDSHAKE
+ * carries an HMAC of both keys and the pre-shared key is the HKDF salt,
+ * so a peer without it can neither be accepted nor read anything.
+ *
+ * A peer key is only accepted once per key pair, so a replayed HANDSHAKE
+ * cannot restart a session's counters under the same keys.
+ */
+class KeyExchange {
+    static final int KEY = 32;
+    private static final int MAC = 32;
+    // peer restarts remembered before the key pair is replaced
+    private static final int SEEN = 64;
+    private static final byte[] INFO = "java-udp-hole-punching session".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] psk;
+    private final Set<ByteBuffer> seen = new HashSet<>();
+    private KeyPair keys;
+    private byte[] publicKey;
+    // the last peer key heard, zero until then
+    private byte[] peer = new byte[KEY];
+    // a HANDSHAKE for another key pair came since the last hello()
+    private boolean unanswered = false;
+
+    /**
+     * @param psk  pre-shared key, null for none
+     */
+    KeyExchange(byte[] psk) {
+        this.psk = psk != null ? psk.clone() : null;
+        this.generate();
+    }
+
+    private void generate() {
+        try {
+            this.keys = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            // every JDK since 11 has X25519
+            throw new IllegalStateException(e);
+        }
+        this.publicKey = encode(this.keys.getPublic());
+        this.seen.clear();
+    }
+
+    /**
+     * @return a HANDSHAKE frame of the current key pair, answering the last
+     *         peer key heard
+     */
+    synchronized ByteBuffer hello() {
+        this.unanswered = false;
+        ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER + 2 * KEY + (this.psk != null ? MAC : 0));
+        frame.put(Frame.HANDSHAKE).put(this.publicKey).put(this.peer);
+        if (this.psk != null) frame.put(this.mac(this.publicKey, this.peer));
+        return frame.flip();
+    }
+
+    /**
+     * @return true if a HANDSHAKE for another key pair, or none yet, came
+     *         since the last hello, which the peer waits for
+     */
+    synchronized boolean unanswered() {
+        return this.unanswered;
+    }
+
+    /**
+     * Derives the session keys with the peer key of a HANDSHAKE frame that
+     * answers the current key pair.
+     *
+     * @return the new session, null if the frame is invalid, answers
+     *         another key pair or its key was already accepted
+     */
+    synchronized SessionCipher accept(ByteBuffer frame) {
+        if (frame.remaining() != Frame.HEADER + 2 * KEY + (this.psk != null ? MAC : 0)) return null;
+        byte[] peer = new byte[KEY];
+        byte[] answers = new byte[KEY];
+        frame.get(frame.position() + Frame.HEADER, peer);
+        frame.get(frame.position() + Frame.HEADER + KEY, answers);
+        if (this.psk != null) {
+            byte[] mac = new byte[MAC];
+            frame.get(frame.position() + Frame.HEADER + 2 * KEY, mac);
+            if (!MessageDigest.isEqual(mac, this.mac(peer, answers))) return null;
+        }
+        if (Arrays.equals(peer, this.publicKey) || this.seen.contains(ByteBuffer.wrap(peer))) return null;
+        this.peer = peer;
+        if (!Arrays.equals(answers, this.publicKey)) {
+            this.unanswered = true;
+            return null;
+        }
+        if (this.seen.size() >= SEEN) this.generate();
+        try {
+            KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+            agreement.init(this.keys.getPrivate());
+            // rejects keys of small order, which would give a known secret
+            agreement.doPhase(decode(peer), true);
+            byte[] secret = agreement.generateSecret();
+
+            // the same info on both sides: the keys in a fixed order
+            boolean lower = Arrays.compareUnsigned(this.publicKey, peer) < 0;
+            byte[] info = ByteBuffer.allocate(INFO.length + 2 * KEY)
+                .put(INFO)
+                .put(lower ? this.publicKey : peer)
+                .put(lower ? peer : this.publicKey)
+                .array();
+            byte[] keys = hkdf(this.psk != null ? this.psk : new byte[KEY], secret, info, 2 * KEY);
+            byte[] first = Arrays.copyOfRange(keys, 0, KEY);
+            byte[] second = Arrays.copyOfRange(keys, KEY, 2 * KEY);
+            SessionCipher session = new SessionCipher(
+                SessionCipher.ALGORITHM,
+                lower ? first : second,
+                lower ? second : first
+            );
+            this.seen.add(ByteBuffer.wrap(peer));
+            return session;
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private byte[] mac(byte[] publicKey, byte[] peer) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(this.psk, "HmacSHA256"));
+            mac.update(publicKey);
+            return mac.doFinal(peer);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * HKDF (RFC 5869) with HMAC-SHA256.
+     */
+    static byte[] hkdf(byte[] salt, byte[] secret, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] prk = mac.doFinal(secret);
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] okm = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, i = 1; offset < length; offset += block.length, i++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) i);
+            block = mac.doFinal();
+            System.arraycopy(block, 0, okm, offset, Math.min(block.length, length - offset));
+        }
+        return okm;
+    }
+
+    /**
+     * @return the key as 32 little-endian bytes (RFC 7748)
+     */
+    static byte[] encode(PublicKey key) {
+        byte[] u = ((XECPublicKey) key).getU().toByteArray();
+        byte[] encoded = new byte[KEY];
+        for (int i = 0; i < KEY && i < u.length; i++) encoded[i] = u[u.length - 1 - i];
+        return encoded;
+    }
+
+    static PublicKey decode(byte[] encoded) throws GeneralSecurityException {
+        byte[] u = new byte[KEY];
+        for (int i = 0; i < KEY; i++) u[i] = encoded[KEY - 1 - i];
+        // the top bit is ignored
+        u[0] &= 0x7f;
+        return KeyFactory.getInstance("XDH").generatePublic(
+            new XECPublicKeySpec(NamedParameterSpec.X25519, new BigInteger(1, u))
+        );
+    }
+}
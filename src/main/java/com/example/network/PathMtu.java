@@ -0,0 +1,121 @@
+package com.example.network;
+
+/**
+ * Packetization layer path MTU discovery (RFC 8899) of one peer.
+ *
+ * Starts from udp.pmtu.base bytes, which every path is assumed to carry,
+ * and searches up to udp.pmtu.max with padded probes sent with the don't
+ * fragment bit set: the largest size first, since most paths carry it,
+ * then a binary search. A probe lost udp.pmtu.probes times is too large.
+ * The search is repeated every udp.pmtu.interval milliseconds in case the
+ * path changed.
+ *
+ * Sizes are UDP payload bytes, i.e. the MTU minus 28 bytes of IPv4 and
+ * UDP headers, 48 over IPv6, whose paths the search finds smaller.
+ */
+class PathMtu {
+    static final int BASE = Integer.getInteger("udp.pmtu.base", 1200);
+    static final int MAX = Math.max(Integer.getInteger("udp.pmtu.max", 1472), BASE);
+    private static final int PROBES = Integer.getInteger("udp.pmtu.probes", 3);
+    private static final long INTERVAL = Long.getLong("udp.pmtu.interval", 600_000);
+    // search ends once the bounds are this close
+    private static final int RESOLUTION = 8;
+
+    private volatile int size = BASE;
+    // search state
+    private boolean searching = false;
+    private int low = BASE;
+    private int high = MAX;
+    private int candidate = 0;
+    private int attempts = 0;
+    private long deadline = 0;
+
+    /**
+     * Largest datagram known to reach the peer.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Advances the search.
+     *
+     * @param now      milliseconds
+     * @param timeout  milliseconds to wait for a probe's ACK
+     * @return size of the probe to send now, 0 for none
+     */
+    synchronized int probe(long now, long timeout) {
+        if (now < this.deadline) return 0;
+        if (!this.searching) {
+            this.searching = true;
+            this.high = MAX;
+            this.candidate = 0;
+        } else if (this.candidate != 0) {
+            if (this.attempts < PROBES) {
+                this.attempts++;
+                this.deadline = now + timeout;
+                return this.candidate;
+            }
+            this.high = this.candidate - 1;
+        }
+        if (this.high - this.low < RESOLUTION) {
+            this.searching = false;
+            this.candidate = 0;
+            this.deadline = now + INTERVAL;
+            return 0;
+        }
+        this.candidate = this.high == MAX ? MAX : (this.low + this.high + 1) / 2;
+        this.attempts = 1;
+        this.deadline = now + timeout;
+        return this.candidate;
+    }
+
+    /**
+     * When to call {@link #probe(long, long)} next, in milliseconds.
+     */
+    synchronized long deadline() {
+        return this.deadline;
+    }
+
+    /**
+     * The peer received a probe of the given size.
+     *
+     * @return true if the next probe is due right away
+     */
+    synchronized boolean acked(int size) {
+        if (size > this.low && size <= MAX) {
+            this.low = size;
+            this.size = size;
+        }
+        if (this.candidate != 0 && size >= this.candidate) {
+            this.candidate = 0;
+            this.deadline = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The local stack refused a probe of the given size, e.g. it exceeds the
+     * interface MTU.
+     */
+    synchronized void tooBig(int size) {
+        this.high = Math.min(this.high, size - 1);
+        if (size == this.candidate) {
+            this.candidate = 0;
+            this.deadline = 0;
+        }
+    }
+
+    /**
+     * Full sized datagrams stopped getting through: falls back to the base
+     * size and searches again.
+     */
+    synchronized void reset() {
+        this.size = BASE;
+        this.low = BASE;
+        this.searching = false;
+        this.candidate = 0;
+        this.deadline = 0;
+    }
+}
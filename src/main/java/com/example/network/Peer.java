@@ -0,0 +1,214 @@
+package com.example.network;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+import com.example.Utils;
+import com.example.network.UdpConnectionManager.UdpConnection;
+import com.example.network.UdpConnectionManager.UdpConnection.Status;
+
+/**
+ * Remote peer reachable at any of several candidates, such as its LAN
+ * address from a beacon and its WAN address from STUN.
+ *
+ * Connectivity checks run on every candidate at once: each gets a
+ * connection, started udp.ice.pace apart in order of priority, whose
+ * PING keepalives are the checks. The first candidate to answer is
+ * selected right away, so data flows after one round trip on whichever
+ * path answers first; until udp.ice.window after the last candidate was
+ * added, one with a lower RTT takes over. The other connections are then
+ * removed. If the selected connection is lost, the candidates are checked
+ * again.
+ */
+public class Peer {
+    private static final Logger logger = System.getLogger(Peer.class.getName());
+    private static final long PACE = Long.getLong("udp.ice.pace", 20);
+    private static final long WINDOW = Long.getLong("udp.ice.window", 2_000);
+
+    private final UdpEndpoint endpoint;
+    private final Function<InetSocketAddress, UdpConnection> factory;
+    // highest priority first, guarded by this
+    private final List<Candidate> candidates = new ArrayList<>();
+    // connections of the candidates being checked, and the selected one
+    private final Map<InetSocketAddress, UdpConnection> checks = new LinkedHashMap<>();
+    // paced starts of the checks that are not due yet
+    private final Map<UdpConnection, TimingWheel.Timeout> starts = new HashMap<>();
+    private long deadline = 0;
+    private TimingWheel.Timeout timer;
+    private boolean closed = false;
+    private volatile UdpConnection selected;
+    private volatile Consumer<UdpConnection> onSelectEventListener;
+
+    /**
+     * @param factory  adds a connection to the endpoint for an address,
+     *                 with the listeners the application needs; the peer
+     *                 starts and removes it
+     */
+    public Peer(UdpEndpoint endpoint, Function<InetSocketAddress, UdpConnection> factory) {
+        this.endpoint = endpoint;
+        this.factory = factory;
+    }
+
+    /**
+     * Called with the connection whenever another one is selected.
+     */
+    public Peer onSelect(Consumer<UdpConnection> onSelectEventListener) {
+        this.onSelectEventListener = onSelectEventListener;
+        return this;
+    }
+
+    /**
+     * Adds candidates and checks the new ones, up to {@link Candidate#MAX}
+     * in all.
+     *
+     * @return false if all of them were known already
+     */
+    public synchronized boolean add(Collection<Candidate> candidates) {
+        if (this.closed) return false;
+        boolean added = false;
+        for (Candidate candidate: candidates) {
+            if (this.candidates.size() >= Candidate.MAX) break;
+            if (this.has(candidate.address())) continue;
+            this.candidates.add(candidate);
+            added = true;
+        }
+        if (!added) return false;
+        this.candidates.sort(Candidate.PRIORITY);
+        this.check();
+        return true;
+    }
+
+    public synchronized boolean has(InetSocketAddress address) {
+        return this.candidates.stream().anyMatch(candidate -> candidate.address().equals(address));
+    }
+
+    public synchronized List<Candidate> getCandidates() {
+        return List.copyOf(this.candidates);
+    }
+
+    /**
+     * The selected connection, or until one is, that of the candidate with
+     * the highest priority.
+     */
+    public synchronized UdpConnection getConnection() {
+        UdpConnection selected = this.selected;
+        if (selected != null || this.candidates.isEmpty()) return selected;
+        return this.checks.get(this.candidates.get(0).address());
+    }
+
+    /**
+     * The selected connection, null while no candidate has answered.
+     */
+    public UdpConnection getSelected() {
+        return this.selected;
+    }
+
+    /**
+     * Starts checks of the candidates without a connection, and restarts
+     * the window.
+     */
+    private void check() {
+        this.deadline = System.currentTimeMillis() + WINDOW;
+        int started = 0;
+        for (Candidate candidate: this.candidates) {
+            if (this.checks.containsKey(candidate.address())) continue;
+            UdpConnection connection = this.factory.apply(candidate.address());
+            this.checks.put(candidate.address(), connection);
+            // paced as in ICE, highest priority first
+            this.starts.put(connection, UdpEndpoint.timer.schedule(() -> this.start(connection), PACE * started++, TimeUnit.MILLISECONDS));
+        }
+        if (this.timer != null) this.timer.cancel();
+        this.timer = UdpEndpoint.timer.schedule(this::tick, PACE, TimeUnit.MILLISECONDS);
+    }
+
+    private void start(UdpConnection connection) {
+        synchronized (this) {
+            if (this.starts.remove(connection) == null) return;
+        }
+        connection.start();
+    }
+
+    /**
+     * Stops the connection of a check, whether it started yet or not.
+     */
+    private void remove(UdpConnection connection) {
+        TimingWheel.Timeout start = this.starts.remove(connection);
+        if (start != null) start.cancel();
+        this.endpoint.remove(connection.getHost());
+    }
+
+    /**
+     * Selects the working candidate with the lowest RTT, and once the
+     * window is over or every check has answered, removes the others.
+     */
+    private void tick() {
+        UdpConnection best = null;
+        UdpConnection previous;
+        synchronized (this) {
+            if (this.closed) return;
+            Duration lowest = null;
+            boolean pending = false;
+            for (UdpConnection connection: this.checks.values()) {
+                Duration rtt = connection.getRtt();
+                if (connection.getStatus() != Status.Connected || rtt == null) {
+                    pending = true;
+                } else if (lowest == null || rtt.compareTo(lowest) < 0) {
+                    best = connection;
+                    lowest = rtt;
+                }
+            }
+            previous = this.selected;
+            if (best != null) this.selected = best;
+            long now = System.currentTimeMillis();
+            if (best != null && (!pending || now >= this.deadline)) {
+                this.checks.values().removeIf(connection -> {
+                    if (connection == this.selected) return false;
+                    this.remove(connection);
+                    return true;
+                });
+                // from now on only watch the selected one
+                this.timer = UdpEndpoint.timer.schedule(this::watch, WINDOW, TimeUnit.MILLISECONDS);
+            } else {
+                // nothing answers past the window, no need to look as often
+                this.timer = UdpEndpoint.timer.schedule(this::tick, now < this.deadline ? PACE : PACE * 10, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (best != null && best != previous) {
+            logger.log(Level.INFO, "select {0} ({1}us)", Utils.format(best.getHost()), best.getRtt().toNanos() / 1_000);
+            Consumer<UdpConnection> listener = this.onSelectEventListener;
+            if (listener != null) listener.accept(best);
+        }
+    }
+
+    private synchronized void watch() {
+        if (this.closed) return;
+        if (this.selected.getStatus() == Status.Connected) {
+            this.timer = UdpEndpoint.timer.schedule(this::watch, WINDOW, TimeUnit.MILLISECONDS);
+        } else {
+            logger.log(Level.INFO, "lost {0}, checking candidates again", Utils.format(this.selected.getHost()));
+            this.check();
+        }
+    }
+
+    /**
+     * Removes the connections of every candidate.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        if (this.timer != null) this.timer.cancel();
+        for (UdpConnection connection: this.checks.values()) this.remove(connection);
+        this.checks.clear();
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.network;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.example.Utils;
+
+/**
+ * Reassembles unreliable messages from FRAGMENT frames.
+ *
+ * Bounded in memory and time: at most udp.reassembly.messages partial
+ * messages of udp.reassembly.size bytes in total, the oldest are evicted to
+ * make room, and any older than udp.reassembly.timeout milliseconds are
+ * dropped.
+ *
+ * Receiver thread only.
+ */
+class Reassembly {
+    static final int SIZE = Integer.getInteger("udp.reassembly.size", 2 << 20);
+    static final int MESSAGES = Integer.getInteger("udp.reassembly.messages", 64);
+    static final long TIMEOUT = Long.getLong("udp.reassembly.timeout", 3_000);
+
+    private final ConnectionMetrics metrics;
+    // oldest first
+    private final LinkedHashMap<Integer, Partial> partials = new LinkedHashMap<>();
+    private int bytes = 0;
+
+    private static class Partial {
+        private final long started;
+        private final ByteBuffer[] fragments;
+        private int received = 0;
+        private int bytes = 0;
+
+        private Partial(long started, int count) {
+            this.started = started;
+            this.fragments = new ByteBuffer[count];
+        }
+    }
+
+    Reassembly(ConnectionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param frame  FRAGMENT frame
+     * @param now    milliseconds
+     * @return the whole message once its last fragment arrived, else null
+     */
+    ByteBuffer add(ByteBuffer frame, long now) {
+        if (frame.limit() <= Frame.FRAGMENT_HEADER) return null;
+        int id = frame.getInt(Frame.HEADER);
+        int index = Utils.ushort2int(frame.getShort(Frame.HEADER + Integer.BYTES));
+        int count = Utils.ushort2int(frame.getShort(Frame.HEADER + Integer.BYTES + Short.BYTES));
+        int length = frame.limit() - Frame.FRAGMENT_HEADER;
+        if (index >= count || length > SIZE) return null;
+        // all but the last fragment are full sized
+        if (index < count - 1 && (long) (count - 1) * length > UdpEndpoint.MESSAGE_MAX) return null;
+
+        this.expire(now);
+        Partial partial = this.partials.get(id);
+        if (partial == null) {
+            if (this.partials.size() >= MESSAGES) {
+                Iterator<Partial> oldest = this.partials.values().iterator();
+                this.drop(oldest.next());
+                oldest.remove();
+            }
+            partial = new Partial(now, count);
+            this.partials.put(id, partial);
+        } else if (partial.fragments.length != count || partial.fragments[index] != null) {
+            // duplicate, or a reused ID
+            return null;
+        }
+        Iterator<Partial> oldest = this.partials.values().iterator();
+        while (this.bytes + length > SIZE) {
+            Partial evicted = oldest.next();
+            oldest.remove();
+            this.drop(evicted);
+            if (evicted == partial) return null;
+        }
+
+        ByteBuffer fragment = ByteBuffer.allocate(length).put(0, frame, Frame.FRAGMENT_HEADER, length);
+        partial.fragments[index] = fragment;
+        partial.received++;
+        partial.bytes += length;
+        this.bytes += length;
+        if (partial.received < count) return null;
+
+        this.partials.remove(id);
+        this.bytes -= partial.bytes;
+        ByteBuffer message = ByteBuffer.allocate(partial.bytes);
+        for (ByteBuffer part: partial.fragments) message.put(part);
+        return message.flip();
+    }
+
+    private void expire(long now) {
+        Iterator<Partial> oldest = this.partials.values().iterator();
+        while (oldest.hasNext()) {
+            Partial partial = oldest.next();
+            if (now - partial.started < TIMEOUT) break;
+            oldest.remove();
+            this.drop(partial);
+        }
+    }
+
+    private void drop(Partial partial) {
+        this.bytes -= partial.bytes;
+        this.metrics.incomplete.increment();
+    }
+
+    int size() {
+        return this.bytes;
+    }
+}
@@ -0,0 +1,402 @@
+package com.example.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+import com.example.Utils;
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * Reliable, ordered delivery over one stream of a connection.
+ *
+ * Sending side: messages are numbered and kept in a sliding window until
+ * acknowledged. The window is the connection's {@link CongestionController}
+ * window, capped at udp.reliable.window messages. A message is sent again
+ * once a message sent after it has been acknowledged (RACK style, so a
+ * loss is repaired within about one RTT), or when nothing at all is
+ * acknowledged for an RTO.
+ *
+ * Receiving side: every frame is answered with an ACK holding the next
+ * expected sequence number and a bitmap of the messages already held beyond
+ * it. Duplicates are dropped and early messages buffered, so listeners see
+ * reliable messages exactly once and in order.
+ *
+ * Each side numbers its sessions from the clock in milliseconds, one up on
+ * every discard, so a peer that restarts starts a newer session and the
+ * receiving side starts over with it. Frames of an older session, compared
+ * in serial number order, are late duplicates and dropped; after a
+ * reconnect any session is taken.
+ */
+class ReliableChannel {
+    private static final Logger logger = System.getLogger(ReliableChannel.class.getName());
+    static final int WINDOW = Integer.getInteger("udp.reliable.window", 64);
+    // timeouts in a row that suggest the path MTU shrank
+    private static final int BLACK_HOLE = 3;
+
+    private final UdpConnection connection;
+    private final UdpStream stream;
+    // bytes of the STREAM header in front of each frame
+    private final int prefix;
+
+    // sending side, guarded by this
+    private final Message[] window = new Message[WINDOW];
+    private final ArrayDeque<Message> pending = new ArrayDeque<>();
+    private int session = (int) System.currentTimeMillis();
+    private int base = 0;
+    private int next = 0;
+    private long delivered = 0;
+    private int backoff = 0;
+    private TimingWheel.Timeout timer;
+
+    // receiving side, receiver thread only
+    private final ByteBuffer[] reorder = new ByteBuffer[WINDOW];
+    private final boolean[] continued = new boolean[WINDOW];
+    private final ByteBuffer ack;
+    private int peerSession = 0;
+    private boolean synced = false;
+    private int expected = 0;
+    private int buffered = 0;
+    // message being reassembled from RELIABLE_FRAGMENT frames, null if none
+    private ByteBuffer assembly;
+    private boolean oversized = false;
+
+    private static class Message {
+        private final ByteBuffer frame;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private long sent;
+        private int transmissions = 0;
+        private boolean acked = false;
+
+        private Message(ByteBuffer frame) {
+            this.frame = frame;
+        }
+    }
+
+    ReliableChannel(UdpConnection connection, UdpStream stream) {
+        this.connection = connection;
+        this.stream = stream;
+        this.prefix = stream.prefix;
+        this.ack = stream.allocate(Frame.ACK_HEADER + (WINDOW + 7) / 8);
+    }
+
+    private static int slot(int seq) {
+        return Math.floorMod(seq, WINDOW);
+    }
+
+    /**
+     * Queues the data in frames of at most the path MTU, all but the last
+     * of them RELIABLE_FRAGMENT.
+     */
+    CompletableFuture<Void> send(ByteBuffer data) {
+        int remaining = data.remaining();
+        if (remaining > UdpEndpoint.MESSAGE_MAX) {
+            return CompletableFuture.failedFuture(new IOException("message too long"));
+        }
+        int header = this.prefix + Frame.RELIABLE_HEADER;
+        int chunk = this.connection.mtu() - header;
+        int count = Math.max((remaining + chunk - 1) / chunk, 1);
+        Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++) {
+            int offset = data.position() + i * chunk;
+            int length = Math.min(chunk, data.limit() - offset);
+            ByteBuffer frame = this.stream.allocate(Frame.RELIABLE_HEADER + length);
+            frame.put(this.prefix, i < count - 1 ? Frame.RELIABLE_FRAGMENT : Frame.RELIABLE).put(header, data, offset, length);
+            messages[i] = new Message(frame);
+        }
+        synchronized (this) {
+            // a message larger than the queue still goes through on its own
+            if (!this.pending.isEmpty() && this.pending.size() + count > this.stream.capacity()) {
+                return CompletableFuture.failedFuture(new IOException("send queue full"));
+            }
+            for (Message message: messages) this.pending.add(message);
+            this.admit(System.nanoTime());
+        }
+        if (count == 1) return messages[0].future;
+        return CompletableFuture.allOf(Arrays.stream(messages).map(message -> message.future).toArray(CompletableFuture[]::new));
+    }
+
+    private int limit() {
+        CongestionController congestion = this.connection.congestion();
+        return congestion != null ? Math.max(Math.min(congestion.window(), WINDOW), 1) : WINDOW;
+    }
+
+    /**
+     * Moves pending messages into the window while there is room.
+     */
+    private void admit(long now) {
+        int limit = this.limit();
+        while (!this.pending.isEmpty() && this.next - this.base < limit) {
+            Message message = this.pending.poll();
+            int seq = this.next++;
+            message.frame.putInt(this.prefix + Frame.HEADER, this.session).putInt(this.prefix + Frame.HEADER + Integer.BYTES, seq);
+            this.window[slot(seq)] = message;
+            this.transmit(message, now);
+        }
+    }
+
+    private void transmit(Message message, long now) {
+        if (message.transmissions++ > 0) this.connection.metrics().retransmits.increment();
+        message.sent = now;
+        // a duplicate per transmission, the sender thread moves its position
+        this.connection.transmit(this.stream, message.frame.duplicate(), this.prefix + Frame.RELIABLE_HEADER);
+        if (this.timer == null) this.arm();
+    }
+
+    private void arm() {
+        long delay = this.connection.rtt().rto(this.backoff, TimeUnit.MILLISECONDS);
+        this.timer = UdpEndpoint.timer.schedule(this::expire, Math.max(delay, 1), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * RTO backstop for when no ACK comes back at all, e.g. the last
+     * messages of a burst were lost: resends the oldest message.
+     */
+    private synchronized void expire() {
+        this.timer = null;
+        if (this.base == this.next) return;
+        long now = System.nanoTime();
+        long rto = this.connection.rtt().rto(this.backoff, TimeUnit.NANOSECONDS);
+        for (int seq = this.base; seq != this.next; seq++) {
+            Message message = this.window[slot(seq)];
+            if (message.acked) continue;
+            if (now - message.sent >= rto) {
+                this.backoff = Math.min(this.backoff + 1, 16);
+                if (this.backoff == BLACK_HOLE && message.frame.limit() + this.connection.overhead() > PathMtu.BASE) {
+                    // full sized frames may no longer fit the path, new ones
+                    // are cut to the base size until the search is repeated
+                    this.connection.pmtu().reset();
+                }
+                this.lost(message, now);
+                this.transmit(message, now);
+            }
+            break;
+        }
+        if (this.timer == null) this.arm();
+    }
+
+    /**
+     * Handles an ACK frame. Runs on the receiver thread.
+     */
+    synchronized void acked(ByteBuffer frame) {
+        if (frame.limit() < Frame.ACK_HEADER || frame.getInt(Frame.HEADER) != this.session) return;
+        long now = System.nanoTime();
+        int cumulative = frame.getInt(Frame.HEADER + Integer.BYTES);
+        boolean progress = false;
+        if (cumulative - this.base > 0 && cumulative - this.next <= 0) {
+            while (this.base != cumulative) {
+                Message message = this.window[slot(this.base)];
+                if (!message.acked) this.acknowledge(message, now);
+                this.window[slot(this.base++)] = null;
+            }
+            progress = true;
+        }
+        for (int i = Frame.ACK_HEADER; i < frame.limit(); i++) {
+            int bits = frame.get(i) & 0xff;
+            for (int bit = 0; bits != 0; bit++, bits >>>= 1) {
+                if ((bits & 1) == 0) continue;
+                int seq = cumulative + 1 + (i - Frame.ACK_HEADER) * 8 + bit;
+                if (seq - this.base < 0 || seq - this.next >= 0) continue;
+                Message message = this.window[slot(seq)];
+                if (!message.acked) {
+                    this.acknowledge(message, now);
+                    progress = true;
+                }
+            }
+        }
+        if (progress) this.backoff = 0;
+
+        // anything sent well before a message that made it is lost
+        Duration rtt = this.connection.rtt().getRtt();
+        long reordering = rtt != null ? rtt.toNanos() / 4 : 0;
+        for (int seq = this.base; seq != this.next; seq++) {
+            Message message = this.window[slot(seq)];
+            if (!message.acked && this.delivered - message.sent > reordering) {
+                this.lost(message, now);
+                this.transmit(message, now);
+            }
+        }
+        this.admit(now);
+        if (this.base == this.next && this.timer != null) {
+            this.timer.cancel();
+            this.timer = null;
+        }
+    }
+
+    private void acknowledge(Message message, long now) {
+        message.acked = true;
+        // Karn: a retransmitted message gives no usable sample
+        long rtt = message.transmissions == 1 ? now - message.sent : -1;
+        if (rtt >= 0) this.connection.rtt().sample(rtt);
+        CongestionController congestion = this.connection.congestion();
+        if (congestion != null) congestion.acked(message.frame.limit(), rtt, now);
+        if (message.sent - this.delivered > 0) this.delivered = message.sent;
+        message.future.complete(null);
+    }
+
+    private void lost(Message message, long now) {
+        CongestionController congestion = this.connection.congestion();
+        if (congestion != null) congestion.lost(message.sent, now);
+    }
+
+    /**
+     * Handles a RELIABLE or RELIABLE_FRAGMENT frame. Runs on the receiver
+     * thread.
+     *
+     * @return true if a listener took over the buffer
+     */
+    boolean receive(BufferPool.Pooled pooled) {
+        ByteBuffer buffer = pooled.buffer();
+        if (buffer.limit() < Frame.RELIABLE_HEADER) return false;
+        int session = buffer.getInt(Frame.HEADER);
+        int seq = buffer.getInt(Frame.HEADER + Integer.BYTES);
+        if (this.synced && session - this.peerSession < 0) {
+            this.connection.metrics().duplicates.increment();
+            return false;
+        }
+        if (!this.synced || session != this.peerSession) {
+            logger.log(Level.DEBUG, "reliable session {0} from {1}", session, Utils.format(this.connection.getHost()));
+            this.synced = true;
+            this.peerSession = session;
+            this.expected = 0;
+            this.buffered = 0;
+            Arrays.fill(this.reorder, null);
+            this.assembly = null;
+            this.oversized = false;
+        }
+        boolean more = buffer.get(0) == Frame.RELIABLE_FRAGMENT;
+        boolean taken = false;
+        int offset = seq - this.expected;
+        if (offset == 0) {
+            buffer.position(Frame.RELIABLE_HEADER);
+            if (more || this.assembly != null || this.oversized) {
+                this.assemble(buffer, more);
+            } else {
+                taken = this.connection.accept(this.stream, pooled);
+            }
+            this.expected++;
+            ByteBuffer early;
+            while ((early = this.reorder[slot(this.expected)]) != null) {
+                this.reorder[slot(this.expected)] = null;
+                this.buffered--;
+                if (this.continued[slot(this.expected)] || this.assembly != null || this.oversized) {
+                    this.assemble(early, this.continued[slot(this.expected)]);
+                } else {
+                    this.connection.accept(this.stream, early);
+                }
+                this.expected++;
+            }
+        } else if (offset > 0 && offset < WINDOW && this.reorder[slot(seq)] == null) {
+            ByteBuffer copy = ByteBuffer.allocate(buffer.limit() - Frame.RELIABLE_HEADER);
+            copy.put(0, buffer, Frame.RELIABLE_HEADER, copy.capacity());
+            this.reorder[slot(seq)] = copy;
+            this.continued[slot(seq)] = more;
+            this.buffered++;
+        } else {
+            this.connection.metrics().duplicates.increment();
+        }
+        this.sendAck();
+        return taken;
+    }
+
+    /**
+     * Appends the next part of a fragmented message and delivers it after
+     * the last. Messages above udp.message.max are dropped.
+     */
+    private void assemble(ByteBuffer part, boolean more) {
+        ByteBuffer assembly = this.assembly;
+        int needed = (assembly != null ? assembly.position() : 0) + part.remaining();
+        if (needed > UdpEndpoint.MESSAGE_MAX) {
+            this.oversized = true;
+            this.assembly = null;
+        } else if (!this.oversized) {
+            if (assembly == null || assembly.remaining() < part.remaining()) {
+                // grows by doubling, starting at 16 parts
+                int capacity = assembly != null ? assembly.capacity() * 2 : part.remaining() * 16;
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, Math.min(capacity, UdpEndpoint.MESSAGE_MAX)));
+                if (assembly != null) grown.put(assembly.flip());
+                this.assembly = assembly = grown;
+            }
+            assembly.put(part);
+        }
+        if (more) return;
+        if (this.oversized) {
+            logger.log(Level.WARNING, "reliable message from {0} exceeds udp.message.max", Utils.format(this.connection.getHost()));
+            this.connection.metrics().incomplete.increment();
+        } else {
+            this.connection.accept(this.stream, this.assembly.flip());
+        }
+        this.assembly = null;
+        this.oversized = false;
+    }
+
+    private void sendAck() {
+        // after the STREAM header, which stays
+        ByteBuffer ack = this.ack.clear().position(this.prefix);
+        ack.put(Frame.ACK).putInt(this.peerSession).putInt(this.expected);
+        if (this.buffered > 0) {
+            // bit i: expected + 1 + i is held
+            int highest = 0;
+            for (int i = 1; i < WINDOW; i++) {
+                if (this.reorder[slot(this.expected + i)] != null) highest = i;
+            }
+            for (int i = 0; i < highest; i += 8) {
+                int bits = 0;
+                for (int bit = 0; bit < 8 && i + bit < highest; bit++) {
+                    if (this.reorder[slot(this.expected + 1 + i + bit)] != null) bits |= 1 << bit;
+                }
+                ack.put((byte) bits);
+            }
+        }
+        try {
+            this.connection.write(ack.flip());
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.ERROR, "ack send error", e);
+            this.connection.metrics().sendErrors.increment();
+        }
+    }
+
+    /**
+     * Fails everything not yet acknowledged and starts a new session, which
+     * the peer follows.
+     */
+    synchronized void discard(IOException cause) {
+        if (this.timer != null) {
+            this.timer.cancel();
+            this.timer = null;
+        }
+        for (int seq = this.base; seq != this.next; seq++) {
+            Message message = this.window[slot(seq)];
+            if (!message.acked) message.future.completeExceptionally(cause);
+            this.window[slot(seq)] = null;
+        }
+        Message message;
+        while ((message = this.pending.poll()) != null) {
+            message.future.completeExceptionally(cause);
+        }
+        int now = (int) System.currentTimeMillis();
+        this.session = now - this.session > 0 ? now : this.session + 1;
+        this.base = 0;
+        this.next = 0;
+        this.backoff = 0;
+    }
+
+    /**
+     * Takes whatever session comes next, for a peer that reconnected and
+     * may have lost its count. Runs on the receiver thread.
+     */
+    void resync() {
+        this.synced = false;
+    }
+
+    synchronized int inFlight() {
+        return this.next - this.base;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.network;
+
+/**
+ * Sliding window of the SECURE frame counters received (RFC 6479).
+ *
+ * Counters above the highest seen are new, those within {@link #SIZE} below
+ * it are looked up in a bitmap, anything older is rejected. The bitmap is
+ * a ring of words, so sliding it forward clears whole words instead of
+ * shifting bits.
+ *
+ * Receiver thread only.
+ */
+class ReplayWindow {
+    private static final int WORDS = 32;
+    // one word is being reused as the window slides
+    static final int SIZE = (WORDS - 1) * Long.SIZE;
+
+    private final long[] bitmap = new long[WORDS];
+    private long highest = -1;
+
+    /**
+     * @return true if the counter was not seen yet and is recent enough,
+     *         checked before the frame is authenticated
+     */
+    boolean check(long counter) {
+        if (counter < 0) return false;
+        if (counter > this.highest) return true;
+        if (this.highest - counter >= SIZE) return false;
+        // shifts of a long only use the low six bits of the counter
+        return (this.bitmap[word(counter)] & (1L << counter)) == 0;
+    }
+
+    /**
+     * Records a counter once its frame is authenticated.
+     */
+    void update(long counter) {
+        if (counter > this.highest) {
+            long from = (this.highest >> 6) + 1;
+            long to = counter >> 6;
+            for (long word = from; word <= to && word - from < WORDS; word++) {
+                this.bitmap[word(word << 6)] = 0;
+            }
+            this.highest = counter;
+        }
+        this.bitmap[word(counter)] |= 1L << counter;
+    }
+
+    private static int word(long counter) {
+        return (int) (counter >>> 6) & (WORDS - 1);
+    }
+}
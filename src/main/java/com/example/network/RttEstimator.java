@@ -0,0 +1,64 @@
+package com.example.network;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smoothed round trip time and retransmission timeout of one peer, as in
+ * RFC 6298, fed by PING/PONG probes.
+ *
+ * The RTO bounds are the udp.rto.min and udp.rto.max system properties in
+ * milliseconds. The minimum defaults to 10 ms instead of the RFC's 1 s so
+ * that LAN peers are detected as lost quickly.
+ */
+public class RttEstimator {
+    private static final long GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MIN = TimeUnit.MILLISECONDS.toNanos(Long.getLong("udp.rto.min", 10));
+    private static final long MAX = TimeUnit.MILLISECONDS.toNanos(Long.getLong("udp.rto.max", 60_000));
+    private static final long INITIAL = TimeUnit.MILLISECONDS.toNanos(Long.getLong("udp.rto.initial", 1_000));
+
+    private long srtt = -1;
+    private long rttvar = 0;
+    private volatile long rto = INITIAL;
+    private volatile long latest = -1;
+
+    synchronized void sample(long rtt) {
+        if (rtt < 0) return;
+        if (this.srtt < 0) {
+            this.srtt = rtt;
+            this.rttvar = rtt / 2;
+        } else {
+            // beta = 1/4, alpha = 1/8
+            this.rttvar = this.rttvar - (this.rttvar >> 2) + (Math.abs(this.srtt - rtt) >> 2);
+            this.srtt = this.srtt - (this.srtt >> 3) + (rtt >> 3);
+        }
+        this.rto = Math.min(Math.max(this.srtt + Math.max(GRANULARITY, 4 * this.rttvar), MIN), MAX);
+        this.latest = this.srtt;
+    }
+
+    /**
+     * Smoothed round trip time, null until the first sample.
+     */
+    public Duration getRtt() {
+        long srtt = this.latest;
+        return srtt >= 0 ? Duration.ofNanos(srtt) : null;
+    }
+
+    public synchronized Duration getRttVariance() {
+        return this.srtt >= 0 ? Duration.ofNanos(this.rttvar) : null;
+    }
+
+    public Duration getRto() {
+        return Duration.ofNanos(this.rto);
+    }
+
+    /**
+     * Retransmission timeout after the given number of unanswered probes,
+     * doubled for each one.
+     */
+    long rto(int retries, TimeUnit unit) {
+        long rto = this.rto;
+        for (int i = 0; i < retries && rto < MAX; i++) rto <<= 1;
+        return unit.convert(Math.min(rto, MAX), TimeUnit.NANOSECONDS);
+    }
+}
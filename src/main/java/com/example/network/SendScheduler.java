@@ -0,0 +1,100 @@
+package com.example.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.example.network.UdpEndpoint.Outbound;
+
+/**
+ * Send queue of a connection, one queue per {@link UdpStream}.
+ *
+ * Picks the next frame by strict priority, so frames of a priority 0 stream
+ * go out ahead of anything already queued on lower ones, and by deficit
+ * round robin (Shreedhar and Varghese) among the streams of one priority:
+ * each round a stream may send its weight times {@link #QUANTUM} bytes,
+ * so bandwidth is shared by weight whatever the frame sizes.
+ *
+ * Any thread offers, the sender thread peeks and polls.
+ */
+class SendScheduler {
+    static final int PRIORITIES = 8;
+    // bytes per round and unit of weight, about one datagram
+    static final int QUANTUM = 1_500;
+
+    // streams with frames queued, by priority
+    private final List<ArrayDeque<UdpStream>> levels = new ArrayList<>(PRIORITIES);
+    // stream of the frame peek() returned, which poll() takes, and its
+    // size then, as the sender may have consumed the buffer by poll()
+    private UdpStream current;
+    private int currentSize;
+    private int size = 0;
+
+    SendScheduler() {
+        for (int i = 0; i < PRIORITIES; i++) this.levels.add(new ArrayDeque<>());
+    }
+
+    /**
+     * @return false if the stream's queue is full
+     */
+    synchronized boolean offer(UdpStream stream, Outbound item) {
+        if (stream.queue.size() >= stream.capacity()) return false;
+        stream.queue.add(item);
+        this.size++;
+        if (!stream.scheduled) {
+            stream.scheduled = true;
+            stream.level = stream.priority();
+            stream.deficit = 0;
+            this.levels.get(stream.level).add(stream);
+        }
+        return true;
+    }
+
+    synchronized int remainingCapacity(UdpStream stream) {
+        return stream.capacity() - stream.queue.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * @return the next frame to send, null if there is none
+     */
+    synchronized Outbound peek() {
+        for (ArrayDeque<UdpStream> level: this.levels) {
+            UdpStream stream;
+            while ((stream = level.peek()) != null) {
+                Outbound head = stream.queue.peek();
+                if (stream.deficit >= head.data().remaining()) {
+                    this.current = stream;
+                    this.currentSize = head.data().remaining();
+                    return head;
+                }
+                // its turn is over, back of the line with the next round's share
+                stream.deficit += QUANTUM * stream.weight();
+                level.add(level.poll());
+            }
+        }
+        this.current = null;
+        return null;
+    }
+
+    /**
+     * Removes the frame the last {@link #peek()} returned, even if frames of
+     * a higher priority were offered since.
+     */
+    synchronized Outbound poll() {
+        if (this.current == null && this.peek() == null) return null;
+        UdpStream stream = this.current;
+        this.current = null;
+        Outbound item = stream.queue.poll();
+        stream.deficit -= this.currentSize;
+        this.size--;
+        if (stream.queue.isEmpty()) {
+            this.levels.get(stream.level).remove(stream);
+            stream.scheduled = false;
+        }
+        return item;
+    }
+}
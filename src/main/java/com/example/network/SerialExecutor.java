@@ -0,0 +1,152 @@
+package com.example.network;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+/**
+ * Runs tasks one at a time, in submission order, on virtual threads.
+ *
+ * The mailbox is bounded; what happens when it is full is decided by the
+ * {@link OverflowPolicy}. Tasks given to {@link #executeUnbounded} do not
+ * count towards the capacity and are never dropped nor block, for events
+ * such as a disconnect that must not be lost. A task that throws is logged
+ * and the next one runs.
+ */
+public class SerialExecutor implements Executor {
+    private static final Logger logger = System.getLogger(SerialExecutor.class.getName());
+    private final String name;
+    private final BlockingQueue<Runnable> mailbox = new LinkedBlockingQueue<>();
+    // free room in the mailbox, for the tasks that count towards it
+    private final Semaphore room;
+    private final OverflowPolicy policy;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong dropped = new AtomicLong();
+
+    public enum OverflowPolicy {
+        /** Drop the task being submitted. */
+        DROP_NEWEST,
+        /** Drop the oldest queued task to make room. */
+        DROP_OLDEST,
+        /**
+         * Block the submitting thread until there is room. For a connection
+         * that is the endpoint's receiver thread, so one slow listener holds
+         * up every connection of the shard; meant for a single peer, such as
+         * in tests, and not accepted as the udp.mailbox.policy default.
+         */
+        BLOCK;
+    }
+
+    private record Unbounded(Runnable task) implements Runnable {
+        @Override
+        public void run() {
+            this.task.run();
+        }
+    }
+
+    /**
+     * Task holding resources that must be released if it is dropped.
+     */
+    public interface Discardable extends Runnable {
+        void discard();
+    }
+
+    public SerialExecutor(String name, int capacity, OverflowPolicy policy) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity " + capacity);
+        if (policy == null) throw new IllegalArgumentException("no overflow policy");
+        this.name = name;
+        this.room = new Semaphore(capacity);
+        this.policy = policy;
+    }
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    public int getQueued() {
+        return this.mailbox.size();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!this.room.tryAcquire()) {
+            switch (this.policy) {
+                case DROP_NEWEST:
+                    this.drop(task);
+                    return;
+                case DROP_OLDEST:
+                    // the room of the dropped task is taken over
+                    while (!this.dropOldest() && !this.room.tryAcquire()) Thread.onSpinWait();
+                    break;
+                case BLOCK:
+                    try {
+                        this.room.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        this.drop(task);
+                        return;
+                    }
+                    break;
+            }
+        }
+        this.mailbox.add(task);
+        this.run();
+    }
+
+    /**
+     * Queues the task whatever the capacity and policy.
+     */
+    public void executeUnbounded(Runnable task) {
+        this.mailbox.add(new Unbounded(task));
+        this.run();
+    }
+
+    /**
+     * @return false if there was no task to drop
+     */
+    private boolean dropOldest() {
+        Iterator<Runnable> iterator = this.mailbox.iterator();
+        while (iterator.hasNext()) {
+            Runnable oldest = iterator.next();
+            if (oldest instanceof Unbounded || !this.mailbox.remove(oldest)) continue;
+            this.drop(oldest);
+            return true;
+        }
+        return false;
+    }
+
+    private void run() {
+        if (this.running.compareAndSet(false, true)) {
+            Thread.ofVirtual().name(this.name).start(this::drain);
+        }
+    }
+
+    private void drop(Runnable task) {
+        this.dropped.incrementAndGet();
+        if (task instanceof Discardable discardable) discardable.discard();
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            while ((task = this.mailbox.poll()) != null) {
+                if (!(task instanceof Unbounded)) this.room.release();
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.log(Level.ERROR, "listener error", e);
+                }
+            }
+            this.running.set(false);
+            // a task submitted between the last poll and the reset needs a runner
+            if (this.mailbox.isEmpty() || !this.running.compareAndSet(false, true)) return;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption of one session, a key per direction.
+ *
+ * Frames are sealed into SECURE frames with AES-GCM, or with
+ * ChaCha20-Poly1305 if udp.secure.cipher says so, for CPUs without AES
+ * instructions; on the others the JDK's ChaCha20-Poly1305 takes several
+ * times as long, mostly to initialize per frame. The 64-bit counter of
+ * each frame is its nonce, so a key never encrypts two frames with the
+ * same one, and the receiver rejects any counter it has seen through a
+ * {@link ReplayWindow}.
+ *
+ * The ciphers and buffers are allocated once per session. The buffers are
+ * heap arrays and frames are encrypted in place in them: the JDK ciphers
+ * copy direct buffers through temporary arrays, which costs more than the
+ * one copy in and out here.
+ */
+class SessionCipher {
+    static final String ALGORITHM = System.getProperty("udp.secure.cipher", "AES/GCM/NoPadding");
+    static final int TAG = 16;
+    // added to every frame
+    static final int OVERHEAD = Frame.SECURE_HEADER + TAG;
+    private static final int NONCE = 12;
+
+    private final boolean gcm;
+    // sending side, guarded by this
+    private final Cipher sealer;
+    private final SecretKey sendKey;
+    private final byte[] sendNonce = new byte[NONCE];
+    private final ByteBuffer sealed = ByteBuffer.allocate(PathMtu.MAX);
+    private long counter = 0;
+    // receiving side, receiver thread only
+    private final Cipher opener;
+    private final SecretKey receiveKey;
+    private final byte[] receiveNonce = new byte[NONCE];
+    private final ReplayWindow replay = new ReplayWindow();
+    // grows if the peer's frames are larger than udp.pmtu.max
+    private byte[] opened = new byte[PathMtu.MAX];
+
+    /**
+     * @param sendKey     256-bit key of frames to the peer
+     * @param receiveKey  256-bit key of frames from the peer
+     */
+    SessionCipher(String algorithm, byte[] sendKey, byte[] receiveKey) throws GeneralSecurityException {
+        this.gcm = algorithm.startsWith("AES");
+        String key = this.gcm ? "AES" : "ChaCha20";
+        this.sealer = Cipher.getInstance(algorithm);
+        this.opener = Cipher.getInstance(algorithm);
+        this.sendKey = new SecretKeySpec(sendKey, key);
+        this.receiveKey = new SecretKeySpec(receiveKey, key);
+    }
+
+    private AlgorithmParameterSpec nonce(byte[] nonce, long counter) {
+        for (int i = 0; i < Long.BYTES; i++) nonce[NONCE - 1 - i] = (byte) (counter >>> (i * 8));
+        return this.gcm ? new GCMParameterSpec(TAG * 8, nonce) : new IvParameterSpec(nonce);
+    }
+
+    /**
+     * Seals the frame between its position and limit, which are left as
+     * they are.
+     *
+     * @return the SECURE frame, valid until the next call; callers
+     *         synchronize on this
+     */
+    ByteBuffer seal(ByteBuffer frame) throws GeneralSecurityException {
+        int length = frame.remaining();
+        ByteBuffer sealed = this.sealed.clear();
+        if (length + OVERHEAD > sealed.capacity()) {
+            throw new IllegalArgumentException("frame too long");
+        }
+        long counter = this.counter++;
+        sealed.put(0, Frame.SECURE).putLong(Frame.HEADER, counter).put(Frame.SECURE_HEADER, frame, frame.position(), length);
+        this.sealer.init(Cipher.ENCRYPT_MODE, this.sendKey, this.nonce(this.sendNonce, counter));
+        byte[] array = sealed.array();
+        int written = this.sealer.doFinal(array, Frame.SECURE_HEADER, length, array, Frame.SECURE_HEADER);
+        return sealed.limit(Frame.SECURE_HEADER + written);
+    }
+
+    /**
+     * Seals the frame and sends it.
+     *
+     * @return 0 if the socket send buffer is full
+     */
+    synchronized int send(DatagramChannel channel, ByteBuffer frame, InetSocketAddress target) throws IOException {
+        try {
+            return channel.send(this.seal(frame), target);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Opens a SECURE frame: the frame inside replaces it at the start of
+     * the buffer, whose position and limit are left as they are. Runs on
+     * the receiver thread.
+     *
+     * @param size  bytes received into the buffer
+     * @return length of the frame inside, -1 if it is forged, corrupt or
+     *         replayed
+     */
+    int open(ByteBuffer buffer, int size) {
+        if (size < OVERHEAD) return -1;
+        long counter = buffer.getLong(Frame.HEADER);
+        if (!this.replay.check(counter)) return -1;
+        int length = size - Frame.SECURE_HEADER;
+        if (length > this.opened.length) this.opened = new byte[length];
+        byte[] opened = this.opened;
+        buffer.get(Frame.SECURE_HEADER, opened, 0, length);
+        try {
+            this.opener.init(Cipher.DECRYPT_MODE, this.receiveKey, this.nonce(this.receiveNonce, counter));
+            int written = this.opener.doFinal(opened, 0, length, opened, 0);
+            buffer.put(0, opened, 0, written);
+            this.replay.update(counter);
+            return written;
+        } catch (GeneralSecurityException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.network;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+/**
+ * Hashed timing wheel running every timer on a single thread.
+ *
+ * Insert and cancel are O(1): callers only enqueue, the worker thread links
+ * timers into their bucket and unlinks cancelled ones on the next tick.
+ * The worker parks while no timer is pending. Tasks run on the worker
+ * thread and must not block.
+ */
+public class TimingWheel {
+    private static final Logger logger = System.getLogger(TimingWheel.class.getName());
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final String name;
+    private final long tick;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final long origin = System.nanoTime();
+    private volatile Thread worker;
+    private long ticks = 0;
+
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public boolean cancel() {
+            if (!this.state.compareAndSet(INIT, CANCELLED)) return false;
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return this.state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return this.state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            try {
+                this.task.run();
+            } catch (Throwable e) {
+                logger.log(Level.ERROR, "timer task error", e);
+            }
+        }
+    }
+
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (this.head == null) {
+                this.head = this.tail = timeout;
+            } else {
+                this.tail.next = timeout;
+                timeout.prev = this.tail;
+                this.tail = timeout;
+            }
+        }
+
+        private Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) timeout.prev.next = next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev;
+            if (timeout == this.head) this.head = next;
+            if (timeout == this.tail) this.tail = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+    }
+
+    public TimingWheel(String name, long tick, TimeUnit unit, int size) {
+        if (tick < 1) throw new IllegalArgumentException("tick " + tick);
+        if (size < 1) throw new IllegalArgumentException("size " + size);
+        int length = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        this.name = name;
+        this.tick = Math.max(unit.toNanos(tick), 1);
+        this.wheel = new Bucket[length];
+        this.mask = length - 1;
+        for (int i = 0; i < length; i++) this.wheel[i] = new Bucket();
+    }
+
+    public int size() {
+        return this.count.get();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - this.origin + Math.max(unit.toNanos(delay), 0));
+        this.count.incrementAndGet();
+        this.pending.add(timeout);
+        this.wakeup();
+        return timeout;
+    }
+
+    private void wakeup() {
+        Thread thread = this.worker;
+        if (thread == null) {
+            synchronized (this) {
+                if (this.worker == null) {
+                    thread = new Thread(this::run, this.name);
+                    thread.setDaemon(true);
+                    this.worker = thread;
+                    thread.start();
+                    return;
+                }
+                thread = this.worker;
+            }
+        }
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (true) {
+            this.transferCancelled();
+            this.transferPending();
+            if (this.count.get() == 0) {
+                // nothing to do, sleep until the next schedule()
+                LockSupport.park(this);
+                this.ticks = Math.max(this.ticks, (System.nanoTime() - this.origin) / this.tick);
+                continue;
+            }
+            long deadline = (this.ticks + 1) * this.tick;
+            long sleep = deadline - (System.nanoTime() - this.origin);
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            this.expire(this.wheel[(int) (this.ticks & this.mask)]);
+            this.ticks++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = this.pending.poll()) != null) {
+            if (timeout.state.get() == CANCELLED) continue;
+            long calculated = timeout.deadline / this.tick;
+            timeout.rounds = (calculated - this.ticks) / this.wheel.length;
+            this.wheel[(int) (Math.max(calculated, this.ticks) & this.mask)].add(timeout);
+        }
+    }
+
+    private void transferCancelled() {
+        Timeout timeout;
+        while ((timeout = this.cancelled.poll()) != null) {
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+            this.count.decrementAndGet();
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            if (timeout.rounds <= 0) {
+                Timeout next = bucket.remove(timeout);
+                if (timeout.state.compareAndSet(INIT, EXPIRED)) {
+                    this.count.decrementAndGet();
+                    timeout.expire();
+                }
+                timeout = next;
+            } else {
+                timeout.rounds--;
+                timeout = timeout.next;
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.network;
+
+/**
+ * Token bucket pacer. Tokens are bytes, refilled at the rate up to the
+ * burst size. A datagram larger than the burst goes out once the bucket is
+ * full and leaves it in debt, so any size eventually passes.
+ *
+ * Not thread safe.
+ */
+class TokenBucket {
+    private long rate;
+    private final long minBurst;
+    private long burst;
+    private double tokens;
+    private long last;
+
+    /**
+     * @param rate      bytes per second
+     * @param minBurst  bytes, the burst grows with the rate to 2 ms worth
+     */
+    TokenBucket(long rate, long minBurst) {
+        // the rate is clamped to 1 byte per second
+        if (minBurst < 1) throw new IllegalArgumentException("burst " + minBurst);
+        this.minBurst = minBurst;
+        this.rate(rate);
+        this.tokens = this.burst;
+        this.last = System.nanoTime();
+    }
+
+    long rate() {
+        return this.rate;
+    }
+
+    void rate(long rate) {
+        this.rate = Math.max(rate, 1);
+        // the timer ticks every millisecond, so a smaller bucket could not reach the rate
+        this.burst = Math.max(this.minBurst, this.rate / 500);
+    }
+
+    long delay(int bytes, long now) {
+        this.tokens = Math.min(this.burst, this.tokens + (now - this.last) * (double) this.rate / 1e9);
+        this.last = now;
+        double needed = Math.min(bytes, this.burst) - this.tokens;
+        return needed <= 0 ? 0 : (long) Math.ceil(needed * 1e9 / this.rate);
+    }
+
+    void take(int bytes) {
+        this.tokens -= bytes;
+    }
+}
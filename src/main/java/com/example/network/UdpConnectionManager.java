@@ -1,14 +1,19 @@
 package com.example.network;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -16,31 +21,70 @@ import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 
 import com.example.Utils;
+import com.example.network.UdpEndpoint.Outbound;
 
 /**
  * UDP hole punching connection manager.
+ *
+ * Static facade over a default {@link UdpEndpoint}, configured by the
+ * udp.port and udp.shards system properties.
  */
 public class UdpConnectionManager {
-    private static final Logger logger = System.getLogger(UdpConnectionManager.class.getName());
-    private static final int USHORT_MAX_VALUE = (1 << 16) - 1;
-    private static DatagramChannel channel;
-    private static Thread receiver;
-    private static boolean active = false;
-    private static Map<InetSocketAddress, UdpConnection> connections = new HashMap<>();
-
-    public static class UdpConnection {
+    private static final UdpEndpoint endpoint = new UdpEndpoint();
+
+    public static final class UdpConnection {
+        private static final int PROBE_RETRIES = Integer.getInteger("udp.probe.retries", 3);
+        // IPv4 and UDP headers, paced along with the payload
+        private static final int UDP_OVERHEAD = 28;
         private final Logger logger = System.getLogger(this.getClass().getName());
-        private boolean active = false;
+        private final UdpEndpoint endpoint;
+        private volatile boolean active = false;
+        // removed from the endpoint, never to start again
+        private boolean closed = false;
         private long interval;
         private long timeout;
-        private long lastReceive = 0;
-        private Thread keepalive;
+        private volatile long lastReceive = 0;
+        private long lastKeepalive = 0;
+        private volatile long lastSend = 0;
+        final SendScheduler outbound = new SendScheduler();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        volatile int shard = -1;
+        private volatile int generation = 0;
+        private TimingWheel.Timeout keepalive;
         private final InetSocketAddress host;
         private Supplier<ByteBuffer> generator = () -> ByteBuffer.allocate(0).flip();
         private Runnable onConnectEventListener;
         private Runnable onDisconnectEventListener;
-        private Consumer<byte[]> onReceiveEventListener;
-        private Status status;
+        private final AtomicReferenceArray<UdpStream> streams = new AtomicReferenceArray<>(UdpStream.STREAMS);
+        private final UdpStream base = new UdpStream(this, 0);
+        private volatile Status status;
+        private SerialExecutor executor;
+        private final ConnectionMetrics metrics = new ConnectionMetrics();
+        private boolean connected = false;
+        private boolean raw = false;
+        private final RttEstimator rtt = new RttEstimator();
+        // probe state, timer thread only
+        private final ByteBuffer probe = ByteBuffer.allocate(Frame.PING_SIZE);
+        private long probeStart = 0;
+        private long probeDeadline = 0;
+        private int retries = 0;
+        private final PathMtu pmtu = new PathMtu();
+        private final AtomicInteger fragmentId = new AtomicInteger();
+        // receiver thread only
+        private Reassembly reassembly;
+        private volatile CongestionController congestion = new WindowController();
+        // held back, by the congestion controller or until the session key
+        // is confirmed, until resume()
+        volatile boolean paced = false;
+        // secure connections only
+        private boolean secure = false;
+        private byte[] psk;
+        private volatile KeyExchange exchange;
+        private volatile SessionCipher session;
+        // a new session while one is confirmed, until a frame sealed with it comes
+        private volatile SessionCipher pending;
+        // the peer has sent something sealed with the session key
+        private volatile boolean confirmed = false;
 
         public enum Status {
             Connecting,
@@ -49,7 +93,14 @@ public class UdpConnectionManager {
         }
 
         public UdpConnection(InetSocketAddress host) {
+            this(UdpConnectionManager.endpoint, host);
+        }
+
+        UdpConnection(UdpEndpoint endpoint, InetSocketAddress host) {
+            this.endpoint = endpoint;
             this.host = host;
+            this.streams.set(0, this.base);
+            this.mailbox(UdpEndpoint.MAILBOX_SIZE, UdpEndpoint.MAILBOX_POLICY);
 
             this.interval = Long.getLong("udp.interval", 1_000);
             this.timeout = Long.getLong("udp.timeout", this.interval * 3);
@@ -70,6 +121,11 @@ public class UdpConnectionManager {
             this.status = status;
         }
 
+        /**
+         * @param interval  milliseconds of silence before a keepalive is sent
+         * @param timeout   milliseconds without receiving before a raw connection
+         *                  is disconnected, other connections derive it from the RTT
+         */
         public UdpConnection config(long interval, long timeout) {
             // TODO: check value
             this.interval = interval;
@@ -77,6 +133,140 @@ public class UdpConnectionManager {
             return this;
         }
 
+        /**
+         * Listeners run one at a time on a virtual thread, in arrival order,
+         * fed through a mailbox of the given capacity. A capacity of 0 runs
+         * them inline on the receiver thread instead. Connect and disconnect
+         * events are queued whatever the capacity; only data is subject to
+         * the policy, and {@link SerialExecutor.OverflowPolicy#BLOCK} makes
+         * the receiver thread wait for this connection's listeners.
+         */
+        public UdpConnection mailbox(int capacity, SerialExecutor.OverflowPolicy policy) {
+            if (capacity < 0) throw new IllegalArgumentException("capacity " + capacity);
+            this.executor = capacity > 0
+                ? new SerialExecutor(String.format("UDP Listener(%s)", Utils.format(this.host)), capacity, policy)
+                : null;
+            return this;
+        }
+
+        public long getDropped() {
+            return this.executor != null ? this.executor.getDropped() : 0;
+        }
+
+        public ConnectionMetrics.Snapshot getMetrics() {
+            Duration rtt = this.rtt.getRtt();
+            CongestionController congestion = this.congestion;
+            return this.metrics.snapshot(
+                Utils.format(this.host),
+                rtt != null ? rtt.toNanos() / 1_000 : -1,
+                congestion != null ? congestion.rate() : -1
+            );
+        }
+
+        /**
+         * Smoothed round trip time, null until the first probe is answered.
+         */
+        public Duration getRtt() {
+            return this.rtt.getRtt();
+        }
+
+        public Duration getRttVariance() {
+            return this.rtt.getRttVariance();
+        }
+
+        /**
+         * Largest datagram, in bytes of UDP payload, known to reach the peer
+         * without IP fragmentation. Larger messages are split into fragments
+         * of this size.
+         */
+        public int getPathMtu() {
+            return this.pmtu.size();
+        }
+
+        PathMtu pmtu() {
+            return this.pmtu;
+        }
+
+        /**
+         * How long an unanswered probe is waited for before it is repeated.
+         * After udp.probe.retries repeats, each waiting twice as long as the
+         * one before, the peer is considered lost.
+         */
+        public Duration getRto() {
+            return this.rtt.getRto();
+        }
+
+        ConnectionMetrics metrics() {
+            return this.metrics;
+        }
+
+        /**
+         * Replaces the congestion controller, null sends as fast as the
+         * socket accepts. Defaults to a {@link WindowController}.
+         */
+        public UdpConnection congestion(CongestionController congestion) {
+            this.congestion = congestion;
+            return this;
+        }
+
+        CongestionController congestion() {
+            return this.congestion;
+        }
+
+        /**
+         * Sends and receives datagrams as they are, for peers that do not speak
+         * this protocol such as a STUN server. Keepalives come from the
+         * generator, the fixed timeout applies and there is no RTT.
+         *
+         * @throws IllegalStateException if the connection is secure
+         */
+        public UdpConnection raw() {
+            if (this.secure) throw new IllegalStateException("secure connection");
+            this.raw = true;
+            return this;
+        }
+
+        /**
+         * Encrypts and authenticates everything sent to and received from
+         * the peer, which has to be secure as well. Keys are agreed with an
+         * ephemeral X25519 exchange on start; nothing but the exchange is
+         * sent or accepted in plaintext, and data waits in the send queue
+         * until the peer has proven it has the session key.
+         *
+         * @param psk  secret both peers were given, which authenticates the
+         *             exchange; null for none, which keeps out eavesdroppers
+         *             but not an attacker on the path
+         * @throws IllegalStateException if the connection is raw
+         */
+        public UdpConnection secure(byte[] psk) {
+            if (this.raw) throw new IllegalStateException("raw connection");
+            if (psk != null && psk.length == 0) throw new IllegalArgumentException("empty pre-shared key");
+            this.secure = true;
+            this.psk = psk != null ? psk.clone() : null;
+            return this;
+        }
+
+        public boolean isSecure() {
+            return this.secure;
+        }
+
+        /**
+         * Bytes each datagram carries on top of its frame.
+         */
+        int overhead() {
+            return this.secure ? SessionCipher.OVERHEAD : 0;
+        }
+
+        /**
+         * Largest frame that fits the path MTU.
+         */
+        int mtu() {
+            return this.pmtu.size() - this.overhead();
+        }
+
+        /**
+         * Keepalive payload of a raw connection.
+         */
         public UdpConnection generator(Supplier<ByteBuffer> generator) {
             this.generator = generator;
             return this;
@@ -93,147 +283,711 @@ public class UdpConnectionManager {
         }
 
         public UdpConnection onReceive(Consumer<byte[]> onReceiveEventListener) {
-            this.onReceiveEventListener = onReceiveEventListener;
+            this.base.onReceive(onReceiveEventListener);
             return this;
         }
 
+        /**
+         * Zero-copy variant of {@link #onReceive(Consumer)}.
+         * The buffer is a read-only view of a pooled buffer and is only valid
+         * until the listener returns.
+         */
+        public UdpConnection onReceiveBuffer(Consumer<ByteBuffer> onReceiveBufferEventListener) {
+            this.base.onReceiveBuffer(onReceiveBufferEventListener);
+            return this;
+        }
+
+        /**
+         * Logical stream of the connection, created on first use on either
+         * side. Stream 0 is the one the connection's own send methods and
+         * listeners use.
+         *
+         * @param id  0 to udp.streams - 1
+         * @throws IllegalStateException if the connection is raw
+         */
+        public UdpStream stream(int id) {
+            if (id < 0 || id >= UdpStream.STREAMS) throw new IllegalArgumentException("stream " + id);
+            if (id != 0 && this.raw) throw new IllegalStateException("raw connection");
+            UdpStream stream = this.streams.get(id);
+            if (stream == null && !this.streams.compareAndSet(id, null, stream = new UdpStream(this, id))) {
+                stream = this.streams.get(id);
+            }
+            return stream;
+        }
+
+        /**
+         * Queues data for the sender thread without blocking.
+         * The buffer must not be modified until it has been sent.
+         * Data larger than the path MTU is copied into fragments, and is lost
+         * as a whole if any fragment is.
+         *
+         * @return false if the send queue is full, the data is larger than
+         *         udp.message.max or the manager is stopped
+         */
+        public boolean offer(ByteBuffer data) {
+            return this.base.offer(data);
+        }
+
+        /**
+         * Queues data for the sender thread and completes once it has been
+         * handed to the socket.
+         * The buffer must not be modified until the future completes.
+         */
+        public CompletableFuture<Void> sendAsync(ByteBuffer data) {
+            return this.base.sendAsync(data);
+        }
+
         public void send(ByteBuffer data) throws IOException {
-            logger.log(Level.INFO, "send data to {0} ({1}bit)", this.host, data.limit());
-            channel.send(data, this.host);
+            try {
+                this.sendAsync(data).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) throw cause;
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("send interrupted");
+            }
         }
 
-        private void receive(ByteBuffer buffer) {
+        /**
+         * Sends data reliably: the peer's listeners receive it exactly once
+         * and in the order of the sendReliable calls, unaffected by the
+         * unreliable sends in between. The data is copied, in fragments of
+         * the path MTU, and the future completes once the peer has
+         * acknowledged all of it.
+         *
+         * Acknowledged data can still be dropped at the peer by a full
+         * listener mailbox, unless that uses {@link SerialExecutor.OverflowPolicy#BLOCK}.
+         *
+         * @throws IllegalStateException if the connection is raw
+         */
+        public CompletableFuture<Void> sendReliable(ByteBuffer data) {
+            return this.base.sendReliable(data);
+        }
+
+        /**
+         * Queues a frame of a reliable channel, which retransmits it if the
+         * queue is full.
+         */
+        void transmit(UdpStream stream, ByteBuffer frame, int header) {
+            this.enqueue(stream, new Outbound(frame, null, header, stream.getId()));
+        }
+
+        UdpEndpoint endpoint() {
+            return this.endpoint;
+        }
+
+        boolean isRaw() {
+            return this.raw;
+        }
+
+        int nextFragmentId() {
+            return this.fragmentId.getAndIncrement();
+        }
+
+        /**
+         * Sends a frame to the peer, sealed if the connection is secure.
+         *
+         * @return 0 if the socket send buffer is full, or the connection is
+         *         secure and has no session key yet
+         */
+        int write(ByteBuffer frame) throws IOException {
+            if (!this.secure) return this.channel().send(frame, this.host);
+            SessionCipher session = this.session;
+            return session != null ? session.send(this.channel(), frame, this.host) : 0;
+        }
+
+        boolean enqueue(UdpStream stream, Outbound item) {
+            if (!this.endpoint.active) return false;
+            if (!this.outbound.offer(stream, item)) return false;
+            if (this.scheduled.compareAndSet(false, true)) this.endpoint.ready.add(this);
+            return true;
+        }
+
+        /**
+         * Sends up to one batch from the queue, as far as the congestion
+         * controller allows. Runs on the sender thread only.
+         *
+         * @return false if the socket send buffer is full
+         */
+        boolean flush() {
+            if (this.paced) return true;
+            if (this.secure && !this.confirmed) {
+                this.paced = true;
+                // unless confirmed meanwhile, the receiver thread resumes it
+                if (!this.confirmed) return true;
+                this.paced = false;
+            }
+            CongestionController congestion = this.congestion;
+            for (int i = 0; i < UdpEndpoint.SEND_BATCH; i++) {
+                Outbound item = this.outbound.peek();
+                if (item == null) break;
+                int size = 0;
+                if (congestion != null) {
+                    size = item.data().remaining() + (this.raw || item.header() > 0 ? 0 : prefix(item) + Frame.HEADER) + this.overhead() + UDP_OVERHEAD;
+                    long delay = congestion.delay(size, System.nanoTime());
+                    if (delay > 0) {
+                        this.paced = true;
+                        UdpEndpoint.timer.schedule(this::resume, delay, TimeUnit.NANOSECONDS);
+                        return true;
+                    }
+                }
+                try {
+                    ByteBuffer data = item.data();
+                    int remaining = data.remaining() - item.header();
+                    if (!this.raw && item.header() == 0) {
+                        // absolute copy, so the item is untouched if the socket is full
+                        ByteBuffer frame = this.endpoint.frame.clear();
+                        int prefix = prefix(item);
+                        if (prefix > 0) frame.put(0, Frame.STREAM).putShort(Frame.HEADER, (short) item.stream());
+                        frame.put(prefix, Frame.DATA).put(prefix + Frame.HEADER, data, data.position(), remaining);
+                        data = frame.limit(prefix + Frame.HEADER + remaining);
+                    }
+                    if (this.write(data) == 0 && data.hasRemaining()) return false;
+                    if (logger.isLoggable(Level.DEBUG)) {
+                        logger.log(Level.DEBUG, "send data to {0} ({1}bit)", Utils.format(this.host), remaining);
+                    }
+                    this.outbound.poll();
+                    if (congestion != null) congestion.sent(size, System.nanoTime());
+                    this.lastSend = System.currentTimeMillis();
+                    this.metrics.packetsOut.increment();
+                    this.metrics.bytesOut.add(remaining);
+                    if (item.future() != null) item.future().complete(null);
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.ERROR, "data send error", e);
+                    this.metrics.sendErrors.increment();
+                    this.outbound.poll();
+                    if (item.future() != null) item.future().completeExceptionally(e);
+                }
+            }
+            return true;
+        }
+
+        private static int prefix(Outbound item) {
+            return item.stream() != 0 ? Frame.STREAM_HEADER : 0;
+        }
+
+        private void resume() {
+            this.paced = false;
+            if (!this.outbound.isEmpty() && this.scheduled.compareAndSet(false, true)) this.endpoint.ready.add(this);
+        }
+
+        DatagramChannel channel() {
+            return this.endpoint.channel(this.shard >= 0 ? this.shard : this.host.hashCode(), this.host);
+        }
+
+        void discard(IOException cause) {
+            Outbound item;
+            while ((item = this.outbound.poll()) != null) {
+                if (item.future() != null) item.future().completeExceptionally(cause);
+            }
+            for (int i = 0; i < this.streams.length(); i++) {
+                UdpStream stream = this.streams.get(i);
+                if (stream != null) stream.discard(cause);
+            }
+        }
+
+        RttEstimator rtt() {
+            return this.rtt;
+        }
+
+        private void dispatch(Runnable task) {
+            if (this.executor != null) {
+                this.executor.executeUnbounded(task);
+            } else {
+                task.run();
+            }
+        }
+
+        /**
+         * @return true if a listener took over the buffer and will release it
+         */
+        boolean receive(BufferPool.Pooled pooled) {
+            if (this.secure && !this.unseal(pooled)) return false;
             this.status = Status.Connected;
 
             if (this.lastReceive == 0) {
+                if (this.connected) this.metrics.reconnects.increment();
+                for (int i = 0; i < this.streams.length(); i++) {
+                    UdpStream stream = this.streams.get(i);
+                    ReliableChannel reliable = stream != null ? stream.reliableIfAny() : null;
+                    if (reliable != null) reliable.resync();
+                }
+                ConnectEvent event = new ConnectEvent();
+                if (event.shouldCommit()) {
+                    event.host = Utils.format(this.host);
+                    event.reconnect = this.connected;
+                    event.commit();
+                }
+                this.connected = true;
                 if (this.onConnectEventListener != null) {
-                    // TODO: 例外、別Thread
-                    this.onConnectEventListener.run();
+                    this.dispatch(this.onConnectEventListener);
                 }
             }
 
-            this.lastReceive = new Date().getTime();
+            long now = System.currentTimeMillis();
+            this.lastReceive = now;
+            this.metrics.lastReceive = now;
 
-            int size = buffer.flip().limit();
+            ByteBuffer buffer = pooled.buffer().flip();
+            int size = buffer.limit();
             if (size == 0) {
-                logger.log(Level.DEBUG, "receive keepalive from {0}", Utils.format(this.host));
+                this.metrics.keepalivesIn.increment();
+                if (logger.isLoggable(Level.DEBUG)) {
+                    logger.log(Level.DEBUG, "receive keepalive from {0}", Utils.format(this.host));
+                }
+                return false;
+            }
+            if (!this.raw) {
+                byte type = buffer.get(0);
+                if (type == Frame.PING && size == Frame.PING_SIZE) {
+                    this.metrics.keepalivesIn.increment();
+                    this.pong(buffer);
+                    return false;
+                }
+                if (type == Frame.PONG && size == Frame.PING_SIZE) {
+                    this.metrics.keepalivesIn.increment();
+                    this.rtt.sample(System.nanoTime() - buffer.getLong(Frame.HEADER));
+                    return false;
+                }
+                UdpStream stream = this.base;
+                if (type == Frame.STREAM && size > Frame.STREAM_HEADER) {
+                    int id = buffer.getShort(Frame.HEADER) & 0xffff;
+                    if (id >= UdpStream.STREAMS) {
+                        this.metrics.rejected.increment();
+                        return false;
+                    }
+                    stream = this.stream(id);
+                    // the frame inside to the start, as if received alone
+                    size -= Frame.STREAM_HEADER;
+                    buffer.put(0, buffer.duplicate(), Frame.STREAM_HEADER, size).limit(size);
+                    type = buffer.get(0);
+                }
+                if (type == Frame.RELIABLE || type == Frame.RELIABLE_FRAGMENT) {
+                    return stream.reliable().receive(pooled);
+                }
+                if (type == Frame.FRAGMENT) {
+                    if (this.reassembly == null) this.reassembly = new Reassembly(this.metrics);
+                    ByteBuffer message = this.reassembly.add(buffer, now);
+                    if (message != null) this.accept(stream, message);
+                    return false;
+                }
+                if (type == Frame.MTU_PROBE && size >= Frame.MTU_SIZE) {
+                    // the size on the wire, as the probe was sent
+                    this.answer(buffer.put(0, Frame.MTU_ACK).putInt(Frame.HEADER, size + this.overhead()).limit(Frame.MTU_SIZE));
+                    return false;
+                }
+                if (type == Frame.MTU_ACK && size == Frame.MTU_SIZE) {
+                    if (this.pmtu.acked(buffer.getInt(Frame.HEADER))) this.discover(now);
+                    return false;
+                }
+                if (type == Frame.ACK) {
+                    ReliableChannel reliable = stream.reliableIfAny();
+                    if (reliable != null) reliable.acked(buffer);
+                    return false;
+                }
+                if (type != Frame.DATA) {
+                    if (logger.isLoggable(Level.DEBUG)) {
+                        logger.log(Level.DEBUG, "unknown frame {0} from {1}", type, Utils.format(this.host));
+                    }
+                    return false;
+                }
+                buffer.position(Frame.HEADER);
+                return this.accept(stream, pooled);
+            }
+            return this.accept(this.base, pooled);
+        }
+
+        /**
+         * Opens a SECURE frame in place, leaving the buffer as if the frame
+         * inside had been received, or handles a HANDSHAKE. Anything else
+         * is rejected. Runs on the receiver thread.
+         *
+         * @return false if nothing is left to receive
+         */
+        private boolean unseal(BufferPool.Pooled pooled) {
+            ByteBuffer buffer = pooled.buffer();
+            int size = buffer.position();
+            byte type = size > 0 ? buffer.get(0) : -1;
+            if (type == Frame.HANDSHAKE) {
+                this.handshake(buffer.flip());
+                return false;
+            }
+            SessionCipher session = this.session;
+            int length = type == Frame.SECURE && session != null ? session.open(buffer, size) : -1;
+            SessionCipher pending = this.pending;
+            if (length < 0 && type == Frame.SECURE && pending != null) {
+                // the peer restarted, and has proven the new session
+                length = pending.open(buffer, size);
+                if (length >= 0) {
+                    logger.log(Level.DEBUG, "udp session key with {0} replaced", Utils.format(this.host));
+                    this.session = pending;
+                    this.pending = null;
+                }
+            }
+            if (length < 0) {
+                this.metrics.rejected.increment();
+                if (logger.isLoggable(Level.DEBUG)) {
+                    logger.log(Level.DEBUG, "reject frame {0} from {1}", type, Utils.format(this.host));
+                }
+                return false;
+            }
+            buffer.limit(buffer.capacity()).position(length);
+            if (!this.confirmed) {
+                this.confirmed = true;
+                this.resume();
+            }
+            return true;
+        }
+
+        /**
+         * Starts a session with the peer's key, unless it is one already
+         * accepted, or answers a HANDSHAKE for another key pair with a
+         * hello. A confirmed session is kept until the new one is proven by
+         * a frame sealed with it. Runs on the receiver thread.
+         */
+        private void handshake(ByteBuffer frame) {
+            KeyExchange exchange = this.exchange;
+            SessionCipher session = exchange != null ? exchange.accept(frame) : null;
+            if (session == null) {
+                if (exchange != null && exchange.unanswered()) this.hello();
+                return;
+            }
+            logger.log(Level.DEBUG, "udp session key with {0}", Utils.format(this.host));
+            if (this.confirmed) {
+                this.pending = session;
+            } else {
+                this.session = session;
+            }
+            // the peer may not have our key yet, and answers a sealed PING
+            // once it has, which confirms the session on this side
+            this.hello();
+            ByteBuffer ping = ByteBuffer.allocate(Frame.PING_SIZE).put(Frame.PING).putLong(System.nanoTime()).flip();
+            this.answer(ping);
+        }
+
+        private void hello() {
+            KeyExchange exchange = this.exchange;
+            if (exchange == null) return;
+            try {
+                this.channel().send(exchange.hello(), this.host);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.ERROR, "udp handshake send error", e);
+                this.metrics.sendErrors.increment();
+            }
+        }
+
+        /**
+         * Hands the payload between the buffer's position and limit to the
+         * listeners of the stream.
+         *
+         * @return true if a listener took over the buffer and will release it
+         */
+        boolean accept(UdpStream stream, BufferPool.Pooled pooled) {
+            if (!this.received(stream, pooled.buffer())) return false;
+            if (this.executor == null) {
+                this.deliver(stream, pooled.view(), pooled.buffer());
+                return false;
+            }
+            this.executor.execute(new Delivery(stream, pooled, pooled.buffer()));
+            return true;
+        }
+
+        /**
+         * Variant of {@link #accept(UdpStream, BufferPool.Pooled)} for a
+         * payload the reliable channel held back for reordering.
+         */
+        void accept(UdpStream stream, ByteBuffer data) {
+            if (!this.received(stream, data)) return;
+            if (this.executor == null) {
+                this.deliver(stream, data.asReadOnlyBuffer(), data);
             } else {
+                this.executor.execute(new Delivery(stream, null, data));
+            }
+        }
+
+        /**
+         * @return true if there is a listener to deliver to
+         */
+        private boolean received(UdpStream stream, ByteBuffer buffer) {
+            int size = buffer.remaining();
+            this.metrics.packetsIn.increment();
+            this.metrics.bytesIn.add(size);
+            if (logger.isLoggable(Level.DEBUG)) {
                 logger.log(Level.DEBUG, "receive data from {0} ({1}bit)", Utils.format(this.host), size);
-                byte[] data = new byte[size];
-                buffer.get(data);
-                if (this.onReceiveEventListener != null) {
-                    // TODO: 例外、別Thread
-                    this.onReceiveEventListener.accept(data);
+            }
+            return stream.listening() || this.base.listening();
+        }
+
+        private void deliver(UdpStream stream, ByteBuffer view, ByteBuffer buffer) {
+            (stream.listening() ? stream : this.base).deliver(view, buffer);
+        }
+
+        private class Delivery implements SerialExecutor.Discardable {
+            private final UdpStream stream;
+            // null for a payload that is not pooled
+            private final BufferPool.Pooled pooled;
+            private final ByteBuffer buffer;
+
+            private Delivery(UdpStream stream, BufferPool.Pooled pooled, ByteBuffer buffer) {
+                this.stream = stream;
+                this.pooled = pooled;
+                this.buffer = buffer;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    deliver(this.stream, this.pooled != null ? this.pooled.view() : this.buffer.asReadOnlyBuffer(), this.buffer);
+                } finally {
+                    if (this.pooled != null) this.pooled.release();
                 }
             }
+
+            @Override
+            public void discard() {
+                metrics.drops.increment();
+                if (this.pooled != null) this.pooled.release();
+            }
         }
 
-        public void start() {
-            if (this.active) return;
-            logger.log(Level.INFO, "start udp keepalive to {0}", Utils.format(host));
+        private void keepalive(int generation) {
+            // a timer left over from before stop() and start() must not run twice
+            if (!this.active || generation != this.generation) return;
+            long now = System.currentTimeMillis();
+            long next = this.raw ? this.keepaliveRaw(now) : this.keepaliveProbe(now);
+            this.keepalive = UdpEndpoint.timer.schedule(() -> this.keepalive(generation), Math.max(next - now, 1), TimeUnit.MILLISECONDS);
+        }
 
-            this.keepalive = new Thread(() -> {
-                long lastKeepalive = 0;
-                while (this.active) {
-                    long now = new Date().getTime();
-                    if (now - lastKeepalive > this.interval) {
-                        try {
-                            logger.log(Level.DEBUG, "send udp keepalive to {0}", Utils.format(host));
-                            ByteBuffer data = this.generator.get();
-                            channel.send(data, host);
-                        } catch (Exception e) {
-                            logger.log(Level.ERROR, "udp keepalive send error", e);
-                        }
-                        lastKeepalive = now;
-                    }
-                    if (this.lastReceive != 0 && now - this.lastReceive > this.timeout) {
-                        if (this.onDisconnectEventListener != null) {
-                            logger.log(Level.WARNING, "udp keepalive timeout : {0}", Utils.format(this.host));
-                            this.lastReceive = 0;
-                            this.status = Status.Connecting;
-                            // TODO: 例外、別Thread
-                            this.onDisconnectEventListener.run();
-                        }
-                    }
-                    try {
-                        Thread.sleep(1);
-                    } catch (InterruptedException e) {
-                        // pass
+        /**
+         * Keepalives from the generator and a fixed timeout.
+         *
+         * @return when to run again
+         */
+        private long keepaliveRaw(long now) {
+            // data sent within the interval already keeps the mapping open
+            if (now - Math.max(this.lastKeepalive, this.lastSend) >= this.interval) {
+                try {
+                    logger.log(Level.DEBUG, "send udp keepalive to {0}", Utils.format(host));
+                    ByteBuffer data = this.generator.get();
+                    this.channel().send(data, host);
+                    this.metrics.keepalivesOut.increment();
+                } catch (Exception e) {
+                    logger.log(Level.ERROR, "udp keepalive send error", e);
+                    this.metrics.sendErrors.increment();
+                }
+                this.lastKeepalive = now;
+            }
+            long lastReceive = this.lastReceive;
+            if (lastReceive != 0 && now - lastReceive > this.timeout) {
+                this.timeout();
+            }
+            // wake up again at the next keepalive or timeout, whichever comes first
+            long next = Math.max(this.lastKeepalive, this.lastSend) + this.interval;
+            lastReceive = this.lastReceive;
+            if (lastReceive != 0) next = Math.min(next, lastReceive + this.timeout + 1);
+            return next;
+        }
+
+        /**
+         * Timestamped PING keepalives. Once the peer has been silent for an
+         * interval, an unanswered PING is repeated after the RTO with
+         * exponential backoff, and the peer is lost when the retries run out.
+         * Anything received from the peer counts as an answer.
+         *
+         * @return when to run again
+         */
+        private long keepaliveProbe(long now) {
+            long lastReceive = this.lastReceive;
+            if (this.probeStart != 0 && (lastReceive == 0 || lastReceive >= this.probeStart)) {
+                this.probeStart = 0;
+            }
+            if (this.probeStart != 0) {
+                if (now >= this.probeDeadline) {
+                    if (this.retries >= PROBE_RETRIES) {
+                        this.probeStart = 0;
+                        this.timeout();
+                    } else {
+                        this.retries++;
+                        this.ping(now);
+                        this.probeDeadline = now + this.rtt.rto(this.retries, TimeUnit.MILLISECONDS);
                     }
                 }
-            }, String.format("UDP Keepalive(%s)", Utils.format(host)));
+            } else if (now - Math.max(this.lastKeepalive, this.lastSend) >= this.interval
+                    || (lastReceive != 0 && now - lastReceive >= this.interval)) {
+                this.ping(now);
+                if (lastReceive != 0) {
+                    this.probeStart = now;
+                    this.probeDeadline = now + this.rtt.rto(0, TimeUnit.MILLISECONDS);
+                    this.retries = 0;
+                }
+            }
+            // wake up again at the next keepalive, silence check or probe deadline
+            long next = Math.max(this.lastKeepalive, this.lastSend) + this.interval;
+            lastReceive = this.lastReceive;
+            if (lastReceive != 0) next = Math.min(next, lastReceive + this.interval);
+            if (this.probeStart != 0) next = Math.min(next, this.probeDeadline);
+            // a probe the peer cannot open would count as too large
+            if (lastReceive != 0 && (!this.secure || this.confirmed)) {
+                this.discover(now);
+                next = Math.min(next, this.pmtu.deadline());
+            }
+            return next;
+        }
+
+        /**
+         * Sends the next path MTU probe, if one is due.
+         */
+        private void discover(long now) {
+            int size;
+            while ((size = this.pmtu.probe(now, this.rtt.rto(0, TimeUnit.MILLISECONDS))) > 0) {
+                try {
+                    ByteBuffer probe = ByteBuffer.allocate(size - this.overhead());
+                    this.write(probe.put(0, Frame.MTU_PROBE).putInt(Frame.HEADER, size));
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    // the don't fragment bit is set, so e.g. larger than the interface MTU
+                    logger.log(Level.DEBUG, "udp mtu probe of {0} bytes to {1} failed: {2}", size, Utils.format(this.host), e);
+                    this.pmtu.tooBig(size);
+                }
+            }
+        }
+
+        private void ping(long now) {
+            try {
+                logger.log(Level.DEBUG, "send udp ping to {0}", Utils.format(host));
+                // repeated until the peer has our key
+                if (this.secure && !this.confirmed) this.hello();
+                this.probe.clear().put(Frame.PING).putLong(System.nanoTime()).flip();
+                this.write(this.probe);
+                this.metrics.keepalivesOut.increment();
+            } catch (Exception e) {
+                logger.log(Level.ERROR, "udp keepalive send error", e);
+                this.metrics.sendErrors.increment();
+            }
+            this.lastKeepalive = now;
+        }
+
+        /**
+         * Answers a PING in place, on the receiver thread so the RTT does not
+         * include any queueing.
+         */
+        private void pong(ByteBuffer ping) {
+            this.answer(ping.put(0, Frame.PONG));
+        }
+
+        private void answer(ByteBuffer frame) {
+            try {
+                this.write(frame);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.ERROR, "udp keepalive send error", e);
+                this.metrics.sendErrors.increment();
+            }
+        }
+
+        private void timeout() {
+            if (this.onDisconnectEventListener != null) {
+                logger.log(Level.WARNING, "udp keepalive timeout : {0}", Utils.format(this.host));
+                this.metrics.timeouts.increment();
+                this.disconnected("timeout");
+                this.lastReceive = 0;
+                this.status = Status.Connecting;
+                this.dispatch(this.onDisconnectEventListener);
+            }
+        }
+
+        private void disconnected(String reason) {
+            if (this.status != Status.Connected) return;
+            DisconnectEvent event = new DisconnectEvent();
+            if (event.shouldCommit()) {
+                event.host = Utils.format(this.host);
+                event.reason = reason;
+                event.sinceLastReceive = System.currentTimeMillis() - this.metrics.lastReceive;
+                event.commit();
+            }
+        }
 
+        public synchronized void start() {
+            if (this.active || this.closed) return;
+            logger.log(Level.INFO, "start udp keepalive to {0}", Utils.format(host));
             this.active = true;
             this.status = Status.Connecting;
-            this.keepalive.start();
+            this.lastKeepalive = 0;
+            this.probeStart = 0;
+            this.retries = 0;
+            if (this.secure) {
+                // a new key pair every start, the peer follows
+                this.session = null;
+                this.pending = null;
+                this.confirmed = false;
+                this.exchange = new KeyExchange(this.psk);
+            }
+            int generation = ++this.generation;
+            this.keepalive = UdpEndpoint.timer.schedule(() -> this.keepalive(generation), 0, TimeUnit.MILLISECONDS);
         }
 
-        public void stop() throws InterruptedException, IOException {
+        public synchronized void stop() throws InterruptedException, IOException {
             if (!this.active) return;
             logger.log(Level.INFO, "stop udp keepalive to {0}", Utils.format(host));
             this.active = false;
-            this.keepalive.join();
+            this.keepalive.cancel();
+            this.disconnected("stopped");
             this.status = Status.Disconnected;
         }
+
+        synchronized void close(IOException cause) {
+            this.closed = true;
+            if (this.active) {
+                this.active = false;
+                this.keepalive.cancel();
+            }
+            this.disconnected("closed");
+            this.status = Status.Disconnected;
+            this.discard(cause);
+        }
+    }
+
+    public static UdpEndpoint getDefault() {
+        return endpoint;
+    }
+
+    /**
+     * Timer the connections run on, for protocols layered over them.
+     * Tasks must not block.
+     */
+    public static TimingWheel getTimer() {
+        return UdpEndpoint.timer;
     }
 
     public static UdpConnection add(InetSocketAddress host) {
-        logger.log(Level.INFO, "add host : {0}", host);
-        UdpConnection connection = new UdpConnection(host);
-        connections.put(host, connection);
-        return connection;
+        return endpoint.add(host);
     }
 
     public static UdpConnection get(InetSocketAddress host) {
-        return connections.containsKey(host) ? connections.get(host) : null;
+        return endpoint.get(host);
     }
 
-    public static Integer getPort() {
-        return channel.socket().getLocalPort();
+    public static UdpConnection remove(InetSocketAddress host) {
+        return endpoint.remove(host);
     }
 
-    public static void start() throws SocketException, IOException {
-        if (active) return;
-        logger.log(Level.INFO, "start udp receiver");
-        
-        if (channel == null) {
-            channel = DatagramChannel.open();
-            channel.configureBlocking(false);
-        }
+    public static Collection<UdpConnection> getConnections() {
+        return endpoint.getConnections();
+    }
 
-        receiver = new Thread(() -> {
-            while (active) {
-                try {
-                    ByteBuffer buffer = ByteBuffer.allocate(USHORT_MAX_VALUE);
-                    SocketAddress socket = channel.receive(buffer);
-                    if (socket instanceof InetSocketAddress addr) {
-                        if (connections.containsKey(addr)) {
-                            connections.get(addr).receive(buffer);
-                        }
-                    }
-                    Thread.sleep(1);
-                } catch (Exception e) {
-                    logger.log(Level.ERROR, "data receive error", e);
-                }
-            }
-        }, "UDP Receiver");
+    public static ConnectionMetrics.Snapshot getMetrics() {
+        return endpoint.getMetrics();
+    }
 
-        active = true;
-        receiver.start();
-        for (UdpConnection connection: connections.values()) {
-            connection.start();
-        }
+    public static Integer getPort() {
+        return endpoint.getPort();
+    }
+
+    public static void start() throws SocketException, IOException {
+        endpoint.start();
     }
 
     public static void stop() throws InterruptedException, IOException {
-        if (!active) return;
-        logger.log(Level.INFO, "stop udp receiver");
-        active = false;
-        for (UdpConnection connection: connections.values()) {
-            connection.stop();
-        }
-        receiver.join();
-        channel.close();
-        channel = null;
+        endpoint.stop();
     }
 }
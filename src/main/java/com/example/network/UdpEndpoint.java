@@ -0,0 +1,431 @@
+package com.example.network;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+import jdk.net.ExtendedSocketOptions;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * UDP socket shared by a set of hole punched connections.
+ *
+ * Owns the channel group, the receive and send threads and a concurrent
+ * registry of connections keyed by peer address. Several endpoints, e.g. on
+ * different ports, can run in one JVM. {@link UdpConnectionManager} is a
+ * static facade over a default instance.
+ *
+ * Channels are opened with an explicit address family. A dual stack
+ * endpoint opens IPv6 ones, which carry IPv4 as well where the platform
+ * allows it (IPV6_V6ONLY off, as on Linux by default); where it does not,
+ * a second group of IPv4 channels is bound to the same port, and each
+ * connection sends from the group of its peer's family.
+ */
+public class UdpEndpoint implements UdpEndpointMXBean {
+    private static final Logger logger = System.getLogger(UdpEndpoint.class.getName());
+    private static final int USHORT_MAX_VALUE = (1 << 16) - 1;
+    static final int SEND_QUEUE = Integer.getInteger("udp.send.queue", 1024);
+    static final int SEND_BATCH = Integer.getInteger("udp.send.batch", 64);
+    static final int MESSAGE_MAX = Integer.getInteger("udp.message.max", 1 << 20);
+    static final int MAILBOX_SIZE = Integer.getInteger("udp.mailbox.size", 64);
+    static final SerialExecutor.OverflowPolicy MAILBOX_POLICY = SerialExecutor.OverflowPolicy.valueOf(
+        System.getProperty("udp.mailbox.policy", "DROP_NEWEST")
+    );
+    static final TimingWheel timer = new TimingWheel(
+        "UDP Timer",
+        Long.getLong("udp.timer.tick", 1),
+        TimeUnit.MILLISECONDS,
+        Integer.getInteger("udp.timer.size", 512)
+    );
+
+    /**
+     * Address families to listen on.
+     */
+    public enum Stack {
+        IPV4,
+        IPV6,
+        DUAL;
+    }
+
+    private final int port;
+    private final int shardCount;
+    private final Stack stack;
+    private final BufferPool pool = new BufferPool(
+        USHORT_MAX_VALUE,
+        Integer.getInteger("udp.pool.size", 16)
+    );
+    private final ConcurrentMap<InetSocketAddress, UdpConnection> connections = new ConcurrentHashMap<>();
+    // counters of removed connections, so the totals never go backwards
+    private final ConnectionMetrics retired = new ConnectionMetrics();
+    final BlockingQueue<UdpConnection> ready = new LinkedBlockingQueue<>();
+    // frame being sent, sender thread only
+    final ByteBuffer frame = ByteBuffer.allocateDirect(USHORT_MAX_VALUE);
+    private volatile Shard[] shards;
+    // IPv4 channels, if the IPv6 ones are IPv6 only
+    private volatile Shard[] inet;
+    private Selector writeSelector;
+    private Thread sender;
+    private ObjectName name;
+    volatile boolean active = false;
+
+    /**
+     * @param header  size of the frame header, with any STREAM header, if
+     *                data is already framed, 0 if the sender adds them
+     * @param stream  stream of data the sender frames
+     */
+    record Outbound(ByteBuffer data, CompletableFuture<Void> future, int header, int stream) {}
+
+    /**
+     * One socket of the SO_REUSEPORT group with its own receive loop.
+     * The kernel steers each peer to a fixed shard, so connections adopt the
+     * shard they are received on and send from it as well.
+     */
+    private class Shard {
+        private final int index;
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final Thread receiver;
+
+        private Shard(int index, DatagramChannel channel) throws IOException {
+            this.index = index;
+            this.channel = channel;
+            this.selector = Selector.open();
+            this.channel.register(this.selector, SelectionKey.OP_READ);
+            this.receiver = new Thread(this::receive, String.format("UDP Receiver(%d)", index));
+        }
+
+        private void receive() {
+            while (active) {
+                try {
+                    // park until the socket is readable, then drain everything queued
+                    // (the action form skips the selected-key set and its per-wakeup allocation)
+                    this.selector.select(key -> {});
+                    BufferPool.Pooled pooled = pool.acquire();
+                    try {
+                        while (active) {
+                            SocketAddress socket = this.channel.receive(pooled.buffer().clear());
+                            if (socket == null) break;
+                            if (socket instanceof InetSocketAddress addr) {
+                                UdpConnection connection = connections.get(addr);
+                                if (connection != null) {
+                                    if (connection.shard != this.index) connection.shard = this.index;
+                                    if (connection.receive(pooled)) {
+                                        // the listener owns that buffer now
+                                        pooled = pool.acquire();
+                                    }
+                                }
+                            }
+                        }
+                    } finally {
+                        pooled.release();
+                    }
+                } catch (Exception e) {
+                    logger.log(Level.ERROR, "data receive error", e);
+                }
+            }
+        }
+
+        private void stop() throws InterruptedException, IOException {
+            this.selector.wakeup();
+            this.receiver.join();
+            this.close();
+        }
+
+        private void close() throws IOException {
+            this.selector.close();
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Endpoint configured by the udp.port, udp.shards and udp.stack system
+     * properties.
+     */
+    public UdpEndpoint() {
+        this(
+            Integer.getInteger("udp.port", 0),
+            Integer.getInteger("udp.shards", 1),
+            Stack.valueOf(System.getProperty("udp.stack", Stack.DUAL.name()))
+        );
+    }
+
+    /**
+     * Dual stack endpoint.
+     */
+    public UdpEndpoint(int port, int shards) {
+        this(port, shards, Stack.DUAL);
+    }
+
+    public UdpEndpoint(int port, int shards, Stack stack) {
+        if (port < 0 || port > 65535) throw new IllegalArgumentException("port " + port);
+        if (shards < 1) throw new IllegalArgumentException("shards " + shards);
+        // would let one slow listener stall the receiver of every connection
+        if (MAILBOX_POLICY == SerialExecutor.OverflowPolicy.BLOCK) throw new IllegalStateException("udp.mailbox.policy " + MAILBOX_POLICY);
+        this.port = port;
+        this.shardCount = shards;
+        this.stack = stack;
+    }
+
+    @Override
+    public boolean isActive() {
+        return this.active;
+    }
+
+    public UdpConnection add(InetSocketAddress host) {
+        logger.log(Level.INFO, "add host : {0}", host);
+        UdpConnection connection = new UdpConnection(this, host);
+        UdpConnection previous = this.connections.put(host, connection);
+        if (previous != null) this.retire(previous);
+        return connection;
+    }
+
+    public UdpConnection get(InetSocketAddress host) {
+        return this.connections.get(host);
+    }
+
+    /**
+     * Stops and unregisters the connection to the host.
+     * Data still queued for it fails with {@link ClosedChannelException}.
+     */
+    public UdpConnection remove(InetSocketAddress host) {
+        UdpConnection connection = this.connections.remove(host);
+        if (connection != null) {
+            logger.log(Level.INFO, "remove host : {0}", host);
+            this.retire(connection);
+        }
+        return connection;
+    }
+
+    private void retire(UdpConnection connection) {
+        connection.close(new ClosedChannelException());
+        synchronized (this.retired) {
+            this.retired.add(connection.metrics());
+        }
+    }
+
+    /**
+     * Live, unmodifiable view of the registered connections. Iteration is
+     * weakly consistent and safe while connections are added or removed.
+     */
+    public Collection<UdpConnection> getConnections() {
+        return Collections.unmodifiableCollection(this.connections.values());
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return this.connections.size();
+    }
+
+    @Override
+    public ConnectionMetrics.Snapshot getMetrics() {
+        ConnectionMetrics total = new ConnectionMetrics();
+        synchronized (this.retired) {
+            total.add(this.retired);
+        }
+        for (UdpConnection connection: this.connections.values()) {
+            total.add(connection.metrics());
+        }
+        return total.snapshot(null, -1, -1);
+    }
+
+    @Override
+    public List<ConnectionMetrics.Snapshot> getConnectionMetrics() {
+        return this.connections.values().stream().map(UdpConnection::getMetrics).toList();
+    }
+
+    public Integer getPort() {
+        return this.shards[0].channel.socket().getLocalPort();
+    }
+
+    /**
+     * Channel of the shard, or of the shard at the same position in the
+     * group of the host's family.
+     */
+    DatagramChannel channel(int shard, InetSocketAddress host) {
+        Shard[] shards = this.inet != null && host.getAddress() instanceof Inet4Address ? this.inet : this.shards;
+        return shards[Math.floorMod(shard, shards.length)].channel;
+    }
+
+    /**
+     * Opens a channel group of the family bound to the port.
+     *
+     * @param index  of the first shard
+     * @return null if the port is taken in that family
+     */
+    private Shard[] open(ProtocolFamily family, int port, int count, int index) throws IOException {
+        Shard[] group = new Shard[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                DatagramChannel channel = DatagramChannel.open(family);
+                if (count > 1) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.configureBlocking(false);
+                try {
+                    channel.bind(new InetSocketAddress(port));
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                if (i == 0) port = channel.socket().getLocalPort();
+                // path MTU probes must fail instead of being fragmented
+                if (channel.supportedOptions().contains(ExtendedSocketOptions.IP_DONTFRAGMENT)) {
+                    channel.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, true);
+                }
+                channel.register(this.writeSelector, SelectionKey.OP_WRITE);
+                group[i] = new Shard(index + i, channel);
+            }
+        } catch (IOException e) {
+            for (Shard shard: group) {
+                if (shard != null) shard.close();
+            }
+            if (e instanceof BindException) return null;
+            throw e;
+        }
+        return group;
+    }
+
+    public void start() throws SocketException, IOException {
+        if (this.active) return;
+        logger.log(Level.INFO, "start udp receiver");
+
+        int count = this.shardCount;
+        ProtocolFamily family = this.stack == Stack.IPV4 ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+        try (DatagramChannel probe = DatagramChannel.open(family)) {
+            if (count > 1 && !probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                logger.log(Level.WARNING, "SO_REUSEPORT is not supported, falling back to a single shard");
+                count = 1;
+            }
+        } catch (UnsupportedOperationException e) {
+            if (this.stack == Stack.IPV6) throw new SocketException("IPv6 is not supported");
+            logger.log(Level.WARNING, "IPv6 is not supported, falling back to IPv4");
+            family = StandardProtocolFamily.INET;
+        }
+
+        this.writeSelector = Selector.open();
+        Shard[] group = this.open(family, this.port, count, 0);
+        if (group == null) throw new BindException("udp port " + this.port + " is in use");
+        int port = group[0].channel.socket().getLocalPort();
+        Shard[] inet = null;
+        String stack = family == StandardProtocolFamily.INET ? "IPv4" : "IPv6";
+        if (this.stack == Stack.DUAL && family == StandardProtocolFamily.INET6) {
+            // the port is free for IPv4 only if the IPv6 channels are IPv6 only
+            boolean v6only = true;
+            try (DatagramChannel probe = DatagramChannel.open(StandardProtocolFamily.INET)) {
+                probe.bind(new InetSocketAddress(port));
+            } catch (BindException e) {
+                v6only = false;
+            }
+            if (v6only) inet = this.open(StandardProtocolFamily.INET, port, count, count);
+            if (v6only && inet == null) logger.log(Level.WARNING, "udp port {0} is in use for IPv4, IPv6 only", port);
+            stack = !v6only ? "IPv6 with IPv4" : inet != null ? "IPv6 and IPv4" : stack;
+        }
+        logger.log(Level.INFO, "udp port   : {0}", port);
+        logger.log(Level.INFO, "udp shards : {0}", count);
+        logger.log(Level.INFO, "udp stack  : {0}", stack);
+        this.shards = group;
+        this.inet = inet;
+
+        this.sender = new Thread(() -> {
+            while (this.active) {
+                try {
+                    UdpConnection connection = this.ready.poll(100, TimeUnit.MILLISECONDS);
+                    if (connection == null) continue;
+                    connection.scheduled.set(false);
+                    boolean writable = connection.flush();
+                    if (!connection.outbound.isEmpty() && !connection.paced && connection.scheduled.compareAndSet(false, true)) {
+                        // back of the line, so one busy peer cannot starve the others
+                        this.ready.add(connection);
+                    }
+                    if (!writable) {
+                        this.writeSelector.select(key -> {}, 100);
+                    }
+                } catch (Exception e) {
+                    logger.log(Level.ERROR, "data send error", e);
+                }
+            }
+        }, "UDP Sender");
+
+        this.active = true;
+        for (Shard shard: this.shards) {
+            shard.receiver.start();
+        }
+        if (this.inet != null) {
+            for (Shard shard: this.inet) {
+                shard.receiver.start();
+            }
+        }
+        this.sender.start();
+        for (UdpConnection connection: this.connections.values()) {
+            connection.start();
+        }
+
+        try {
+            this.name = new ObjectName(String.format("com.example.network:type=UdpEndpoint,port=%d", port));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.name);
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "mbean register error", e);
+            this.name = null;
+        }
+    }
+
+    public void stop() throws InterruptedException, IOException {
+        if (!this.active) return;
+        logger.log(Level.INFO, "stop udp receiver");
+        if (this.name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+            } catch (JMException e) {
+                logger.log(Level.WARNING, "mbean unregister error", e);
+            }
+            this.name = null;
+        }
+        this.active = false;
+        for (UdpConnection connection: this.connections.values()) {
+            connection.stop();
+        }
+        this.sender.join();
+        for (Shard shard: this.shards) {
+            shard.stop();
+        }
+        if (this.inet != null) {
+            for (Shard shard: this.inet) {
+                shard.stop();
+            }
+        }
+        this.writeSelector.close();
+        this.writeSelector = null;
+        this.ready.clear();
+        for (UdpConnection connection: this.connections.values()) {
+            connection.scheduled.set(false);
+            connection.paced = false;
+            connection.discard(new ClosedChannelException());
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.network;
+
+import java.util.List;
+
+/**
+ * JMX view of a running {@link UdpEndpoint}, registered as
+ * {@code com.example.network:type=UdpEndpoint,port=<port>}.
+ */
+public interface UdpEndpointMXBean {
+    boolean isActive();
+
+    int getConnectionCount();
+
+    /**
+     * Totals over every connection, including ones already removed.
+     */
+    ConnectionMetrics.Snapshot getMetrics();
+
+    List<ConnectionMetrics.Snapshot> getConnectionMetrics();
+}
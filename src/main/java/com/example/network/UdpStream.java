@@ -0,0 +1,244 @@
+package com.example.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+import com.example.network.UdpEndpoint.Outbound;
+
+/**
+ * Logical stream of a connection, with its own send queue, reliable
+ * channel and listeners.
+ *
+ * The sender thread serves the streams of a connection by priority, and
+ * streams of the same priority by weight, so a bulk transfer on one
+ * stream does not hold up messages on another. Reliable messages are
+ * ordered within their stream only, a loss on one stream does not stall
+ * the others.
+ *
+ * Stream 0 is the connection itself, and is what peers without streams
+ * send and receive. Data of a stream without listeners goes to those of
+ * stream 0.
+ */
+public class UdpStream {
+    // stream ids are below this
+    static final int STREAMS = Integer.getInteger("udp.streams", 256);
+    static final int PRIORITY = Integer.getInteger("udp.stream.priority", 4);
+
+    private final UdpConnection connection;
+    private final int id;
+    // bytes of the STREAM header in front of each frame, none on stream 0
+    final int prefix;
+    private volatile int priority = PRIORITY;
+    private volatile int weight = 1;
+    private volatile int capacity = UdpEndpoint.SEND_QUEUE;
+    private volatile Consumer<byte[]> onReceiveEventListener;
+    private volatile Consumer<ByteBuffer> onReceiveBufferEventListener;
+    private volatile ReliableChannel reliable;
+    // guarded by the connection's SendScheduler
+    final ArrayDeque<Outbound> queue = new ArrayDeque<>();
+    boolean scheduled = false;
+    int level;
+    int deficit;
+
+    UdpStream(UdpConnection connection, int id) {
+        this.connection = connection;
+        this.id = id;
+        this.prefix = id != 0 ? Frame.STREAM_HEADER : 0;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public UdpConnection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Frames of a stream are sent only once no stream of a lower priority
+     * number has any queued. Takes effect the next time the queue runs
+     * empty.
+     *
+     * @param priority  0, the most urgent, to 7; udp.stream.priority by default
+     */
+    public UdpStream priority(int priority) {
+        if (priority < 0 || priority >= SendScheduler.PRIORITIES) throw new IllegalArgumentException("priority " + priority);
+        this.priority = priority;
+        return this;
+    }
+
+    int priority() {
+        return this.priority;
+    }
+
+    /**
+     * Share of the bandwidth among the streams of the same priority.
+     */
+    public UdpStream weight(int weight) {
+        if (weight < 1) throw new IllegalArgumentException("weight " + weight);
+        this.weight = weight;
+        return this;
+    }
+
+    int weight() {
+        return this.weight;
+    }
+
+    /**
+     * Frames the stream may have queued, udp.send.queue by default. Offers
+     * beyond it fail, and reliable sends beyond it as many messages.
+     */
+    public UdpStream capacity(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity " + capacity);
+        this.capacity = capacity;
+        return this;
+    }
+
+    int capacity() {
+        return this.capacity;
+    }
+
+    public UdpStream onReceive(Consumer<byte[]> onReceiveEventListener) {
+        this.onReceiveEventListener = onReceiveEventListener;
+        return this;
+    }
+
+    /**
+     * Zero-copy variant of {@link #onReceive(Consumer)}.
+     * The buffer is a read-only view of a pooled buffer and is only valid
+     * until the listener returns.
+     */
+    public UdpStream onReceiveBuffer(Consumer<ByteBuffer> onReceiveBufferEventListener) {
+        this.onReceiveBufferEventListener = onReceiveBufferEventListener;
+        return this;
+    }
+
+    /**
+     * @see UdpConnection#offer(ByteBuffer)
+     */
+    public boolean offer(ByteBuffer data) {
+        if (this.fits(data)) return this.connection.enqueue(this, new Outbound(data, null, 0, this.id));
+        return data.remaining() <= UdpEndpoint.MESSAGE_MAX && this.fragment(data, null);
+    }
+
+    /**
+     * @see UdpConnection#sendAsync(ByteBuffer)
+     */
+    public CompletableFuture<Void> sendAsync(ByteBuffer data) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!this.connection.endpoint().active) {
+            future.completeExceptionally(new ClosedChannelException());
+        } else if (this.fits(data)) {
+            if (!this.connection.enqueue(this, new Outbound(data, future, 0, this.id))) {
+                future.completeExceptionally(new IOException("send queue full"));
+            }
+        } else if (data.remaining() > UdpEndpoint.MESSAGE_MAX) {
+            future.completeExceptionally(new IOException("message too long"));
+        } else if (!this.fragment(data, future)) {
+            future.completeExceptionally(new IOException("send queue full"));
+        }
+        return future;
+    }
+
+    /**
+     * @see UdpConnection#sendReliable(ByteBuffer)
+     */
+    public CompletableFuture<Void> sendReliable(ByteBuffer data) {
+        if (this.connection.isRaw()) throw new IllegalStateException("raw connection");
+        if (!this.connection.endpoint().active) return CompletableFuture.failedFuture(new ClosedChannelException());
+        return this.reliable().send(data);
+    }
+
+    ReliableChannel reliable() {
+        ReliableChannel reliable = this.reliable;
+        if (reliable == null) {
+            synchronized (this) {
+                reliable = this.reliable;
+                if (reliable == null) this.reliable = reliable = new ReliableChannel(this.connection, this);
+            }
+        }
+        return reliable;
+    }
+
+    /**
+     * @return the reliable channel, null if nothing was sent or received
+     *         reliably yet
+     */
+    ReliableChannel reliableIfAny() {
+        return this.reliable;
+    }
+
+    /**
+     * Allocates a frame with the STREAM header, if any, in front.
+     *
+     * @param size  bytes of the frame inside
+     */
+    ByteBuffer allocate(int size) {
+        ByteBuffer frame = ByteBuffer.allocate(this.prefix + size);
+        if (this.prefix > 0) frame.put(0, Frame.STREAM).putShort(Frame.HEADER, (short) this.id);
+        return frame;
+    }
+
+    private boolean fits(ByteBuffer data) {
+        return this.connection.isRaw() || this.prefix + Frame.HEADER + data.remaining() <= this.connection.mtu();
+    }
+
+    /**
+     * Queues FRAGMENT frames of the data. The future goes with the last
+     * one, as the stream is sent in order.
+     */
+    private boolean fragment(ByteBuffer data, CompletableFuture<Void> future) {
+        int header = this.prefix + Frame.FRAGMENT_HEADER;
+        int chunk = this.connection.mtu() - header;
+        int count = (data.remaining() + chunk - 1) / chunk;
+        if (this.connection.outbound.remainingCapacity(this) < count) return false;
+        int id = this.connection.nextFragmentId();
+        for (int i = 0; i < count; i++) {
+            int offset = data.position() + i * chunk;
+            int length = Math.min(chunk, data.limit() - offset);
+            ByteBuffer frame = this.allocate(Frame.FRAGMENT_HEADER + length);
+            frame.put(this.prefix, Frame.FRAGMENT).putInt(this.prefix + Frame.HEADER, id)
+                .putShort(this.prefix + Frame.HEADER + Integer.BYTES, (short) i)
+                .putShort(this.prefix + Frame.HEADER + Integer.BYTES + Short.BYTES, (short) count);
+            frame.put(header, data, offset, length);
+            if (!this.connection.enqueue(this, new Outbound(frame, i == count - 1 ? future : null, header, this.id))) {
+                // the peer drops the partial message after udp.reassembly.timeout
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the stream has a listener of its own
+     */
+    boolean listening() {
+        return this.onReceiveBufferEventListener != null || this.onReceiveEventListener != null;
+    }
+
+    void deliver(ByteBuffer view, ByteBuffer buffer) {
+        Consumer<ByteBuffer> onReceiveBufferEventListener = this.onReceiveBufferEventListener;
+        if (onReceiveBufferEventListener != null) {
+            onReceiveBufferEventListener.accept(view);
+        }
+        Consumer<byte[]> onReceiveEventListener = this.onReceiveEventListener;
+        if (onReceiveEventListener != null) {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(buffer.position(), data);
+            onReceiveEventListener.accept(data);
+        }
+    }
+
+    /**
+     * Fails everything queued and not yet acknowledged.
+     */
+    void discard(IOException cause) {
+        ReliableChannel reliable = this.reliable;
+        if (reliable != null) reliable.discard(cause);
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default congestion controller: a loss and delay based window for reliable
+ * messages, and a token bucket pacing everything queued on the connection.
+ *
+ * The window starts at udp.cc.initial messages and grows by one per
+ * acknowledged message (slow start) until the first reduction, then by
+ * about one per round trip. It shrinks by 30% when a queue builds up on
+ * the path: when the round trip rises more than udp.cc.target milliseconds
+ * above the lowest seen, or when more than udp.cc.loss of a round trip's
+ * messages are lost. An overflowing queue drops runs of messages, while a
+ * lossy radio link drops a few here and there and keeps the full window.
+ * That happens at most once per round trip.
+ *
+ * The pacing rate spreads the window over a round trip. Unreliable traffic
+ * gives no feedback, so it is never paced below udp.pace.rate bytes per
+ * second, which should be set to about the uplink capacity.
+ */
+public class WindowController implements CongestionController {
+    private static final int INITIAL = Integer.getInteger("udp.cc.initial", 10);
+    private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(Long.getLong("udp.cc.target", 50));
+    private static final long RATE = Long.getLong("udp.pace.rate", 12_500_000);
+    private static final long BURST = Long.getLong("udp.pace.burst", 16 * 1024);
+    private static final double LOSS = Double.parseDouble(System.getProperty("udp.cc.loss", "0.1"));
+    private static final double BETA = 0.7;
+
+    private final TokenBucket bucket;
+    private final long floor;
+    private double window = INITIAL;
+    private double threshold = Double.MAX_VALUE;
+    private long recovery;
+    private long minRtt = Long.MAX_VALUE;
+    private long srtt = -1;
+    private double size = 0;
+    // current round trip
+    private long round;
+    private int acked = 0;
+    private int lost = 0;
+
+    public WindowController() {
+        this(RATE);
+    }
+
+    /**
+     * @param rate  bytes per second unreliable traffic may always use
+     */
+    public WindowController(long rate) {
+        if (rate < 1) throw new IllegalArgumentException("rate " + rate);
+        this.floor = rate;
+        this.bucket = new TokenBucket(rate, BURST);
+        this.recovery = this.round = System.nanoTime();
+    }
+
+    @Override
+    public synchronized long delay(int bytes, long now) {
+        return this.bucket.delay(bytes, now);
+    }
+
+    @Override
+    public synchronized void sent(int bytes, long now) {
+        this.bucket.take(bytes);
+    }
+
+    @Override
+    public synchronized int window() {
+        return (int) this.window;
+    }
+
+    @Override
+    public synchronized void acked(int bytes, long rtt, long now) {
+        this.size = this.size == 0 ? bytes : this.size + (bytes - this.size) / 8;
+        this.acked++;
+        if (rtt >= 0) {
+            this.minRtt = Math.min(this.minRtt, rtt);
+            boolean queued = rtt - this.minRtt > TARGET && now - this.recovery > this.srtt;
+            this.srtt = this.srtt < 0 ? rtt : this.srtt + (rtt - this.srtt) / 8;
+            if (queued) {
+                this.reduce(now);
+                return;
+            }
+        }
+        if (this.next(now)) return;
+        this.window += this.window < this.threshold ? 1 : 1 / this.window;
+        this.window = Math.min(this.window, ReliableChannel.WINDOW);
+        this.update();
+    }
+
+    @Override
+    public synchronized void lost(long sent, long now) {
+        // sent before the last reduction, part of a loss already reacted to
+        if (sent - this.recovery <= 0) return;
+        this.lost++;
+        this.next(now);
+    }
+
+    /**
+     * Closes the round trip once it is over and a window's worth of
+     * messages have been accounted for.
+     *
+     * @return true if it lost too much and the window was reduced
+     */
+    private boolean next(long now) {
+        if (now - this.round < Math.max(this.srtt, 0) || this.acked + this.lost < this.window) return false;
+        boolean congested = this.lost > LOSS * (this.acked + this.lost);
+        this.round = now;
+        this.acked = 0;
+        this.lost = 0;
+        if (congested) this.reduce(now);
+        return congested;
+    }
+
+    private void reduce(long now) {
+        this.window = this.threshold = Math.max(this.window * BETA, 2);
+        this.recovery = now;
+        this.update();
+    }
+
+    private void update() {
+        if (this.srtt <= 0) return;
+        // twice the window per round trip in slow start, so pacing never holds it back
+        double gain = this.window < this.threshold ? 2 : 1.25;
+        long rate = (long) (gain * this.window * this.size * 1e9 / this.srtt);
+        this.bucket.rate(Math.max(rate, this.floor));
+    }
+
+    @Override
+    public synchronized long rate() {
+        return this.bucket.rate();
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.network.global;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+////////////////////////////////////////////////////////////////////
+// message format
+////////////////////////////////////////////////////////////////////
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |  Magic (0xD7) |     Type      |        Request ...            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |  ... Request  |   ID Length   |     ID (UTF-8) ...            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// REGISTER, LOOKUP, NOT_FOUND and UNREGISTER carry nothing more.
+// CONNECT is followed by the requester's ID, length first.
+// REGISTERED, FOUND and PUNCH are followed by an address:
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// | Family (4|6)  |             Port              | Address ...
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// and REGISTERED by the TTL in milliseconds (32 bits) after it.
+//
+// Request 0 is unsolicited: keepalive REGISTERs, and the PUNCH sent to
+// the peer a CONNECT names. Magic 0xD7 is never the first byte of a STUN
+// message, whose top two bits are 0.
+
+/**
+ * Messages between {@link RendezvousClient} and {@link RendezvousServer}.
+ */
+final class Rendezvous {
+    static final byte MAGIC = (byte) 0xD7;
+    static final byte REGISTER = 1;
+    static final byte REGISTERED = 2;
+    static final byte LOOKUP = 3;
+    static final byte FOUND = 4;
+    static final byte NOT_FOUND = 5;
+    static final byte CONNECT = 6;
+    static final byte PUNCH = 7;
+    static final byte UNREGISTER = 8;
+
+    static final int HEADER = 7;
+    static final int ID_MAX = 255;
+    // magic, type, request, ID length and two IDs, an IPv6 address and the TTL
+    static final int SIZE_MAX = HEADER + ID_MAX + 1 + ID_MAX + 19 + Integer.BYTES;
+
+    private Rendezvous() {}
+
+    static byte[] encode(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || bytes.length > ID_MAX) throw new IllegalArgumentException("id length " + bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Starts a message at the buffer's position.
+     */
+    static ByteBuffer put(ByteBuffer buffer, byte type, int request, byte[] id) {
+        return buffer.put(MAGIC).put(type).putInt(request).put((byte) id.length).put(id);
+    }
+
+    static ByteBuffer put(ByteBuffer buffer, InetSocketAddress address) {
+        byte[] bytes = address.getAddress().getAddress();
+        return buffer.put((byte) (bytes.length == 4 ? 4 : 6)).putShort((short) address.getPort()).put(bytes);
+    }
+
+    /**
+     * @return false if the datagram is not a message, or too short for its
+     *         ID
+     */
+    static boolean valid(ByteBuffer buffer) {
+        int position = buffer.position();
+        if (buffer.remaining() < HEADER || buffer.get(position) != MAGIC) return false;
+        int length = buffer.get(position + HEADER - 1) & 0xff;
+        return length > 0 && buffer.remaining() >= HEADER + length;
+    }
+
+    static byte type(ByteBuffer buffer) {
+        return buffer.get(buffer.position() + 1);
+    }
+
+    static int request(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position() + 2);
+    }
+
+    static String id(ByteBuffer buffer) {
+        return new String(bytes(buffer, buffer.position() + HEADER - 1), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Bytes of the ID whose length is at the offset.
+     */
+    static byte[] bytes(ByteBuffer buffer, int offset) {
+        byte[] id = new byte[buffer.get(offset) & 0xff];
+        buffer.get(offset + 1, id);
+        return id;
+    }
+
+    /**
+     * Offset of whatever follows the ID.
+     */
+    static int body(ByteBuffer buffer) {
+        return buffer.position() + HEADER + (buffer.get(buffer.position() + HEADER - 1) & 0xff);
+    }
+
+    /**
+     * Address at the offset.
+     *
+     * @return null if it is malformed
+     */
+    static InetSocketAddress address(ByteBuffer buffer, int offset) throws UnknownHostException {
+        if (buffer.limit() - offset < 3) return null;
+        byte family = buffer.get(offset);
+        byte[] address = new byte[family == 4 ? 4 : family == 6 ? 16 : 0];
+        if (address.length == 0 || buffer.limit() - offset < 3 + address.length) return null;
+        buffer.get(offset + 3, address);
+        return new InetSocketAddress(InetAddress.getByAddress(address), buffer.getShort(offset + 1) & 0xffff);
+    }
+
+    /**
+     * Bytes of the address at the offset.
+     */
+    static int length(ByteBuffer buffer, int offset) {
+        return 3 + (buffer.get(offset) == 4 ? 4 : 16);
+    }
+}
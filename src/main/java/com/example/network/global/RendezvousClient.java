@@ -0,0 +1,206 @@
+package com.example.network.global;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+import com.example.Utils;
+import com.example.network.TimingWheel;
+import com.example.network.UdpConnectionManager;
+import com.example.network.UdpConnectionManager.UdpConnection;
+import com.example.network.UdpEndpoint;
+
+/**
+ * Client of a {@link RendezvousServer}, over a raw connection on the
+ * endpoint's shared socket, so the server sees the same mapped address
+ * peers have to punch.
+ *
+ * Takes over the connection's generator and receive listener: every
+ * keepalive of the connection registers the ID again, which keeps both the
+ * registration and the NAT mapping alive. Requests are sent again after
+ * rendezvous.rto, 2 rendezvous.rto and so on, rendezvous.retries times.
+ */
+public class RendezvousClient {
+    private static final Logger logger = System.getLogger(RendezvousClient.class.getName());
+    private static final long RTO = Long.getLong("rendezvous.rto", 500);
+    private static final int RETRIES = Integer.getInteger("rendezvous.retries", 4);
+
+    private class Pending {
+        private final byte type;
+        private final ByteBuffer request;
+        private final CompletableFuture<InetSocketAddress> future = new CompletableFuture<>();
+        private int sent = 0;
+
+        private Pending(byte type, ByteBuffer request) {
+            this.type = type;
+            this.request = request;
+        }
+    }
+
+    private final UdpConnection connection;
+    private final String id;
+    private final byte[] name;
+    private final TimingWheel timer = UdpConnectionManager.getTimer();
+    private final ConcurrentMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile InetSocketAddress mapped;
+    private volatile BiConsumer<String, InetSocketAddress> onPunchEventListener;
+
+    /**
+     * Adds a raw connection to the server to the endpoint.
+     */
+    public RendezvousClient(UdpEndpoint endpoint, InetSocketAddress server, String id) {
+        this(endpoint.add(server).raw(), id);
+    }
+
+    /**
+     * @param id  up to 255 bytes of UTF-8
+     */
+    public RendezvousClient(UdpConnection connection, String id) {
+        this.name = Rendezvous.encode(id);
+        this.id = id;
+        this.connection = connection
+            .generator(this::keepalive)
+            .onReceiveBuffer(this::receive);
+    }
+
+    /**
+     * Called with the peer's ID and address when the server says to punch,
+     * on either side of a {@link #connect(String)}. Opening the connection
+     * to the address right away is what makes both sides punch together.
+     * A retransmitted CONNECT calls it again for the same peer.
+     */
+    public RendezvousClient onPunch(BiConsumer<String, InetSocketAddress> onPunchEventListener) {
+        this.onPunchEventListener = onPunchEventListener;
+        return this;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public UdpConnection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Address the server last saw this client at, null until registered.
+     */
+    public InetSocketAddress getMapped() {
+        return this.mapped;
+    }
+
+    /**
+     * Registers the ID, which the connection's keepalives then repeat.
+     *
+     * @return the address the server registered
+     */
+    public CompletableFuture<InetSocketAddress> register() {
+        return this.request(Rendezvous.REGISTER, this.name, null);
+    }
+
+    /**
+     * @return the peer's address, null if the ID is not registered
+     */
+    public CompletableFuture<InetSocketAddress> lookup(String id) {
+        return this.request(Rendezvous.LOOKUP, Rendezvous.encode(id), null);
+    }
+
+    /**
+     * Asks the server to have this client and the peer punch. The peer's
+     * onPunch listener is called with this client's ID and address, and
+     * this client's with the peer's.
+     *
+     * @return the peer's address, fails if the ID is not registered
+     */
+    public CompletableFuture<InetSocketAddress> connect(String id) {
+        return this.request(Rendezvous.CONNECT, Rendezvous.encode(id), this.name);
+    }
+
+    private CompletableFuture<InetSocketAddress> request(byte type, byte[] id, byte[] from) {
+        int request;
+        // 0 is for unsolicited messages
+        while ((request = this.requests.incrementAndGet()) == 0);
+        ByteBuffer message = ByteBuffer.allocate(Rendezvous.HEADER + id.length + (from != null ? 1 + from.length : 0));
+        Rendezvous.put(message, type, request, id);
+        if (from != null) message.put((byte) from.length).put(from);
+        Pending pending = new Pending(type, message.flip());
+        int key = request;
+        this.pending.put(key, pending);
+        pending.future.whenComplete((address, e) -> this.pending.remove(key));
+        this.transmit(pending);
+        return pending.future;
+    }
+
+    private void transmit(Pending pending) {
+        if (pending.future.isDone()) return;
+        if (pending.sent > RETRIES) {
+            pending.future.completeExceptionally(new SocketTimeoutException("rendezvous request timed out"));
+            return;
+        }
+        this.connection.offer(pending.request.duplicate());
+        this.timer.schedule(() -> this.transmit(pending), RTO << pending.sent++, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Generator of the connection's keepalives.
+     */
+    private ByteBuffer keepalive() {
+        ByteBuffer message = ByteBuffer.allocate(Rendezvous.HEADER + this.name.length);
+        return Rendezvous.put(message, Rendezvous.REGISTER, 0, this.name).flip();
+    }
+
+    private void receive(ByteBuffer data) {
+        if (!Rendezvous.valid(data)) return;
+        byte type = Rendezvous.type(data);
+        int request = Rendezvous.request(data);
+        InetSocketAddress address = null;
+        if (type == Rendezvous.REGISTERED || type == Rendezvous.FOUND || type == Rendezvous.PUNCH) {
+            try {
+                address = Rendezvous.address(data, Rendezvous.body(data));
+            } catch (UnknownHostException e) {
+                // malformed
+            }
+            if (address == null) return;
+        }
+        if (type == Rendezvous.REGISTERED) this.mapped = address;
+        if (type == Rendezvous.PUNCH) {
+            String peer = Rendezvous.id(data);
+            logger.log(Level.INFO, "punch {0} at {1}", peer, Utils.format(address));
+            BiConsumer<String, InetSocketAddress> listener = this.onPunchEventListener;
+            if (listener != null) listener.accept(peer, address);
+        }
+        Pending pending = request != 0 ? this.pending.get(request) : null;
+        if (pending == null) return;
+        if (type == Rendezvous.NOT_FOUND && pending.type == Rendezvous.CONNECT) {
+            pending.future.completeExceptionally(new IOException("not registered : " + Rendezvous.id(data)));
+        } else {
+            pending.future.complete(address);
+        }
+    }
+
+    /**
+     * Withdraws the registration and fails every outstanding request. The
+     * connection's keepalives are empty from then on.
+     */
+    public void close() {
+        this.connection.generator(() -> ByteBuffer.allocate(0));
+        ByteBuffer message = ByteBuffer.allocate(Rendezvous.HEADER + this.name.length);
+        this.connection.offer(Rendezvous.put(message, Rendezvous.UNREGISTER, 0, this.name).flip());
+        for (Pending pending: this.pending.values()) {
+            pending.future.completeExceptionally(new ClosedChannelException());
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.network.global;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+import com.example.Utils;
+
+/**
+ * Rendezvous server: peers register the address it sees them at under an
+ * ID, look each other up, and ask for a connection, upon which both are
+ * sent the other's address at the same moment so they punch together.
+ *
+ * Registrations live in memory and expire rendezvous.ttl after the last
+ * REGISTER, which clients repeat as their keepalive. One thread serves
+ * the socket and owns the index, so it needs no locks; the index is kept
+ * in order of the last REGISTER, which makes expiry a walk from the head
+ * that stops at the first live entry.
+ *
+ * The last REGISTER of an ID wins, whichever address it comes from; the
+ * server does not authenticate peers.
+ */
+public class RendezvousServer {
+    private static final Logger logger = System.getLogger(RendezvousServer.class.getName());
+
+    private record Registration(InetSocketAddress address, long expires) {}
+
+    private final int port;
+    private final long ttl;
+    private final int capacity;
+    // in order of expiry, receiver thread only
+    private final LinkedHashMap<String, Registration> registrations = new LinkedHashMap<>();
+    private volatile int size = 0;
+    private final LongAdder dropped = new LongAdder();
+    private DatagramChannel channel;
+    private Selector selector;
+    private Thread receiver;
+    private volatile boolean active = false;
+
+    /**
+     * Server configured by the rendezvous.port, rendezvous.ttl and
+     * rendezvous.capacity system properties.
+     */
+    public RendezvousServer() {
+        this(
+            Integer.getInteger("rendezvous.port", 3480),
+            Long.getLong("rendezvous.ttl", 60_000),
+            Integer.getInteger("rendezvous.capacity", 100_000)
+        );
+    }
+
+    /**
+     * @param ttl       milliseconds a registration lasts without a REGISTER
+     * @param capacity  registrations at most, REGISTERs of new IDs beyond
+     *                  it are dropped
+     */
+    public RendezvousServer(int port, long ttl, int capacity) {
+        if (port < 0 || port > 65535) throw new IllegalArgumentException("port " + port);
+        if (ttl < 1) throw new IllegalArgumentException("ttl " + ttl);
+        if (capacity < 1) throw new IllegalArgumentException("capacity " + capacity);
+        this.port = port;
+        this.ttl = ttl;
+        this.capacity = capacity;
+    }
+
+    public int getPort() {
+        return this.channel.socket().getLocalPort();
+    }
+
+    /**
+     * Registrations, expired ones included until the next sweep.
+     */
+    public int getRegistrations() {
+        return this.size;
+    }
+
+    /**
+     * Malformed datagrams, and REGISTERs beyond the capacity.
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    public void start() throws IOException {
+        if (this.active) return;
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.bind(new InetSocketAddress(this.port));
+        this.selector = Selector.open();
+        this.channel.register(this.selector, SelectionKey.OP_READ);
+        logger.log(Level.INFO, "rendezvous port : {0}", this.getPort());
+        this.receiver = new Thread(this::receive, "Rendezvous Server");
+        this.active = true;
+        this.receiver.start();
+    }
+
+    public void stop() throws InterruptedException, IOException {
+        if (!this.active) return;
+        logger.log(Level.INFO, "stop rendezvous server");
+        this.active = false;
+        this.selector.wakeup();
+        this.receiver.join();
+        this.selector.close();
+        this.channel.close();
+    }
+
+    private void receive() {
+        ByteBuffer in = ByteBuffer.allocateDirect(Rendezvous.SIZE_MAX);
+        ByteBuffer out = ByteBuffer.allocateDirect(Rendezvous.SIZE_MAX);
+        while (this.active) {
+            try {
+                this.selector.select(key -> {}, this.sweep());
+                while (this.active) {
+                    SocketAddress socket = this.channel.receive(in.clear());
+                    if (socket == null) break;
+                    if (!(socket instanceof InetSocketAddress client) || !Rendezvous.valid(in.flip())) {
+                        this.dropped.increment();
+                        continue;
+                    }
+                    this.handle(in, out, client);
+                }
+            } catch (Exception e) {
+                if (this.active) logger.log(Level.ERROR, "rendezvous receive error", e);
+            }
+        }
+    }
+
+    /**
+     * Drops the expired registrations.
+     *
+     * @return milliseconds until the next one expires, 0 if there are none
+     */
+    private long sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<Registration> iterator = this.registrations.values().iterator();
+        while (iterator.hasNext()) {
+            Registration registration = iterator.next();
+            if (registration.expires() > now) {
+                this.size = this.registrations.size();
+                return registration.expires() - now;
+            }
+            iterator.remove();
+        }
+        this.size = 0;
+        return 0;
+    }
+
+    private void handle(ByteBuffer in, ByteBuffer out, InetSocketAddress client) throws IOException {
+        int request = Rendezvous.request(in);
+        byte[] name = Rendezvous.bytes(in, in.position() + Rendezvous.HEADER - 1);
+        String id = new String(name, StandardCharsets.UTF_8);
+        switch (Rendezvous.type(in)) {
+            case Rendezvous.REGISTER -> {
+                // moved to the back, the order stays that of expiry
+                Registration previous = this.registrations.remove(id);
+                if (previous == null && this.registrations.size() >= this.capacity) {
+                    this.dropped.increment();
+                    return;
+                }
+                this.registrations.put(id, new Registration(client, System.currentTimeMillis() + this.ttl));
+                this.size = this.registrations.size();
+                if (previous == null || !previous.address().equals(client)) {
+                    logger.log(Level.DEBUG, "register {0} at {1}", id, Utils.format(client));
+                }
+                Rendezvous.put(Rendezvous.put(out.clear(), Rendezvous.REGISTERED, request, name), client).putInt((int) this.ttl);
+                this.channel.send(out.flip(), client);
+            }
+            case Rendezvous.UNREGISTER -> {
+                Registration registration = this.registrations.get(id);
+                if (registration != null && registration.address().equals(client)) {
+                    this.registrations.remove(id);
+                    this.size = this.registrations.size();
+                }
+            }
+            case Rendezvous.LOOKUP -> {
+                Registration registration = this.live(id);
+                if (registration != null) {
+                    Rendezvous.put(Rendezvous.put(out.clear(), Rendezvous.FOUND, request, name), registration.address());
+                } else {
+                    Rendezvous.put(out.clear(), Rendezvous.NOT_FOUND, request, name);
+                }
+                this.channel.send(out.flip(), client);
+            }
+            case Rendezvous.CONNECT -> {
+                int body = Rendezvous.body(in);
+                if (in.limit() <= body || in.limit() < body + 1 + (in.get(body) & 0xff) || in.get(body) == 0) {
+                    this.dropped.increment();
+                    return;
+                }
+                Registration registration = this.live(id);
+                if (registration == null) {
+                    Rendezvous.put(out.clear(), Rendezvous.NOT_FOUND, request, name);
+                    this.channel.send(out.flip(), client);
+                    return;
+                }
+                // both at once, each with the other's address
+                byte[] from = Rendezvous.bytes(in, body);
+                Rendezvous.put(Rendezvous.put(out.clear(), Rendezvous.PUNCH, 0, from), client);
+                this.channel.send(out.flip(), registration.address());
+                Rendezvous.put(Rendezvous.put(out.clear(), Rendezvous.PUNCH, request, name), registration.address());
+                this.channel.send(out.flip(), client);
+            }
+            default -> this.dropped.increment();
+        }
+    }
+
+    /**
+     * @return the registration, null if there is none or it expired
+     */
+    private Registration live(String id) {
+        Registration registration = this.registrations.get(id);
+        return registration != null && registration.expires() > System.currentTimeMillis() ? registration : null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        RendezvousServer server = new RendezvousServer();
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.stop();
+            } catch (InterruptedException | IOException e) {
+                logger.log(Level.ERROR, "rendezvous server stop error", e);
+            }
+        }));
+    }
+}
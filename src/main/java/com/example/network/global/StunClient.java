@@ -1,16 +1,13 @@
 package com.example.network.global;
 
-import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
 import java.util.Collections;
-import java.util.Random;
-import java.util.concurrent.FutureTask;
 
 import com.example.Utils;
+import com.example.network.UdpEndpoint;
 
 ////////////////////////////////////////////////////////////////////
 // request format
@@ -64,11 +61,22 @@ import com.example.Utils;
 public class StunClient {
     public static enum MessageType {
         BINDING_REQUEST((short)0x0001),
-        BINDING_SUCCESS_RESPONSE((short)0x0101);
+        BINDING_INDICATION((short)0x0011),
+        BINDING_SUCCESS_RESPONSE((short)0x0101),
+        BINDING_ERROR_RESPONSE((short)0x0111);
         private final short value;
         private MessageType(short value) {
             this.value = value;
         }
+        public static MessageType of(short value) {
+            return switch (value) {
+                case 0x0001 -> BINDING_REQUEST;
+                case 0x0011 -> BINDING_INDICATION;
+                case 0x0101 -> BINDING_SUCCESS_RESPONSE;
+                case 0x0111 -> BINDING_ERROR_RESPONSE;
+                default -> null;
+            };
+        }
         public short value() {
             return this.value;
         }
@@ -76,7 +84,27 @@ public class StunClient {
 
     public static enum AttributeType {
         MAPPED_ADDRESS((short)0x0001, false),
-        XOR_MAPPED_ADDRESS((short)0x0020, true);
+        CHANGE_REQUEST((short)0x0003, false),
+        USERNAME((short)0x0006, false),
+        MESSAGE_INTEGRITY((short)0x0008, false),
+        ERROR_CODE((short)0x0009, false),
+        UNKNOWN_ATTRIBUTES((short)0x000A, false),
+        REALM((short)0x0014, false),
+        NONCE((short)0x0015, false),
+        XOR_MAPPED_ADDRESS((short)0x0020, true),
+        SOFTWARE((short)0x8022, false),
+        ALTERNATE_SERVER((short)0x8023, false),
+        FINGERPRINT((short)0x8028, false),
+        RESPONSE_ORIGIN((short)0x802B, false),
+        OTHER_ADDRESS((short)0x802C, false);
+        // by the low bits, comprehension-required and optional types apart
+        private static final AttributeType[] REQUIRED = new AttributeType[0x40];
+        private static final AttributeType[] OPTIONAL = new AttributeType[0x40];
+        static {
+            for (AttributeType item: AttributeType.values()) {
+                (item.value < 0 ? OPTIONAL : REQUIRED)[item.value & 0x7fff] = item;
+            }
+        }
         private final short value;
         private final boolean mask;
         private AttributeType(short value, boolean mask) {
@@ -84,10 +112,9 @@ public class StunClient {
             this.mask = mask;
         }
         public static AttributeType of(short value) {
-            for (AttributeType item: AttributeType.values()) {
-                if (item.value() == value) return item;
-            }
-            return null;
+            AttributeType[] table = value < 0 ? OPTIONAL : REQUIRED;
+            int index = value & 0x7fff;
+            return index < table.length ? table[index] : null;
         }
         public short value() {
             return this.value;
@@ -107,10 +134,11 @@ public class StunClient {
             this.length = length;
         }
         public static MappedAddressFamily of(short value) {
-            for (MappedAddressFamily item: MappedAddressFamily.values()) {
-                if (item.value() == value) return item;
-            }
-            return null;
+            return switch (value) {
+                case 0x0001 -> IPv4;
+                case 0x0002 -> IPv6;
+                default -> null;
+            };
         }
         public short value() {
             return this.value;
@@ -120,23 +148,23 @@ public class StunClient {
         }
     }
 
-    private static final int COOKIE = 0x2112A442;
+    private static final int COOKIE = StunMessage.COOKIE;
+    // per thread, for the static methods
+    private static final ThreadLocal<StunMessage> message = ThreadLocal.withInitial(StunMessage::new);
+    private static final SecureRandom random = new SecureRandom();
 
     public static ByteBuffer generateRequest() {
-        return generateRequest(
-            COOKIE,
-            new Random().nextInt(),
-            new Random().nextInt(),
-            new Random().nextInt()
-        );
+        ByteBuffer request = ByteBuffer.allocate(StunMessage.HEADER);
+        message.get().request(request, MessageType.BINDING_REQUEST);
+        return request.flip();
     }
 
     public static ByteBuffer generateRequest(int cookie) {
         return generateRequest(
             cookie,
-            new Random().nextInt(),
-            new Random().nextInt(),
-            new Random().nextInt()
+            random.nextInt(),
+            random.nextInt(),
+            random.nextInt()
         );
     }
 
@@ -160,102 +188,59 @@ public class StunClient {
         return request.flip();
     }
 
+    /**
+     * Mapped address of a binding success response, XOR-MAPPED-ADDRESS
+     * rather than MAPPED-ADDRESS if it has both. The buffer is left as it is.
+     *
+     * @return null if it is not a valid binding success response or has no
+     *         mapped address
+     */
     public static InetSocketAddress parseResponse(ByteBuffer response) throws UnknownHostException {
-        short messageType = response.getShort();
-        int messageLength = Utils.ushort2int(response.getShort());
-        if (messageType == MessageType.BINDING_SUCCESS_RESPONSE.value()) {
-            int cookie = response.getInt();
-            byte[] tran = new byte[96 / 8];
-            response.get(tran);
-            int limit = response.position() + messageLength;
-            while (response.position() < limit) {
-                AttributeType attributeType = AttributeType.of(response.getShort());
-                int attributeLength = Utils.ushort2int(response.getShort());
-                if (attributeType != null) {
-                    MappedAddressFamily family = MappedAddressFamily.of(response.getShort());
-                    int port = Utils.ushort2int(response.getShort());
-                    if (family != null) {
-                        byte[] addr = new byte[family.length()];
-                        response.get(addr);
-                        if (attributeType.mask()) {
-                            port = port ^ (cookie >> 16);
-                            byte[] mask = ByteBuffer.allocate(128 / 8).putInt(cookie).put(tran).array();
-                            for (int i = 0; i < addr.length; i++) addr[i] ^= mask[i];
-                        }
-                        return new InetSocketAddress(InetAddress.getByAddress(addr), port);
-                    } else {
-                        response.position(
-                            response.position() + (attributeLength - 4) // family(2byte), port(2byte)
-                        );
-                    }
-                } else {
-                    response.position(response.position() + attributeLength);
-                }
-            }
+        StunMessage message = StunClient.message.get();
+        if (!message.wrap(response) || !message.is(MessageType.BINDING_SUCCESS_RESPONSE)) return null;
+        InetSocketAddress mapped = null;
+        while (message.next()) {
+            AttributeType type = message.attribute();
+            if (type != AttributeType.XOR_MAPPED_ADDRESS && (type != AttributeType.MAPPED_ADDRESS || mapped != null)) continue;
+            InetSocketAddress address = message.socketAddress();
+            if (address == null) continue;
+            mapped = address;
+            if (type == AttributeType.XOR_MAPPED_ADDRESS) break;
         }
-        return null;
+        return mapped;
     }
 
-    public static void main(String[] args) throws IOException {
-        InetSocketAddress server = new InetSocketAddress(
-            System.getProperty("stun.server.addr", "stun.l.google.com"),
-            Integer.getInteger("stun.server.port", 19302)
+    public static void main(String[] args) throws Exception {
+        String servers = args.length > 0 ? String.join(",", args) : System.getProperty(
+            "stun.servers",
+            "stun.l.google.com:19302,stun1.l.google.com:19302"
         );
 
-        DatagramChannel channel = DatagramChannel.open();
-
-        for (InetAddress addr: InetAddress.getAllByName(server.getHostName())) {
-            try {
-                ByteBuffer request = StunClient.generateRequest();
-                InetSocketAddress target = new InetSocketAddress(addr, server.getPort());
-
-                FutureTask<byte[]> task = new FutureTask<>(() -> {
-                    while (true) {
-                        ByteBuffer buf = ByteBuffer.allocate(65535);
-                        if (channel.receive(buf) instanceof InetSocketAddress sender) {
-                            if (sender.equals(target)) {
-                                byte[] data = new byte[buf.flip().limit()];
-                                buf.get(data);
-                                return data;
-                            }
-                        }
-                        Thread.sleep(1);
-                    }
-                });
-                new Thread(task).start();
-
-                channel.send(request, target);
-                byte[] data = new byte[request.limit()];
-                request.position(0).get(data);
-                System.out.println(String.format(
-                    "send stun to %s:%d",
-                    addr.getHostAddress(),
-                    server.getPort()
-                ));
-                Utils.printBytes(data);
-
-                byte[] response = task.get();
-                System.out.println(String.format(
-                    "receive stun from %s:%d",
-                    target.getAddress().getHostAddress(),
-                    target.getPort()
-                ));
-                Utils.printBytes(response);
-
-                InetSocketAddress mapped = StunClient.parseResponse(ByteBuffer.wrap(response));
-                if (mapped != null) {
-                    System.out.println(String.format(
-                        "mapped addr=%s, port=%d",
-                        mapped.getAddress().getHostAddress(),
-                        mapped.getPort()
-                    ));
-                } else {
-                    System.err.println("error.");
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        endpoint.start();
+        try {
+            StunDiscovery discovery = new StunDiscovery(endpoint, StunDiscovery.resolve(servers));
+            for (StunTransactionManager server: discovery.getServers()) {
+                System.out.println(String.format("send stun to %s", Utils.format(server.getConnection().getHost())));
             }
+
+            InetSocketAddress mapped = discovery.discover().get();
+            System.out.println(String.format(
+                "mapped addr=%s, port=%d",
+                mapped.getAddress().getHostAddress(),
+                mapped.getPort()
+            ));
             System.out.println(String.join("", Collections.nCopies(80, "=")));
+
+            StunDiscovery.Behavior behavior = discovery.classify().get();
+            System.out.println(String.format(
+                "mapping=%s, filtering=%s%s",
+                behavior.mapping(),
+                behavior.filtering(),
+                behavior.isSymmetric() ? " (symmetric)" : ""
+            ));
+        } finally {
+            endpoint.stop();
         }
     }
-}
\ No newline at end of file
+}
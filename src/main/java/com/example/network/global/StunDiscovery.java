@@ -0,0 +1,290 @@
+package com.example.network.global;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+import com.example.Utils;
+import com.example.network.UdpConnectionManager.UdpConnection;
+import com.example.network.UdpEndpoint;
+import com.example.network.global.StunTransactionManager.Binding;
+
+/**
+ * Queries a list of STUN servers at once over an endpoint's shared socket.
+ *
+ * {@link #discover()} takes the mapped address from whichever server
+ * answers first. {@link #classify()} compares the mapped addresses the
+ * servers report to find the NAT's mapping behaviour, and asks an RFC 5780
+ * server, if there is one, to answer from its other address and port to
+ * find the filtering behaviour (RFC 5780 sections 4.3 and 4.4). A NAT
+ * whose mapping depends on the destination, a symmetric NAT, gives a
+ * peer a different address than the STUN servers report, so punching
+ * through it is not worth trying.
+ */
+public class StunDiscovery {
+    private static final Logger logger = System.getLogger(StunDiscovery.class.getName());
+    // how long a classification test waits for an answer
+    private static final long TIMEOUT = Long.getLong("stun.nat.timeout", 3_000);
+
+    public enum Mapping {
+        ENDPOINT_INDEPENDENT,
+        ADDRESS_DEPENDENT,
+        ADDRESS_AND_PORT_DEPENDENT,
+        UNKNOWN;
+    }
+
+    public enum Filtering {
+        ENDPOINT_INDEPENDENT,
+        ADDRESS_DEPENDENT,
+        ADDRESS_AND_PORT_DEPENDENT,
+        UNKNOWN;
+    }
+
+    public record Behavior(InetSocketAddress mapped, Mapping mapping, Filtering filtering) {
+        /**
+         * Mapping depends on the destination, hole punching is unlikely to
+         * work.
+         */
+        public boolean isSymmetric() {
+            return this.mapping == Mapping.ADDRESS_DEPENDENT || this.mapping == Mapping.ADDRESS_AND_PORT_DEPENDENT;
+        }
+    }
+
+    /**
+     * Mapped address reported by a server.
+     */
+    record Observation(InetSocketAddress server, InetSocketAddress mapped) {}
+
+    private final UdpEndpoint endpoint;
+    private final List<StunTransactionManager> servers = new ArrayList<>();
+
+    /**
+     * Adds a raw connection for each server to the endpoint.
+     */
+    public StunDiscovery(UdpEndpoint endpoint, Collection<InetSocketAddress> servers) {
+        if (servers.isEmpty()) throw new IllegalArgumentException("no stun servers");
+        this.endpoint = endpoint;
+        for (InetSocketAddress server: servers) {
+            this.servers.add(new StunTransactionManager(endpoint.add(server).raw()));
+        }
+    }
+
+    /**
+     * Resolves a comma separated list of host:port, every address of each
+     * host. Hosts that do not resolve are left out.
+     */
+    public static List<InetSocketAddress> resolve(String servers) {
+        List<InetSocketAddress> resolved = new ArrayList<>();
+        for (String server: servers.split(",")) {
+            server = server.strip();
+            if (server.isEmpty()) continue;
+            int colon = server.lastIndexOf(':');
+            String host = colon > 0 ? server.substring(0, colon) : server;
+            int port = colon > 0 ? Integer.parseInt(server.substring(colon + 1)) : 3478;
+            if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+            try {
+                for (InetAddress address: InetAddress.getAllByName(host)) {
+                    resolved.add(new InetSocketAddress(address, port));
+                }
+            } catch (UnknownHostException e) {
+                logger.log(Level.WARNING, "unknown stun server : {0}", host);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Transaction managers of the servers, in the order given.
+     */
+    public List<StunTransactionManager> getServers() {
+        return this.servers;
+    }
+
+    /**
+     * Mapped address from the first server to answer; the other requests
+     * are abandoned then.
+     *
+     * @return fails if no server answers
+     */
+    public CompletableFuture<InetSocketAddress> discover() {
+        return this.discover(this.servers);
+    }
+
+    /**
+     * Mapped address from the first server of the family to answer, which
+     * over IPv6 is usually a host address, as there is no NAT.
+     *
+     * @return fails if no server of the family answers, or there is none
+     */
+    public CompletableFuture<InetSocketAddress> discover(StandardProtocolFamily family) {
+        Class<? extends InetAddress> type = family == StandardProtocolFamily.INET ? Inet4Address.class : Inet6Address.class;
+        List<StunTransactionManager> servers = this.servers.stream()
+            .filter(server -> type.isInstance(server.getConnection().getHost().getAddress()))
+            .toList();
+        if (servers.isEmpty()) return CompletableFuture.failedFuture(new IOException("no stun servers of " + family));
+        return this.discover(servers);
+    }
+
+    private CompletableFuture<InetSocketAddress> discover(List<StunTransactionManager> servers) {
+        CompletableFuture<InetSocketAddress> result = new CompletableFuture<>();
+        List<CompletableFuture<Binding>> requests = new ArrayList<>();
+        AtomicInteger failed = new AtomicInteger();
+        for (StunTransactionManager server: servers) {
+            requests.add(server.request(false, false));
+        }
+        for (CompletableFuture<Binding> request: requests) {
+            request.whenComplete((binding, e) -> {
+                if (e == null && binding.mapped() != null) {
+                    if (result.complete(binding.mapped())) requests.forEach(other -> other.cancel(false));
+                } else if (failed.incrementAndGet() == requests.size()) {
+                    result.completeExceptionally(e != null ? e : new IOException("no mapped address"));
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Runs the mapping tests against every server, and the filtering
+     * tests against the first RFC 5780 server. Takes up to
+     * stun.nat.timeout for each round of tests if servers do not answer.
+     */
+    public CompletableFuture<Behavior> classify() {
+        // the tests run one after another, blocking a virtual thread
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.run();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, task -> Thread.ofVirtual().name("STUN Classify").start(task));
+    }
+
+    private Behavior run() throws IOException {
+        // test I against every server
+        List<CompletableFuture<Binding>> requests = new ArrayList<>();
+        for (StunTransactionManager server: this.servers) requests.add(this.request(server, false, false));
+        List<Observation> observations = new ArrayList<>();
+        StunTransactionManager primary = null;
+        InetSocketAddress other = null;
+        for (int i = 0; i < requests.size(); i++) {
+            Binding binding = requests.get(i).exceptionally(e -> null).join();
+            if (binding == null || binding.mapped() == null) continue;
+            StunTransactionManager server = this.servers.get(i);
+            observations.add(new Observation(server.getConnection().getHost(), binding.mapped()));
+            if (primary == null && binding.other() != null) {
+                primary = server;
+                other = binding.other();
+            }
+        }
+        if (observations.isEmpty()) throw new IOException("no stun server answered");
+
+        List<UdpConnection> added = new ArrayList<>();
+        try {
+            // filtering first: once anything is sent to the other address,
+            // the NAT lets its answers through whatever it filters
+            Filtering filtering = primary != null ? this.filtering(primary, other, added) : Filtering.UNKNOWN;
+
+            // tests II and III of an RFC 5780 server, to its other address and
+            // to its other address with the primary port
+            if (primary != null) {
+                InetSocketAddress host = primary.getConnection().getHost();
+                for (InetSocketAddress target: List.of(new InetSocketAddress(other.getAddress(), host.getPort()), other)) {
+                    UdpConnection connection = this.endpoint.get(target);
+                    if (connection == null) {
+                        connection = this.add(target, added);
+                    } else if (!added.contains(connection)) {
+                        // used by the application
+                        continue;
+                    }
+                    Binding binding = this.request(new StunTransactionManager(connection), false, false).exceptionally(e -> null).join();
+                    if (binding != null && binding.mapped() != null) observations.add(new Observation(target, binding.mapped()));
+                }
+            }
+            Mapping mapping = mapping(observations);
+            Behavior behavior = new Behavior(observations.get(0).mapped(), mapping, filtering);
+            logger.log(Level.INFO, "nat mapping : {0}, filtering : {1}", mapping, filtering);
+            return behavior;
+        } finally {
+            for (UdpConnection connection: added) this.endpoint.remove(connection.getHost());
+            // servers whose responses the filtering tests took over
+            for (StunTransactionManager server: this.servers) server.listen(server.getConnection());
+        }
+    }
+
+    /**
+     * Tests II and III of RFC 5780 section 4.4: the server answers from its
+     * other address and port, then from its other port only. Valid only
+     * while nothing was sent to either.
+     */
+    private Filtering filtering(StunTransactionManager primary, InetSocketAddress other, List<UdpConnection> added) {
+        InetSocketAddress host = primary.getConnection().getHost();
+        InetSocketAddress otherPort = new InetSocketAddress(host.getAddress(), other.getPort());
+        for (InetSocketAddress origin: List.of(other, otherPort)) {
+            UdpConnection connection = this.endpoint.get(origin);
+            if (connection == null) connection = this.add(origin, added);
+            if (connection != null) primary.listen(connection);
+        }
+        if (this.request(primary, true, true).exceptionally(e -> null).join() != null) return Filtering.ENDPOINT_INDEPENDENT;
+        if (this.request(primary, false, true).exceptionally(e -> null).join() != null) return Filtering.ADDRESS_DEPENDENT;
+        return Filtering.ADDRESS_AND_PORT_DEPENDENT;
+    }
+
+    /**
+     * Adds a raw connection to an address no connection uses yet.
+     *
+     * @return null if one does
+     */
+    private UdpConnection add(InetSocketAddress host, List<UdpConnection> added) {
+        if (this.endpoint.get(host) != null) return null;
+        UdpConnection connection = this.endpoint.add(host).raw();
+        added.add(connection);
+        return connection;
+    }
+
+    private CompletableFuture<Binding> request(StunTransactionManager server, boolean changeIp, boolean changePort) {
+        return server.request(changeIp, changePort).orTimeout(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Mapping behaviour from the mapped addresses of servers of one
+     * address family, IPv4 if there are any.
+     */
+    static Mapping mapping(List<Observation> observations) {
+        boolean ipv4 = observations.stream().anyMatch(o -> o.server().getAddress() instanceof Inet4Address);
+        List<Observation> family = observations.stream()
+            .filter(o -> (o.server().getAddress() instanceof Inet4Address) == ipv4)
+            .toList();
+        if (logger.isLoggable(Level.DEBUG)) {
+            for (Observation o: family) logger.log(Level.DEBUG, "{0} maps to {1}", Utils.format(o.server()), Utils.format(o.mapped()));
+        }
+        if (family.size() < 2) return Mapping.UNKNOWN;
+        if (family.stream().map(Observation::mapped).distinct().count() == 1) return Mapping.ENDPOINT_INDEPENDENT;
+        // same server address, other port
+        boolean portIndependent = false;
+        for (Observation a: family) {
+            for (Observation b: family) {
+                if (a == b || !a.server().getAddress().equals(b.server().getAddress())) continue;
+                if (!Objects.equals(a.mapped(), b.mapped())) return Mapping.ADDRESS_AND_PORT_DEPENDENT;
+                portIndependent = true;
+            }
+        }
+        // without two ports of one server address, assume the worse
+        return portIndependent ? Mapping.ADDRESS_DEPENDENT : Mapping.ADDRESS_AND_PORT_DEPENDENT;
+    }
+}
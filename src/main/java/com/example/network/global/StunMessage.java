@@ -0,0 +1,409 @@
+package com.example.network.global;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.zip.CRC32;
+
+import com.example.network.global.StunClient.AttributeType;
+import com.example.network.global.StunClient.MappedAddressFamily;
+import com.example.network.global.StunClient.MessageType;
+
+////////////////////////////////////////////////////////////////////
+// attribute format
+//   values are padded to a multiple of 4 bytes, the length
+//   does not count the padding
+////////////////////////////////////////////////////////////////////
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |         Type                  |            Length             |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                         Value (variable)                ....
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// ERROR-CODE (0x0009)
+//   code = class * 100 + number
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |           Reserved, should be 0         |Class|     Number    |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |      Reason Phrase (variable, UTF-8)                ..
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// CHANGE-REQUEST (0x0003, RFC 5780)
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 A B 0|
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//   A: change IP, B: change port
+//
+// FINGERPRINT (0x8028)
+//   last attribute, CRC-32 of the message before it xor 0x5354554e;
+//   the length in the header already counts it
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                         CRC-32 ^ 0x5354554e                   |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+
+/**
+ * Flyweight STUN message (RFC 5389) over a caller supplied buffer.
+ *
+ * {@link #wrap(ByteBuffer)} validates a received message in place, and
+ * {@link #next()} walks its attributes, whose values are read straight
+ * from the buffer. {@link #request(ByteBuffer, MessageType)} and
+ * {@link #response(ByteBuffer, MessageType, StunMessage)} start a message
+ * in the buffer that the add methods append to. Nothing is allocated
+ * except by the methods returning objects, so one instance per thread
+ * handles any number of messages. Not thread-safe.
+ */
+public final class StunMessage {
+    public static final int HEADER = 20;
+    public static final int COOKIE = 0x2112A442;
+    static final int TRANSACTION = 12;
+    private static final int ATTRIBUTE_HEADER = 4;
+    private static final int FINGERPRINT_XOR = 0x5354554e;
+    // transaction ids guard against off-path responses, so not guessable
+    private static final SecureRandom random = new SecureRandom();
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] transaction = new byte[TRANSACTION];
+    private ByteBuffer buffer;
+    // start of the message in the buffer
+    private int offset;
+    // end of the attributes, before any FINGERPRINT
+    private int end;
+    private boolean fingerprint;
+    // current attribute, -1 before the first
+    private int attribute;
+    private int next;
+
+    /**
+     * Starts decoding the message between the buffer's position and limit,
+     * which are left as they are.
+     *
+     * @return false if it is not a well formed STUN message, or its
+     *         FINGERPRINT does not match
+     */
+    public boolean wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.offset = buffer.position();
+        this.attribute = -1;
+        this.next = this.offset + HEADER;
+        this.end = this.next;
+        this.fingerprint = false;
+        if (buffer.remaining() < HEADER) return false;
+        int type = buffer.getShort(this.offset) & 0xffff;
+        int length = buffer.getShort(this.offset + 2) & 0xffff;
+        if ((type & 0xc000) != 0 || (length & 3) != 0 || HEADER + length > buffer.remaining()) return false;
+        if (buffer.getInt(this.offset + 4) != COOKIE) return false;
+        int limit = this.offset + HEADER + length;
+        int position = this.next;
+        while (position < limit) {
+            if (limit - position < ATTRIBUTE_HEADER) return false;
+            int attributeType = buffer.getShort(position) & 0xffff;
+            int attributeLength = buffer.getShort(position + 2) & 0xffff;
+            int padded = ATTRIBUTE_HEADER + ((attributeLength + 3) & ~3);
+            if (padded > limit - position) return false;
+            if (attributeType == (AttributeType.FINGERPRINT.value() & 0xffff)) {
+                // the last attribute, nothing may follow
+                if (attributeLength != Integer.BYTES || position + padded != limit) return false;
+                if (this.crc(position) != buffer.getInt(position + ATTRIBUTE_HEADER)) return false;
+                this.fingerprint = true;
+                break;
+            }
+            position += padded;
+        }
+        this.end = position;
+        return true;
+    }
+
+    /**
+     * CRC-32 of the message up to the given offset, xor 0x5354554e.
+     */
+    private int crc(int upTo) {
+        int position = this.buffer.position();
+        int limit = this.buffer.limit();
+        this.crc.reset();
+        this.crc.update(this.buffer.limit(upTo).position(this.offset));
+        this.buffer.limit(limit).position(position);
+        return (int) this.crc.getValue() ^ FINGERPRINT_XOR;
+    }
+
+    public int type() {
+        return this.buffer.getShort(this.offset) & 0xffff;
+    }
+
+    public boolean is(MessageType type) {
+        return this.type() == (type.value() & 0xffff);
+    }
+
+    /**
+     * Length of the whole message, header included.
+     */
+    public int size() {
+        return HEADER + (this.buffer.getShort(this.offset + 2) & 0xffff);
+    }
+
+    public boolean hasFingerprint() {
+        return this.fingerprint;
+    }
+
+    /**
+     * First 8 bytes of the transaction id, with {@link #transactionLow()}
+     * a key for matching responses to requests.
+     */
+    public long transactionHigh() {
+        return this.buffer.getLong(this.offset + 8);
+    }
+
+    public int transactionLow() {
+        return this.buffer.getInt(this.offset + 16);
+    }
+
+    /**
+     * Moves to the next attribute, or to the first after
+     * {@link #wrap(ByteBuffer)}. FINGERPRINT is checked by wrap and not
+     * visited.
+     *
+     * @return false if there are no more
+     */
+    public boolean next() {
+        if (this.next >= this.end) return false;
+        this.attribute = this.next;
+        this.next += ATTRIBUTE_HEADER + ((this.length() + 3) & ~3);
+        return true;
+    }
+
+    /**
+     * Type of the current attribute, comprehension-optional types
+     * (0x8000 and up) included.
+     */
+    public int attributeType() {
+        return this.buffer.getShort(this.attribute) & 0xffff;
+    }
+
+    /**
+     * @return the current attribute's type, null if it is not known
+     */
+    public AttributeType attribute() {
+        return AttributeType.of(this.buffer.getShort(this.attribute));
+    }
+
+    /**
+     * Offset of the current attribute's value in the buffer.
+     */
+    public int valueOffset() {
+        return this.attribute + ATTRIBUTE_HEADER;
+    }
+
+    public int length() {
+        return this.buffer.getShort(this.attribute + 2) & 0xffff;
+    }
+
+    private boolean masked() {
+        AttributeType type = this.attribute();
+        return type != null && type.mask();
+    }
+
+    /**
+     * Family of the current address attribute, null if unknown.
+     */
+    public MappedAddressFamily family() {
+        return MappedAddressFamily.of(this.buffer.getShort(this.valueOffset()));
+    }
+
+    /**
+     * Port of the current address attribute, unmasked if XOR-MAPPED.
+     */
+    public int port() {
+        int port = this.buffer.getShort(this.valueOffset() + 2) & 0xffff;
+        return this.masked() ? port ^ (COOKIE >>> 16) : port;
+    }
+
+    /**
+     * IPv4 address of the current address attribute, unmasked if
+     * XOR-MAPPED.
+     */
+    public int ipv4() {
+        int address = this.buffer.getInt(this.valueOffset() + 4);
+        return this.masked() ? address ^ COOKIE : address;
+    }
+
+    /**
+     * Copies the address of the current address attribute, unmasked if
+     * XOR-MAPPED, into the array, 4 or 16 bytes by the family.
+     *
+     * @return bytes copied, 0 if the family is unknown or does not fit
+     */
+    public int address(byte[] address) {
+        MappedAddressFamily family = this.family();
+        if (family == null || this.length() < 4 + family.length() || address.length < family.length()) return 0;
+        int value = this.valueOffset() + 4;
+        boolean masked = this.masked();
+        for (int i = 0; i < family.length(); i++) {
+            // the mask is the cookie followed by the transaction id
+            byte mask = masked ? this.buffer.get(this.offset + 4 + i) : 0;
+            address[i] = (byte) (this.buffer.get(value + i) ^ mask);
+        }
+        return family.length();
+    }
+
+    /**
+     * Current address attribute as a socket address.
+     *
+     * @return null if the family is unknown
+     */
+    public InetSocketAddress socketAddress() throws UnknownHostException {
+        MappedAddressFamily family = this.family();
+        byte[] address = new byte[family != null ? family.length() : 0];
+        if (this.address(address) == 0) return null;
+        return new InetSocketAddress(InetAddress.getByAddress(address), this.port());
+    }
+
+    /**
+     * Code of the current ERROR-CODE attribute, such as 420.
+     */
+    public int errorCode() {
+        int value = this.buffer.getInt(this.valueOffset());
+        return ((value >>> 8) & 0x7) * 100 + (value & 0xff);
+    }
+
+    /**
+     * Flags of the current CHANGE-REQUEST attribute: answer from the other
+     * IP address.
+     */
+    public boolean changeIp() {
+        return (this.buffer.getInt(this.valueOffset()) & 4) != 0;
+    }
+
+    /**
+     * Flags of the current CHANGE-REQUEST attribute: answer from the other
+     * port.
+     */
+    public boolean changePort() {
+        return (this.buffer.getInt(this.valueOffset()) & 2) != 0;
+    }
+
+    /**
+     * Value of the current attribute as UTF-8 text, such as SOFTWARE, or
+     * the reason phrase of an ERROR-CODE.
+     */
+    public String text() {
+        int skip = this.attributeType() == (AttributeType.ERROR_CODE.value() & 0xffff) ? 4 : 0;
+        byte[] text = new byte[Math.max(this.length() - skip, 0)];
+        this.buffer.get(this.valueOffset() + skip, text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts a message with a new random transaction id at the buffer's
+     * position. The position follows the message as attributes are added.
+     */
+    public StunMessage request(ByteBuffer buffer, MessageType type) {
+        random.nextBytes(this.transaction);
+        this.start(buffer, type);
+        buffer.put(this.transaction);
+        return this;
+    }
+
+    /**
+     * Starts a message with the transaction id of the request.
+     */
+    public StunMessage response(ByteBuffer buffer, MessageType type, StunMessage request) {
+        this.start(buffer, type);
+        buffer.put(buffer.position(), request.buffer, request.offset + 8, TRANSACTION);
+        buffer.position(buffer.position() + TRANSACTION);
+        return this;
+    }
+
+    private StunMessage start(ByteBuffer buffer, MessageType type) {
+        this.buffer = buffer;
+        this.offset = buffer.position();
+        this.attribute = -1;
+        this.fingerprint = false;
+        buffer.putShort(type.value()).putShort((short) 0).putInt(COOKIE);
+        this.end = this.next = this.offset + HEADER;
+        return this;
+    }
+
+    /**
+     * Appends an attribute header, the caller writes the value.
+     */
+    private void attribute(AttributeType type, int length) {
+        this.buffer.putShort(type.value()).putShort((short) length);
+    }
+
+    /**
+     * Pads the value just written and counts it in the header's length.
+     */
+    private StunMessage close() {
+        while (((this.buffer.position() - this.offset) & 3) != 0) this.buffer.put((byte) 0);
+        this.buffer.putShort(this.offset + 2, (short) (this.buffer.position() - this.offset - HEADER));
+        this.end = this.next = this.buffer.position();
+        return this;
+    }
+
+    /**
+     * Appends a MAPPED-ADDRESS, XOR-MAPPED-ADDRESS or other address
+     * attribute, masked if the type says so.
+     */
+    public StunMessage addAddress(AttributeType type, InetSocketAddress address) {
+        byte[] bytes = address.getAddress().getAddress();
+        MappedAddressFamily family = bytes.length == 4 ? MappedAddressFamily.IPv4 : MappedAddressFamily.IPv6;
+        this.attribute(type, 4 + bytes.length);
+        int port = address.getPort();
+        this.buffer.putShort(family.value()).putShort((short) (type.mask() ? port ^ (COOKIE >>> 16) : port));
+        for (int i = 0; i < bytes.length; i++) {
+            byte mask = type.mask() ? this.buffer.get(this.offset + 4 + i) : 0;
+            this.buffer.put((byte) (bytes[i] ^ mask));
+        }
+        return this.close();
+    }
+
+    public StunMessage addErrorCode(int code, String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        this.attribute(AttributeType.ERROR_CODE, 4 + text.length);
+        this.buffer.putInt(((code / 100) << 8) | (code % 100)).put(text);
+        return this.close();
+    }
+
+    /**
+     * Appends a text attribute such as SOFTWARE.
+     */
+    public StunMessage addText(AttributeType type, String value) {
+        byte[] text = value.getBytes(StandardCharsets.UTF_8);
+        this.attribute(type, text.length);
+        this.buffer.put(text);
+        return this.close();
+    }
+
+    /**
+     * Appends UNKNOWN-ATTRIBUTES with the first count types, for a 420
+     * error response.
+     */
+    public StunMessage addUnknownAttributes(short[] types, int count) {
+        this.attribute(AttributeType.UNKNOWN_ATTRIBUTES, count * Short.BYTES);
+        for (int i = 0; i < count; i++) this.buffer.putShort(types[i]);
+        return this.close();
+    }
+
+    public StunMessage addChangeRequest(boolean ip, boolean port) {
+        this.attribute(AttributeType.CHANGE_REQUEST, Integer.BYTES);
+        this.buffer.putInt((ip ? 4 : 0) | (port ? 2 : 0));
+        return this.close();
+    }
+
+    /**
+     * Appends FINGERPRINT, after which nothing may be added.
+     */
+    public StunMessage addFingerprint() {
+        int position = this.buffer.position();
+        // the length counts the fingerprint before it is computed
+        this.buffer.putShort(this.offset + 2, (short) (position + ATTRIBUTE_HEADER + Integer.BYTES - this.offset - HEADER));
+        this.attribute(AttributeType.FINGERPRINT, Integer.BYTES);
+        this.buffer.putInt(this.crc(position));
+        this.fingerprint = true;
+        return this;
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.network.global;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+import com.example.network.global.StunClient.AttributeType;
+import com.example.network.global.StunClient.MessageType;
+
+/**
+ * Stateless STUN binding server (RFC 5389).
+ *
+ * Answers each binding request with the XOR-MAPPED-ADDRESS it came from,
+ * IPv4 or IPv6, and a FINGERPRINT; nothing is kept between requests. A
+ * request with a comprehension-required attribute the server does not
+ * handle, such as the CHANGE-REQUEST of RFC 5780, is answered with a 420
+ * error. Anything else is dropped.
+ *
+ * Like {@link com.example.network.UdpEndpoint} it runs a group of
+ * SO_REUSEPORT sockets, each with its own receive loop and its own pair of
+ * buffers reused for every request, so answering does not allocate
+ * beyond the sender address the channel returns.
+ */
+public class StunServer {
+    private static final Logger logger = System.getLogger(StunServer.class.getName());
+    // larger datagrams are truncated, and then not a well formed message
+    private static final int DATAGRAM = 1_500;
+    // unknown attributes reported in a 420 at most
+    private static final int UNKNOWN = 16;
+
+    private final int port;
+    private final int shardCount;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile Shard[] shards;
+    private volatile boolean active = false;
+
+    private class Shard {
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final Thread receiver;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(DATAGRAM);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(DATAGRAM);
+        private final StunMessage request = new StunMessage();
+        private final StunMessage response = new StunMessage();
+        private final short[] unknown = new short[UNKNOWN];
+
+        private Shard(int index, DatagramChannel channel) throws IOException {
+            this.channel = channel;
+            this.selector = Selector.open();
+            try {
+                this.channel.register(this.selector, SelectionKey.OP_READ);
+            } catch (IOException | RuntimeException e) {
+                this.selector.close();
+                throw e;
+            }
+            this.receiver = new Thread(this::receive, String.format("STUN Server(%d)", index));
+        }
+
+        private void receive() {
+            while (active) {
+                try {
+                    this.selector.select(key -> {});
+                    while (active) {
+                        SocketAddress socket = this.channel.receive(this.in.clear());
+                        if (socket == null) break;
+                        if (socket instanceof InetSocketAddress client && this.answer(client)) {
+                            // a full socket buffer loses the response, the client asks again
+                            if (this.channel.send(this.out.flip(), client) == 0) dropped.increment();
+                        }
+                    }
+                } catch (Exception e) {
+                    if (active) logger.log(Level.ERROR, "stun receive error", e);
+                }
+            }
+        }
+
+        /**
+         * Encodes the response to the datagram in the receive buffer.
+         *
+         * @return false if there is nothing to answer
+         */
+        private boolean answer(InetSocketAddress client) {
+            StunMessage request = this.request;
+            if (!request.wrap(this.in.flip()) || !request.is(MessageType.BINDING_REQUEST)) {
+                dropped.increment();
+                return false;
+            }
+            requests.increment();
+            int count = 0;
+            while (request.next()) {
+                int type = request.attributeType();
+                // 0x0000-0x7FFF must be understood
+                if (type >= 0x8000) continue;
+                AttributeType known = request.attribute();
+                if (known != null && known != AttributeType.CHANGE_REQUEST) continue;
+                if (count < UNKNOWN) this.unknown[count++] = (short) type;
+            }
+            if (count > 0) {
+                errors.increment();
+                this.response.response(this.out.clear(), MessageType.BINDING_ERROR_RESPONSE, request)
+                    .addErrorCode(420, "Unknown Attribute")
+                    .addUnknownAttributes(this.unknown, count)
+                    .addFingerprint();
+            } else {
+                this.response.response(this.out.clear(), MessageType.BINDING_SUCCESS_RESPONSE, request)
+                    .addAddress(AttributeType.XOR_MAPPED_ADDRESS, client)
+                    .addFingerprint();
+            }
+            return true;
+        }
+
+        private void stop() throws InterruptedException, IOException {
+            this.selector.wakeup();
+            this.receiver.join();
+            this.close();
+        }
+
+        private void close() throws IOException {
+            this.selector.close();
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Server configured by the stun.port and stun.shards system properties.
+     */
+    public StunServer() {
+        this(Integer.getInteger("stun.port", 3478), Integer.getInteger("stun.shards", 1));
+    }
+
+    public StunServer(int port, int shards) {
+        if (port < 0 || port > 65535) throw new IllegalArgumentException("port " + port);
+        if (shards < 1) throw new IllegalArgumentException("shards " + shards);
+        this.port = port;
+        this.shardCount = shards;
+    }
+
+    public boolean isActive() {
+        return this.active;
+    }
+
+    public int getPort() {
+        return this.shards[0].channel.socket().getLocalPort();
+    }
+
+    /**
+     * Binding requests answered, with a success or an error.
+     */
+    public long getRequests() {
+        return this.requests.sum();
+    }
+
+    /**
+     * Requests answered with a 420 error.
+     */
+    public long getErrors() {
+        return this.errors.sum();
+    }
+
+    /**
+     * Datagrams that were not binding requests, and responses the socket
+     * had no room for.
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    public void start() throws IOException {
+        if (this.active) return;
+        int count = this.shardCount;
+        DatagramChannel first = DatagramChannel.open();
+        if (count > 1 && !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            logger.log(Level.WARNING, "SO_REUSEPORT is not supported, falling back to a single shard");
+            count = 1;
+        }
+        Shard[] group = new Shard[count];
+        DatagramChannel channel = first;
+        try {
+            if (count > 1) first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            first.configureBlocking(false);
+            first.bind(new InetSocketAddress(this.port));
+            int port = first.socket().getLocalPort();
+            logger.log(Level.INFO, "stun port   : {0}", port);
+            logger.log(Level.INFO, "stun shards : {0}", count);
+
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    channel = DatagramChannel.open();
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    channel.configureBlocking(false);
+                    channel.bind(new InetSocketAddress(port));
+                }
+                group[i] = new Shard(i, channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            // the shards bound so far would hold the port
+            try {
+                channel.close();
+                for (Shard shard: group) {
+                    if (shard != null) shard.close();
+                }
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        this.shards = group;
+
+        this.active = true;
+        for (Shard shard: this.shards) {
+            shard.receiver.start();
+        }
+    }
+
+    public void stop() throws InterruptedException, IOException {
+        if (!this.active) return;
+        logger.log(Level.INFO, "stop stun server");
+        this.active = false;
+        for (Shard shard: this.shards) {
+            shard.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        StunServer server = new StunServer();
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.stop();
+            } catch (InterruptedException | IOException e) {
+                logger.log(Level.ERROR, "stun server stop error", e);
+            }
+        }));
+    }
+}
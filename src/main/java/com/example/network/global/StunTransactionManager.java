@@ -0,0 +1,357 @@
+package com.example.network.global;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+
+import com.example.Utils;
+import com.example.network.TimingWheel;
+import com.example.network.UdpConnectionManager;
+import com.example.network.UdpConnectionManager.UdpConnection;
+import com.example.network.global.StunClient.AttributeType;
+import com.example.network.global.StunClient.MessageType;
+
+/**
+ * STUN binding transactions with a server over a raw connection.
+ *
+ * A request is sent again after RTO, 2 RTO, 4 RTO and so on, stun.rc
+ * times in all, and fails stun.rm RTOs after the last (RFC 5389
+ * section 7.2.1). The RTO starts at stun.rto and then follows the RTT of
+ * the answered requests, so on a known server a lost request is repeated
+ * within about one RTT. Responses are matched to outstanding requests by
+ * transaction id; spoofed, stale and duplicate responses are dropped.
+ *
+ * Takes over the connection's generator and receive listener: every
+ * keepalive of the connection is a binding request, so the mapped address
+ * is known one RTT after start and kept up to date.
+ */
+public class StunTransactionManager {
+    private static final Logger logger = System.getLogger(StunTransactionManager.class.getName());
+    // outstanding transactions at most
+    private static final int CAPACITY = Integer.getInteger("stun.transactions", 16);
+    private static final long RTO = Long.getLong("stun.rto", 500);
+    private static final long RTO_MIN = Long.getLong("stun.rto.min", 100);
+    private static final int RC = Integer.getInteger("stun.rc", 7);
+    private static final int RM = Integer.getInteger("stun.rm", 16);
+
+    /**
+     * Addresses of a binding success response, null if it did not carry them.
+     *
+     * @param mapped  the client as the server sees it
+     * @param origin  where the response was sent from (RESPONSE-ORIGIN)
+     * @param other   the server's alternate address (OTHER-ADDRESS)
+     */
+    public record Binding(InetSocketAddress mapped, InetSocketAddress origin, InetSocketAddress other) {}
+
+    private class Transaction {
+        private final ByteBuffer request;
+        private final CompletableFuture<Binding> future = new CompletableFuture<>();
+        private final long start = System.nanoTime();
+        private final long rto;
+        private int sent = 0;
+        private boolean removed = false;
+        private TimingWheel.Timeout timer;
+
+        private Transaction(ByteBuffer request, long rto) {
+            this.request = request;
+            this.rto = rto;
+        }
+    }
+
+    private final UdpConnection connection;
+    private final TimingWheel timer = UdpConnectionManager.getTimer();
+    // outstanding transactions by id, guarded by this
+    private final long[] high = new long[CAPACITY];
+    private final int[] low = new int[CAPACITY];
+    private final Transaction[] transactions = new Transaction[CAPACITY];
+    private final StunMessage encoder = new StunMessage();
+    private final StunMessage decoder = new StunMessage();
+    // RFC 6298 estimate in nanoseconds, 0 until the first sample
+    private long srtt = 0;
+    private long rttvar = 0;
+    private Transaction keepalive;
+    private Consumer<InetSocketAddress> onMappedEventListener;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+
+    public StunTransactionManager(UdpConnection connection) {
+        this.connection = connection
+            .generator(this::keepalive)
+            .onReceiveBuffer(this::receive);
+    }
+
+    /**
+     * Called with the mapped address whenever a keepalive request is
+     * answered.
+     */
+    public StunTransactionManager onMapped(Consumer<InetSocketAddress> onMappedEventListener) {
+        this.onMappedEventListener = onMappedEventListener;
+        return this;
+    }
+
+    public UdpConnection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Takes responses from another address as well, such as those an
+     * RFC 5780 server sends from its other address on a CHANGE-REQUEST.
+     */
+    public StunTransactionManager listen(UdpConnection connection) {
+        connection.onReceiveBuffer(this::receive);
+        return this;
+    }
+
+    /**
+     * Responses dropped as malformed, spoofed, stale or duplicate.
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    public long getRetransmits() {
+        return this.retransmits.sum();
+    }
+
+    /**
+     * Initial RTO of the next request, in milliseconds.
+     */
+    public synchronized long getRto() {
+        return TimeUnit.NANOSECONDS.toMillis(this.rto());
+    }
+
+    private long rto() {
+        if (this.srtt == 0) return TimeUnit.MILLISECONDS.toNanos(RTO);
+        return Math.max(this.srtt + 4 * this.rttvar, TimeUnit.MILLISECONDS.toNanos(RTO_MIN));
+    }
+
+    /**
+     * Asks the server for the mapped address.
+     *
+     * @return fails with a SocketTimeoutException if the server does not
+     *         answer, or an IOException for an error response
+     */
+    public CompletableFuture<InetSocketAddress> bind() {
+        return this.request(false, false).thenApply(Binding::mapped);
+    }
+
+    /**
+     * Sends a binding request, asking an RFC 5780 server to answer from
+     * its other IP address or port if requested. Completing or cancelling
+     * the future, e.g. with orTimeout, ends the transaction.
+     */
+    public CompletableFuture<Binding> request(boolean changeIp, boolean changePort) {
+        Transaction transaction;
+        synchronized (this) {
+            transaction = this.start(changeIp, changePort);
+            if (transaction == null) return CompletableFuture.failedFuture(new IOException("too many stun transactions"));
+        }
+        this.transmit(transaction);
+        return transaction.future;
+    }
+
+    /**
+     * Generator of the connection's keepalives: a new binding request, or
+     * the outstanding one again.
+     */
+    private synchronized ByteBuffer keepalive() {
+        Transaction transaction = this.keepalive;
+        if (transaction == null || transaction.removed) {
+            transaction = this.start(false, false);
+            // an empty datagram still keeps the mapping open
+            if (transaction == null) return ByteBuffer.allocate(0);
+            this.keepalive = transaction;
+            transaction.future.thenAccept(binding -> {
+                Consumer<InetSocketAddress> listener = this.onMappedEventListener;
+                if (listener != null && binding.mapped() != null) listener.accept(binding.mapped());
+            });
+            // the connection sends it, the timer any retransmissions
+            transaction.sent = 1;
+            this.arm(transaction);
+        } else {
+            // sent again, so the response may answer either (Karn)
+            transaction.sent++;
+            this.retransmits.increment();
+        }
+        return transaction.request.duplicate();
+    }
+
+    /**
+     * Encodes a request into a free slot of the table.
+     *
+     * @return null if the table is full
+     */
+    private Transaction start(boolean changeIp, boolean changePort) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (this.transactions[i] != null) continue;
+            ByteBuffer request = ByteBuffer.allocate(StunMessage.HEADER + 8);
+            this.encoder.request(request, MessageType.BINDING_REQUEST);
+            if (changeIp || changePort) this.encoder.addChangeRequest(changeIp, changePort);
+            request.flip();
+            Transaction transaction = new Transaction(request, this.rto());
+            this.high[i] = request.getLong(8);
+            this.low[i] = request.getInt(16);
+            this.transactions[i] = transaction;
+            transaction.future.whenComplete((binding, e) -> {
+                synchronized (this) {
+                    this.remove(transaction);
+                }
+            });
+            return transaction;
+        }
+        return null;
+    }
+
+    private void transmit(Transaction transaction) {
+        synchronized (this) {
+            if (transaction.removed) return;
+            if (transaction.sent++ > 0) this.retransmits.increment();
+            this.arm(transaction);
+        }
+        this.connection.offer(transaction.request.duplicate());
+    }
+
+    /**
+     * Schedules the next retransmission, or the timeout after the last.
+     */
+    private void arm(Transaction transaction) {
+        int sent = transaction.sent;
+        long delay = sent < RC ? transaction.rto << (sent - 1) : transaction.rto * RM;
+        transaction.timer = this.timer.schedule(
+            sent < RC ? () -> this.transmit(transaction) : () -> this.expire(transaction),
+            delay,
+            TimeUnit.NANOSECONDS
+        );
+    }
+
+    private void expire(Transaction transaction) {
+        synchronized (this) {
+            if (!this.remove(transaction)) return;
+        }
+        logger.log(Level.DEBUG, "stun transaction with {0} timed out", Utils.format(this.connection.getHost()));
+        transaction.future.completeExceptionally(new SocketTimeoutException("stun transaction timed out"));
+    }
+
+    private boolean remove(Transaction transaction) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (this.transactions[i] == transaction) {
+                this.transactions[i] = null;
+                transaction.removed = true;
+                if (transaction.timer != null) transaction.timer.cancel();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Matches a datagram from the server to its transaction.
+     */
+    private void receive(ByteBuffer data) {
+        Transaction transaction = null;
+        Binding binding = null;
+        int error = 0;
+        synchronized (this) {
+            StunMessage message = this.decoder;
+            boolean valid = message.wrap(data);
+            boolean success = valid && message.is(MessageType.BINDING_SUCCESS_RESPONSE);
+            if (success || valid && message.is(MessageType.BINDING_ERROR_RESPONSE)) {
+                long high = message.transactionHigh();
+                int low = message.transactionLow();
+                for (int i = 0; i < CAPACITY; i++) {
+                    if (this.transactions[i] != null && this.high[i] == high && this.low[i] == low) {
+                        transaction = this.transactions[i];
+                        break;
+                    }
+                }
+            }
+            if (transaction == null) {
+                this.dropped.increment();
+                if (logger.isLoggable(Level.DEBUG)) {
+                    logger.log(Level.DEBUG, "drop stun message from {0}", Utils.format(this.connection.getHost()));
+                }
+                return;
+            }
+            try {
+                if (success) {
+                    binding = binding(message);
+                } else {
+                    error = error(message);
+                }
+            } catch (UnknownHostException | RuntimeException e) {
+                // malformed, the retransmissions may still be answered
+                this.dropped.increment();
+                return;
+            }
+            this.remove(transaction);
+            // Karn: a retransmitted request gives no usable sample
+            if (transaction.sent == 1) this.sample(System.nanoTime() - transaction.start);
+        }
+        if (binding != null) {
+            transaction.future.complete(binding);
+        } else {
+            transaction.future.completeExceptionally(new IOException("stun error " + error));
+        }
+    }
+
+    private static Binding binding(StunMessage message) throws UnknownHostException {
+        InetSocketAddress mapped = null;
+        InetSocketAddress origin = null;
+        InetSocketAddress other = null;
+        while (message.next()) {
+            AttributeType type = message.attribute();
+            if (type == null) continue;
+            switch (type) {
+                case XOR_MAPPED_ADDRESS -> mapped = message.socketAddress();
+                case MAPPED_ADDRESS -> { if (mapped == null) mapped = message.socketAddress(); }
+                case RESPONSE_ORIGIN -> origin = message.socketAddress();
+                case OTHER_ADDRESS -> other = message.socketAddress();
+                default -> {}
+            }
+        }
+        return new Binding(mapped, origin, other);
+    }
+
+    private static int error(StunMessage message) {
+        while (message.next()) {
+            if (message.attribute() == AttributeType.ERROR_CODE) return message.errorCode();
+        }
+        return 0;
+    }
+
+    private void sample(long rtt) {
+        if (this.srtt == 0) {
+            this.srtt = rtt;
+            this.rttvar = rtt / 2;
+        } else {
+            this.rttvar += (Math.abs(this.srtt - rtt) - this.rttvar) / 4;
+            this.srtt += (rtt - this.srtt) / 8;
+        }
+    }
+
+    /**
+     * Fails every outstanding transaction.
+     */
+    public void close() {
+        Transaction[] closed = new Transaction[CAPACITY];
+        synchronized (this) {
+            for (int i = 0; i < CAPACITY; i++) {
+                closed[i] = this.transactions[i];
+                if (closed[i] != null) this.remove(closed[i]);
+            }
+        }
+        for (Transaction transaction: closed) {
+            if (transaction != null) transaction.future.completeExceptionally(new ClosedChannelException());
+        }
+    }
+}
@@ -1,62 +1,219 @@
 package com.example.network.local;
 
 import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 
 import com.example.Utils;
+import com.example.network.Candidate;
+
+////////////////////////////////////////////////////////////////////
+// becon format
+////////////////////////////////////////////////////////////////////
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |  Version (2)  |   ID Length   |           P2P Port            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                           Sequence                            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                         Capabilities                          |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                          ID (UTF-8) ...                       |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |     Count     |  Candidates...
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// The sequence changes whenever anything after it does. A version 1
+// becon is the P2P port alone, which is still understood.
 
 /**
  * Multicast becon manager.
+ *
+ * Peers are kept in a table by ID, in order of their last becon, and
+ * expire multicast.expire milliseconds after it. Only a becon of a new
+ * peer, or one with another sequence or address, calls the receive
+ * listeners; the rest just refresh the table entry, so the listeners run
+ * as often as peers come and change, not as often as they send.
+ *
+ * Becons are paced by a {@link Trickle} timer: every multicast.interval
+ * while anything is new, backing off to multicast.interval.max while
+ * nothing is, and skipped when multicast.redundancy others were heard.
+ * The expiry defaults to three of the longest interval.
+ *
+ * Own becons are recognised by the ID, version 1 ones by the address they
+ * come from. This host's addresses are kept in a set, which a watcher
+ * thread refreshes every multicast.watch milliseconds, joining the group
+ * on interfaces that appeared since and leaving it on those that are
+ * gone; Java has no notification of interface changes, so the refresh
+ * polls.
+ *
+ * Unless multicast.ipv6 is false or the host has no IPv6, the channel is
+ * an IPv6 one, which also joins the link-local group multicast.addr6 on
+ * every interface with a link-local IPv6 address. Becons are sent to the
+ * IPv4 group and to the IPv6 group scoped to each of those interfaces, so
+ * a peer reached over both is kept once per family, and the IPv6 address
+ * it is heard from, with its scope, is its host candidate there.
  */
 public class BeconManager {
+    // the peer encrypts its connections
+    public static final int CAPABILITY_SECURE = 1;
+    // the peer is registered at a rendezvous server
+    public static final int CAPABILITY_RENDEZVOUS = 1 << 1;
+
+    private static final byte VERSION = 2;
+    private static final int HEADER = 12;
+
+    private record Entry(int sequence, InetSocketAddress host, long expires) {}
+
+    private record Membership(InetAddress group, NetworkInterface nic) {}
+
     private final Logger logger = System.getLogger(this.getClass().getName());
     private final int USHORT_MAX_VALUE = (1 << 16) - 1;
+    private final String id;
+    private final byte[] name;
     private final Integer p2pPort;
     private final InetAddress multicastAddr;
+    private final InetAddress multicastAddr6;
     private final Integer multicastPort;
     private final long interval;
+    private final long intervalMax;
+    private final int redundancy;
+    private final Trickle trickle;
+    private final LongAdder sent = new LongAdder();
+    // wall clock, a virtual one in the simulation
+    LongSupplier clock = System::currentTimeMillis;
+    private final long watch;
+    private final long expire;
     private final DatagramChannel channel;
+    private final boolean ipv6;
+    // site-local and link-local addresses of this host, replaced whole by the watcher
+    private volatile Set<InetAddress> self = Set.of();
+    // the groups to send becons to, replaced whole by the watcher
+    private volatile List<InetSocketAddress> groups = List.of();
+    // constructor and watcher thread only
+    private final Map<Membership, MembershipKey> memberships = new HashMap<>();
     private Thread sender;
     private Thread receiver;
+    private Thread watcher;
+    private volatile int capabilities = 0;
+    // sender thread only
+    private int sequence = 0;
+    private volatile List<Candidate> announced = List.of();
+    private volatile int announcedCapabilities = 0;
+    // receiver thread only, in order of the last becon
+    private final LinkedHashMap<String, Entry> peers = new LinkedHashMap<>();
+    private long sweep = 0;
+    private volatile int size = 0;
     private boolean active = false;
     private Consumer<InetSocketAddress> onReceiveEventListener;
+    private Consumer<List<Candidate>> onReceiveCandidatesEventListener;
+    private Consumer<InetSocketAddress> onExpireEventListener;
+    private volatile Supplier<List<Candidate>> candidates = List::of;
 
     public BeconManager(int p2pPort) throws IOException {
+        this.id = System.getProperty("multicast.id", UUID.randomUUID().toString());
+        this.name = this.id.getBytes(StandardCharsets.UTF_8);
+        if (this.name.length == 0 || this.name.length > 255) throw new IllegalArgumentException("multicast.id must be 1 to 255 bytes");
         this.p2pPort = p2pPort;
         this.multicastAddr = InetAddress.getByName(System.getProperty("multicast.addr", "224.0.0.1"));
+        this.multicastAddr6 = InetAddress.getByName(System.getProperty("multicast.addr6", "ff02::1"));
         this.multicastPort = Integer.getInteger("multicast.port", 12345);
         this.interval = Long.getLong("multicast.interval", 1_000);
+        this.watch = Long.getLong("multicast.watch", 5_000);
+        this.intervalMax = Long.getLong("multicast.interval.max", 30_000);
+        this.redundancy = Integer.getInteger("multicast.redundancy", 2);
+        this.expire = Long.getLong("multicast.expire", Math.max(this.interval, this.intervalMax) * 3);
+        this.trickle = new Trickle(this.interval, this.intervalMax, this.redundancy);
 
-        this.channel = DatagramChannel.open();
+        DatagramChannel channel = null;
+        if (Boolean.parseBoolean(System.getProperty("multicast.ipv6", "true"))) {
+            try {
+                channel = DatagramChannel.open(StandardProtocolFamily.INET6);
+            } catch (UnsupportedOperationException | IOException e) {
+                logger.log(Level.WARNING, "no IPv6, becons over IPv4 only", e);
+            }
+        }
+        this.ipv6 = channel != null;
+        this.channel = this.ipv6 ? channel : DatagramChannel.open(StandardProtocolFamily.INET);
         this.channel.configureBlocking(false);
         this.channel.socket().bind(new InetSocketAddress(this.multicastPort));
 
         logger.log(Level.INFO, "local p2p port     : {0}", p2pPort);
         logger.log(Level.INFO, "multicast addr     : {0}", multicastAddr);
+        if (this.ipv6) logger.log(Level.INFO, "multicast addr6    : {0}", multicastAddr6);
         logger.log(Level.INFO, "multicast port     : {0}", multicastPort);
-        logger.log(Level.INFO, "multicast interval : {0}", interval);
+        logger.log(Level.INFO, "multicast interval : {0} - {1}", interval, intervalMax);
+        logger.log(Level.INFO, "multicast suppress : {0}", redundancy);
+        logger.log(Level.INFO, "multicast watch    : {0}", watch);
+        logger.log(Level.INFO, "multicast expire   : {0}", expire);
+        logger.log(Level.INFO, "multicast id       : {0}", id);
+
+        this.refresh();
+    }
+
+    /**
+     * Rebuilds the set of own addresses, and joins or leaves the group on
+     * interfaces that came or went.
+     */
+    private void refresh() throws IOException {
+        Map<NetworkInterface, List<InetAddress>> nics = this.getSiteLocalNetworkInterfaces();
+        Map<NetworkInterface, List<InetAddress>> nics6 = this.ipv6 ? this.getLinkLocalNetworkInterfaces() : Map.of();
+        Set<InetAddress> self = new HashSet<>();
+        nics.values().forEach(self::addAll);
+        nics6.values().forEach(self::addAll);
+        if (!self.equals(this.self)) this.self = self;
 
-        for (NetworkInterface nic: this.getSiteLocalNetworkInterfaces().keySet()) {
-            this.channel.join(this.multicastAddr, nic);
-            logger.log(Level.INFO, "multicast nic      : {0}", nic.getName());
+        Set<Membership> joined = new HashSet<>();
+        List<InetSocketAddress> groups = new ArrayList<>();
+        groups.add(new InetSocketAddress(this.multicastAddr, this.multicastPort));
+        for (NetworkInterface nic: nics.keySet()) joined.add(new Membership(this.multicastAddr, nic));
+        for (NetworkInterface nic: nics6.keySet()) {
+            joined.add(new Membership(this.multicastAddr6, nic));
+            // ff02::/16 means nothing without the interface it is sent on
+            groups.add(new InetSocketAddress(Inet6Address.getByAddress(null, this.multicastAddr6.getAddress(), nic), this.multicastPort));
         }
+        if (!groups.equals(this.groups)) this.groups = groups;
+
+        for (Membership membership: joined) {
+            if (this.memberships.containsKey(membership)) continue;
+            this.memberships.put(membership, this.channel.join(membership.group(), membership.nic()));
+            logger.log(Level.INFO, "multicast nic      : {0} ({1})", membership.nic().getName(), membership.group().getHostAddress());
+        }
+        this.memberships.entrySet().removeIf(membership -> {
+            if (joined.contains(membership.getKey())) return false;
+            membership.getValue().drop();
+            logger.log(Level.INFO, "multicast nic gone : {0} ({1})", membership.getKey().nic().getName(), membership.getKey().group().getHostAddress());
+            return true;
+        });
     }
 
     public int getP2pPort() {
@@ -75,29 +232,133 @@ public class BeconManager {
         return interval;
     }
 
+    /**
+     * Interval of the Trickle timer now, 0 before the first becon.
+     */
+    public long getCurrentInterval() {
+        return trickle.getInterval();
+    }
+
+    /**
+     * Becons sent.
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Peers in the table, once for each family they are heard over,
+     * expired ones included until the next sweep.
+     */
+    public int getPeers() {
+        return size;
+    }
+
+    /**
+     * Capabilities to announce, a combination of the CAPABILITY_ flags.
+     */
+    public BeconManager capabilities(int capabilities) {
+        this.capabilities = capabilities;
+        return this;
+    }
+
     public BeconManager onReceive(Consumer<InetSocketAddress> onReceiveEventListener) {
         this.onReceiveEventListener = onReceiveEventListener;
         return this;
     }
 
+    /**
+     * Called with the candidates a peer announces, the address the becon
+     * came from first, when the peer is new or changed.
+     */
+    public BeconManager onReceiveCandidates(Consumer<List<Candidate>> onReceiveCandidatesEventListener) {
+        this.onReceiveCandidatesEventListener = onReceiveCandidatesEventListener;
+        return this;
+    }
+
+    /**
+     * Called with the address a peer's last becon came from, once
+     * multicast.expire has passed without another.
+     */
+    public BeconManager onExpire(Consumer<InetSocketAddress> onExpireEventListener) {
+        this.onExpireEventListener = onExpireEventListener;
+        return this;
+    }
+
+    /**
+     * Candidates to announce in every becon, asked for each time so they
+     * follow the interfaces and the STUN mapped address.
+     */
+    public BeconManager candidates(Supplier<List<Candidate>> candidates) {
+        this.candidates = candidates;
+        return this;
+    }
+
+    /**
+     * @return the becon to send now, null if none is due
+     */
+    ByteBuffer poll() {
+        if (!this.trickle.poll(this.clock.getAsLong())) return null;
+        this.sent.increment();
+        return this.becon();
+    }
+
+    ByteBuffer becon() {
+        List<Candidate> candidates = this.candidates.get();
+        int capabilities = this.capabilities;
+        if (!candidates.equals(this.announced) || capabilities != this.announcedCapabilities) {
+            this.sequence++;
+            this.announced = candidates;
+            this.announcedCapabilities = capabilities;
+        }
+        int count = Math.min(candidates.size(), Candidate.MAX);
+        int size = HEADER + this.name.length + 1;
+        for (int i = 0; i < count; i++) size += candidates.get(i).size();
+        ByteBuffer data = ByteBuffer.allocate(size)
+            .put(VERSION)
+            .put((byte) this.name.length)
+            .putShort(this.p2pPort.shortValue())
+            .putInt(this.sequence)
+            .putInt(capabilities)
+            .put(this.name)
+            .put((byte) count);
+        for (int i = 0; i < count; i++) candidates.get(i).put(data);
+        return data.flip();
+    }
+
+    /**
+     * @return the candidates after the port, null if they are malformed
+     */
+    private static List<Candidate> candidates(ByteBuffer buffer, InetSocketAddress host) {
+        List<Candidate> candidates = new ArrayList<>();
+        candidates.add(new Candidate(Candidate.Type.HOST, host));
+        if (!buffer.hasRemaining()) return candidates;
+        int count = Math.min(buffer.get() & 0xff, Candidate.MAX);
+        for (int i = 0; i < count; i++) {
+            Candidate candidate = Candidate.get(buffer);
+            if (candidate == null) return null;
+            if (!candidate.address().equals(host)) candidates.add(candidate);
+        }
+        return candidates;
+    }
+
     public void start() throws SocketException, IOException {
         if (this.active) return;
         logger.log(Level.INFO, "start becon manager");
 
         this.sender = new Thread(() -> {
-            InetSocketAddress addr = new InetSocketAddress(this.multicastAddr, this.multicastPort);
-            long last = 0;
             while (this.active) {
                 try {
-                    long now = new Date().getTime();
-                    if (now - last > this.interval) {
-                        logger.log(Level.DEBUG, "send becon to {0}", Utils.format(addr));
-                        ByteBuffer data = ByteBuffer
-                            .allocate(Short.BYTES)
-                            .putShort(this.p2pPort.shortValue())
-                            .flip();
-                        this.channel.send(data, addr);
-                        last = now;
+                    ByteBuffer becon = this.poll();
+                    if (becon != null) {
+                        for (InetSocketAddress addr: this.groups) {
+                            logger.log(Level.DEBUG, "send becon to {0} (interval = {1})", Utils.format(addr), this.trickle.getInterval());
+                            this.channel.send(becon.duplicate(), addr);
+                        }
                     }
                     Thread.sleep(1);
                 } catch (Exception e) {
@@ -107,37 +368,134 @@ public class BeconManager {
         }, "Becon Sender");
 
         this.receiver = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(USHORT_MAX_VALUE);
             while (this.active) {
                 try {
-                    ByteBuffer buffer = ByteBuffer.allocate(USHORT_MAX_VALUE);
-                    SocketAddress socket = this.channel.receive(buffer);
+                    if (this.clock.getAsLong() >= this.sweep) this.sweep();
+                    SocketAddress socket = this.channel.receive(buffer.clear());
                     if (socket instanceof InetSocketAddress addr) {
-                        boolean self = this.getSiteLocalNetworkInterfaces().values().stream().anyMatch(
-                            addrs -> addrs.contains(addr.getAddress().getHostAddress())
-                        );
-                        if (!self) {
-                            int size = buffer.flip().limit();
-                            if (size == Short.BYTES) {
-                                int port = Utils.ushort2int(buffer.getShort());
-                                logger.log(Level.DEBUG, "receive becon from {0} (p2p port = {1})", Utils.format(addr), port);
-                                InetSocketAddress host = new InetSocketAddress(addr.getAddress(), port);
-                                if (this.onReceiveEventListener != null) {
-                                    // TODO: 例外、別Thread
-                                    this.onReceiveEventListener.accept(host);
-                                }
-                            }
-                        }
+                        this.receive(buffer.flip(), addr);
+                    } else {
+                        // only idle, a busy segment is drained without pause
+                        Thread.sleep(1);
                     }
-                    Thread.sleep(1);
                 } catch (Exception e) {
                     logger.log(Level.ERROR, "becon receive error", e);
                 }
             }
         }, "Becon Receiver");
 
+        this.watcher = new Thread(() -> {
+            long last = System.currentTimeMillis();
+            while (this.active) {
+                try {
+                    long now = System.currentTimeMillis();
+                    if (now - last >= this.watch) {
+                        this.refresh();
+                        this.changed();
+                        last = now;
+                    }
+                    // not interrupted, that would close the channel
+                    Thread.sleep(10);
+                } catch (Exception e) {
+                    logger.log(Level.ERROR, "becon watch error", e);
+                }
+            }
+        }, "Becon Watcher");
+
         this.active = true;
         this.receiver.start();
         this.sender.start();
+        this.watcher.start();
+    }
+
+    /**
+     * Tells the Trickle timer when what this host announces changed, such
+     * as the STUN mapped address, so peers hear of it without waiting out
+     * a long interval.
+     */
+    private void changed() {
+        if (!this.candidates.get().equals(this.announced) || this.capabilities != this.announcedCapabilities) {
+            this.trickle.inconsistent(this.clock.getAsLong());
+        }
+    }
+
+    /**
+     * Handles a becon, unless it is one of this host's own or malformed.
+     */
+    void receive(ByteBuffer buffer, InetSocketAddress addr) {
+        if (buffer.remaining() == Short.BYTES) {
+            // version 1, known by the address alone
+            if (this.self.contains(addr.getAddress())) return;
+            InetSocketAddress host = new InetSocketAddress(addr.getAddress(), Utils.ushort2int(buffer.getShort()));
+            this.seen(Utils.format(host), 0, host, buffer);
+            return;
+        }
+        int length = buffer.remaining() >= HEADER ? buffer.get(buffer.position() + 1) & 0xff : 0;
+        if (buffer.get(buffer.position()) != VERSION || length == 0 || buffer.remaining() < HEADER + length + 1) return;
+        buffer.position(buffer.position() + 2);
+        int port = Utils.ushort2int(buffer.getShort());
+        int sequence = buffer.getInt();
+        int capabilities = buffer.getInt();
+        byte[] name = new byte[length];
+        buffer.get(name);
+        if (Arrays.equals(name, this.name)) return;
+        String id = new String(name, StandardCharsets.UTF_8);
+        logger.log(Level.TRACE, "receive becon from {0} (id = {1}, capabilities = {2})", Utils.format(addr), id, capabilities);
+        // once per family, so becons over both do not flip the address
+        String key = addr.getAddress() instanceof Inet4Address ? id : id + "/6";
+        this.seen(key, sequence, new InetSocketAddress(addr.getAddress(), port), buffer);
+    }
+
+    /**
+     * Refreshes the peer's entry, and calls the listeners if it is new or
+     * changed.
+     *
+     * @param buffer  at the candidates
+     */
+    private void seen(String id, int sequence, InetSocketAddress host, ByteBuffer buffer) {
+        // moved to the back, the order stays that of expiry
+        long now = this.clock.getAsLong();
+        Entry previous = this.peers.remove(id);
+        this.peers.put(id, new Entry(sequence, host, now + this.expire));
+        this.size = this.peers.size();
+        if (previous != null && previous.sequence() == sequence && previous.host().equals(host)) {
+            this.trickle.consistent();
+            return;
+        }
+        this.trickle.inconsistent(now);
+        logger.log(Level.DEBUG, "receive becon from {0} (id = {1}, sequence = {2})", Utils.format(host), id, sequence);
+        if (this.onReceiveEventListener != null) {
+            // TODO: 例外、別Thread
+            this.onReceiveEventListener.accept(host);
+        }
+        List<Candidate> candidates = candidates(buffer, host);
+        if (candidates != null && this.onReceiveCandidatesEventListener != null) {
+            this.onReceiveCandidatesEventListener.accept(candidates);
+        }
+    }
+
+    /**
+     * Drops the expired peers, and schedules the next sweep.
+     */
+    void sweep() {
+        long now = this.clock.getAsLong();
+        Iterator<Map.Entry<String, Entry>> iterator = this.peers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> peer = iterator.next();
+            if (peer.getValue().expires() > now) {
+                this.sweep = peer.getValue().expires();
+                this.size = this.peers.size();
+                return;
+            }
+            iterator.remove();
+            logger.log(Level.INFO, "becon expired {0} (id = {1})", Utils.format(peer.getValue().host()), peer.getKey());
+            if (this.onExpireEventListener != null) {
+                this.onExpireEventListener.accept(peer.getValue().host());
+            }
+        }
+        this.sweep = now + this.expire;
+        this.size = 0;
     }
 
     public void stop() throws InterruptedException, IOException {
@@ -146,16 +504,34 @@ public class BeconManager {
         this.active = false;
         this.sender.join();
         this.receiver.join();
+        this.watcher.join();
         this.channel.close();
     }
 
-    private Map<NetworkInterface, List<String>> getSiteLocalNetworkInterfaces() throws SocketException {
-        Map<NetworkInterface, List<String>> nics = new HashMap<>();
+    private Map<NetworkInterface, List<InetAddress>> getSiteLocalNetworkInterfaces() throws SocketException {
+        Map<NetworkInterface, List<InetAddress>> nics = new HashMap<>();
         for (NetworkInterface nic: Collections.list(NetworkInterface.getNetworkInterfaces())) {
             for (InterfaceAddress addr: nic.getInterfaceAddresses()) {
                 if (addr.getAddress().isSiteLocalAddress()) {
                     if (!nics.containsKey(nic)) nics.put(nic, new ArrayList<>());
-                    nics.get(nic).add(addr.getAddress().getHostAddress());
+                    nics.get(nic).add(addr.getAddress());
+                }
+            }
+        }
+        return nics;
+    }
+
+    /**
+     * Interfaces to join the IPv6 group on, with their link-local addresses.
+     */
+    private Map<NetworkInterface, List<InetAddress>> getLinkLocalNetworkInterfaces() throws SocketException {
+        Map<NetworkInterface, List<InetAddress>> nics = new HashMap<>();
+        for (NetworkInterface nic: Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!nic.isUp() || nic.isLoopback() || !nic.supportsMulticast()) continue;
+            for (InterfaceAddress addr: nic.getInterfaceAddresses()) {
+                if (addr.getAddress() instanceof Inet6Address && addr.getAddress().isLinkLocalAddress()) {
+                    if (!nics.containsKey(nic)) nics.put(nic, new ArrayList<>());
+                    nics.get(nic).add(addr.getAddress());
                 }
             }
         }
@@ -0,0 +1,91 @@
+package com.example.network.local;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Trickle timer (RFC 6206) deciding when to send a becon.
+ *
+ * Each interval a becon is due at a random time in its second half,
+ * unless redundancy consistent becons were heard during it; the interval
+ * then doubles, up to max. Something new resets it to min and, unlike the
+ * RFC, makes the next becon due whatever was heard, so a newcomer hears
+ * from every peer within one short interval rather than from redundancy
+ * of them. A becon is also due when none was sent for max, so that peers
+ * suppressed for a long time do not expire elsewhere.
+ */
+final class Trickle {
+    private final long min;
+    private final long max;
+    private final int redundancy;
+    private long interval = 0;
+    private long start;
+    private long time;
+    private int counter;
+    private boolean fired;
+    private boolean force = true;
+    private long last;
+
+    /**
+     * @param max         raised to min if it is less
+     * @param redundancy  consistent becons that suppress one, 0 for none
+     */
+    Trickle(long min, long max, int redundancy) {
+        if (min < 1) throw new IllegalArgumentException("min " + min);
+        if (redundancy < 0) throw new IllegalArgumentException("redundancy " + redundancy);
+        this.min = min;
+        this.max = Math.max(min, max);
+        this.redundancy = redundancy;
+    }
+
+    long getInterval() {
+        return this.interval;
+    }
+
+    private void begin(long now) {
+        this.start = now;
+        this.time = this.interval / 2 + ThreadLocalRandom.current().nextLong(Math.max(this.interval - this.interval / 2, 1));
+        this.counter = 0;
+        this.fired = false;
+    }
+
+    /**
+     * A becon that told nothing new.
+     */
+    synchronized void consistent() {
+        this.counter++;
+    }
+
+    /**
+     * A new or changed peer, or a change of what this host announces.
+     */
+    synchronized void inconsistent(long now) {
+        this.force = true;
+        if (this.interval > this.min) {
+            this.interval = this.min;
+            this.begin(now);
+        }
+    }
+
+    /**
+     * @return true if a becon is due, at most once an interval
+     */
+    synchronized boolean poll(long now) {
+        if (this.interval == 0) {
+            this.interval = this.min;
+            this.last = now;
+            this.begin(now);
+        }
+        if (now >= this.start + this.interval) {
+            this.interval = Math.min(this.interval * 2, this.max);
+            this.begin(now);
+        }
+        if (this.fired || now < this.start + this.time) return false;
+        this.fired = true;
+        if (this.force || this.redundancy == 0 || this.counter < this.redundancy || now - this.last >= this.max) {
+            this.force = false;
+            this.last = now;
+            return true;
+        }
+        return false;
+    }
+}
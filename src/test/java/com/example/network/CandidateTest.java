@@ -0,0 +1,50 @@
+package com.example.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CandidateTest {
+    private static Candidate candidate(Candidate.Type type, String address, int port) throws Exception {
+        return new Candidate(type, new InetSocketAddress(InetAddress.getByName(address), port));
+    }
+
+    @Test
+    public void hostsOnPrivateNetworksComeFirst() throws Exception {
+        Candidate lan = candidate(Candidate.Type.HOST, "192.168.1.2", 5000);
+        Candidate v6 = candidate(Candidate.Type.HOST, "2001:db8::2", 5000);
+        Candidate global = candidate(Candidate.Type.HOST, "203.0.113.2", 5000);
+        Candidate mapped = candidate(Candidate.Type.SERVER_REFLEXIVE, "198.51.100.2", 40000);
+        List<Candidate> candidates = new ArrayList<>(List.of(mapped, global, v6, lan));
+        candidates.sort(Candidate.PRIORITY);
+        assertEquals(List.of(lan, v6, global, mapped), candidates);
+        assertEquals((126L << 24) | (65535 << 8) | 255, lan.priority());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Candidate v4 = candidate(Candidate.Type.SERVER_REFLEXIVE, "198.51.100.2", 65535);
+        Candidate v6 = candidate(Candidate.Type.HOST, "2001:db8::2", 1);
+        ByteBuffer buffer = ByteBuffer.allocate(v4.size() + v6.size());
+        v6.put(v4.put(buffer));
+        assertEquals(8 + 20, buffer.position());
+        buffer.flip();
+        assertEquals(v4, Candidate.get(buffer));
+        assertEquals(v6, Candidate.get(buffer));
+        assertTrue(!buffer.hasRemaining());
+
+        // unknown type, unknown family, truncated
+        assertNull(Candidate.get(ByteBuffer.wrap(new byte[] { 9, 4, 0, 1, 1, 2, 3, 4 })));
+        assertNull(Candidate.get(ByteBuffer.wrap(new byte[] { 0, 5, 0, 1, 1, 2, 3, 4 })));
+        assertNull(Candidate.get(ByteBuffer.wrap(new byte[] { 0, 6, 0, 1, 1, 2, 3, 4 })));
+        assertNull(Candidate.get(ByteBuffer.wrap(new byte[] { 0, 4, 0 })));
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.network;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * CPU time and thread count of keepalive scheduling at 10, 1k and 10k
+ * connections: one sleep-polling thread per connection versus the shared
+ * timing wheel.
+ *
+ * Run with {@code java -cp target/classes:target/test-classes com.example.network.KeepaliveBenchmark}.
+ */
+public class KeepaliveBenchmark {
+    private static final long WINDOW = Long.getLong("bench.window", 5_000);
+    private static final String SIZES = System.getProperty("bench.sizes", "10,1000,10000");
+    // thread-per-connection starves small machines long before 10k
+    private static final int LEGACY_MAX = Integer.getInteger("bench.legacy.max", Integer.MAX_VALUE);
+
+    private static long cpu() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static void report(String name, int size) throws InterruptedException {
+        Thread.sleep(1_000);
+        long cpu = cpu();
+        long start = System.nanoTime();
+        Thread.sleep(WINDOW);
+        double used = (cpu() - cpu) / (double) (System.nanoTime() - start);
+        System.out.println(String.format(
+            "%-7s connections=%-6d threads=%-6d cpu=%.1f%%",
+            name, size, ManagementFactory.getThreadMXBean().getThreadCount(), used * 100
+        ));
+    }
+
+    private static void threads(int size, DatagramChannel channel) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        AtomicBoolean active = new AtomicBoolean(true);
+        for (int i = 0; i < size; i++) {
+            InetSocketAddress host = new InetSocketAddress(InetAddress.getLoopbackAddress(), 20_000 + i);
+            Thread thread = new Thread(() -> {
+                long lastKeepalive = 0;
+                while (active.get()) {
+                    long now = new Date().getTime();
+                    if (now - lastKeepalive > 1_000) {
+                        try {
+                            channel.send(ByteBuffer.allocate(0), host);
+                        } catch (Exception e) {
+                            // pass
+                        }
+                        lastKeepalive = now;
+                    }
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        // pass
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        report("threads", size);
+        active.set(false);
+        for (Thread thread: threads) thread.join();
+    }
+
+    private static void wheel(int size) throws Exception {
+        List<UdpConnection> connections = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            UdpConnection connection = UdpConnectionManager.add(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 20_000 + i)
+            );
+            connection.start();
+            connections.add(connection);
+        }
+        report("wheel", size);
+        for (UdpConnection connection: connections) connection.stop();
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        DatagramChannel channel = DatagramChannel.open();
+        UdpConnectionManager.start();
+        for (String size: SIZES.split(",")) {
+            int n = Integer.parseInt(size.trim());
+            if (n <= LEGACY_MAX) threads(n, channel);
+            wheel(n);
+        }
+        UdpConnectionManager.stop();
+        channel.close();
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PathMtuTest {
+    /**
+     * Runs a search over a path carrying datagrams of up to mtu bytes.
+     *
+     * @return probes sent
+     */
+    private static int search(PathMtu pmtu, int mtu, long now) {
+        int probes = 0;
+        for (int i = 0; i < 1_000; i++, now += 100) {
+            int size = pmtu.probe(now, 100);
+            if (size == 0) {
+                if (pmtu.deadline() > now + 100) return probes;
+                continue;
+            }
+            probes++;
+            if (size <= mtu) pmtu.acked(size);
+        }
+        return probes;
+    }
+
+    @Test
+    public void findsTheLargestSizeTheFirstProbe() {
+        PathMtu pmtu = new PathMtu();
+        assertEquals(PathMtu.BASE, pmtu.size());
+        assertEquals(1, search(pmtu, 1500, 0));
+        assertEquals(PathMtu.MAX, pmtu.size());
+    }
+
+    @Test
+    public void searchesDownWhenProbesAreLost() {
+        PathMtu pmtu = new PathMtu();
+        // e.g. PPPoE with 8 bytes of overhead, then a tunnel
+        search(pmtu, 1400, 0);
+        assertTrue(pmtu.size() <= 1400 && pmtu.size() > 1400 - 8);
+    }
+
+    @Test
+    public void fallsBackToTheBaseSize() {
+        PathMtu pmtu = new PathMtu();
+        search(pmtu, 1500, 0);
+        pmtu.reset();
+        assertEquals(PathMtu.BASE, pmtu.size());
+        // and searches again right away
+        assertEquals(PathMtu.MAX, pmtu.probe(0, 100));
+    }
+
+    @Test
+    public void locallyRefusedProbesLowerTheBound() {
+        PathMtu pmtu = new PathMtu();
+        int size = pmtu.probe(0, 100);
+        pmtu.tooBig(size);
+        int next = pmtu.probe(0, 100);
+        assertTrue(next > PathMtu.BASE && next < size);
+    }
+}
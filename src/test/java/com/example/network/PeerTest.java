@@ -0,0 +1,94 @@
+package com.example.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+public class PeerTest {
+    private static InetSocketAddress loopback(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @Test
+    public void fastestWorkingCandidateIsSelected() throws Exception {
+        UdpEndpoint a = new UdpEndpoint(0, 1);
+        UdpEndpoint b = new UdpEndpoint(0, 1);
+        a.start();
+        b.start();
+        // a slow path that ranks higher, and an address nobody answers at
+        try (LossyRelay relay = new LossyRelay(a.getPort(), b.getPort(), 0, 1_000, 1 << 16);
+                DatagramChannel dead = DatagramChannel.open().bind(loopback(0))) {
+            b.add(loopback(a.getPort())).start();
+            b.add(relay.back()).start();
+
+            List<UdpConnection> selections = new CopyOnWriteArrayList<>();
+            Peer peer = new Peer(a, a::add).onSelect(selections::add);
+            assertTrue(peer.add(List.of(
+                new Candidate(Candidate.Type.SERVER_REFLEXIVE, loopback(b.getPort())),
+                new Candidate(Candidate.Type.HOST, relay.front()),
+                new Candidate(Candidate.Type.HOST, (InetSocketAddress) dead.getLocalAddress())
+            )));
+            assertEquals(relay.front(), peer.getCandidates().get(0).address());
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while ((a.get(relay.front()) != null || a.get((InetSocketAddress) dead.getLocalAddress()) != null)
+                    && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            // the losers are removed once the window is over
+            assertNull(a.get(relay.front()));
+            assertNull(a.get((InetSocketAddress) dead.getLocalAddress()));
+            UdpConnection direct = a.get(loopback(b.getPort()));
+            assertSame(direct, peer.getSelected());
+            assertSame(direct, peer.getConnection());
+            assertSame(direct, selections.get(selections.size() - 1));
+            assertTrue(peer.has(relay.front()));
+            assertEquals(3, peer.getCandidates().size());
+
+            // known candidates start nothing
+            assertTrue(!peer.add(List.of(new Candidate(Candidate.Type.HOST, relay.front()))));
+            peer.close();
+            assertNull(a.get(loopback(b.getPort())));
+        } finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    @Test
+    public void closeCancelsChecksNotStartedYet() throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        endpoint.start();
+        try (DatagramChannel first = DatagramChannel.open().bind(loopback(0));
+                DatagramChannel second = DatagramChannel.open().bind(loopback(0));
+                DatagramChannel third = DatagramChannel.open().bind(loopback(0))) {
+            Peer peer = new Peer(endpoint, endpoint::add);
+            peer.add(List.of(
+                new Candidate(Candidate.Type.HOST, (InetSocketAddress) first.getLocalAddress()),
+                new Candidate(Candidate.Type.HOST, (InetSocketAddress) second.getLocalAddress()),
+                new Candidate(Candidate.Type.HOST, (InetSocketAddress) third.getLocalAddress())
+            ));
+            // within udp.ice.pace, only the first check may have started
+            peer.close();
+            assertEquals(0, endpoint.getConnections().size());
+
+            Thread.sleep(500);
+            for (DatagramChannel channel: List.of(second, third)) {
+                channel.configureBlocking(false);
+                assertNull(channel.receive(ByteBuffer.allocate(1500)));
+            }
+        } finally {
+            endpoint.stop();
+        }
+    }
+}
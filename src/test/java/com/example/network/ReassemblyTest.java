@@ -0,0 +1,66 @@
+package com.example.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ReassemblyTest {
+    private static ByteBuffer fragment(int id, int index, int count, byte[] data) {
+        ByteBuffer frame = ByteBuffer.allocate(Frame.FRAGMENT_HEADER + data.length);
+        frame.put(Frame.FRAGMENT).putInt(id).putShort((short) index).putShort((short) count).put(data);
+        return frame.flip();
+    }
+
+    @Test
+    public void assemblesOutOfOrderAndIgnoresDuplicates() {
+        Reassembly reassembly = new Reassembly(new ConnectionMetrics());
+        assertNull(reassembly.add(fragment(7, 2, 3, new byte[] { 5 }), 0));
+        assertNull(reassembly.add(fragment(7, 0, 3, new byte[] { 1, 2 }), 0));
+        assertNull(reassembly.add(fragment(7, 0, 3, new byte[] { 1, 2 }), 0));
+        ByteBuffer message = reassembly.add(fragment(7, 1, 3, new byte[] { 3, 4 }), 0);
+        byte[] data = new byte[message.remaining()];
+        message.get(data);
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, data);
+        assertEquals(0, reassembly.size());
+    }
+
+    @Test
+    public void dropsPartialMessagesAfterTheTimeout() {
+        ConnectionMetrics metrics = new ConnectionMetrics();
+        Reassembly reassembly = new Reassembly(metrics);
+        assertNull(reassembly.add(fragment(1, 0, 2, new byte[100]), 0));
+        assertEquals(100, reassembly.size());
+        // the rest arrives too late
+        assertNull(reassembly.add(fragment(2, 0, 2, new byte[100]), Reassembly.TIMEOUT));
+        assertNull(reassembly.add(fragment(1, 1, 2, new byte[100]), Reassembly.TIMEOUT));
+        assertEquals(1, metrics.incomplete.sum());
+    }
+
+    @Test
+    public void evictsTheOldestToStayWithinTheMemoryBound() {
+        ConnectionMetrics metrics = new ConnectionMetrics();
+        Reassembly reassembly = new Reassembly(metrics);
+        byte[] chunk = new byte[Reassembly.SIZE / 4];
+        for (int id = 0; id < 5; id++) {
+            assertNull(reassembly.add(fragment(id, 0, 2, chunk), 0));
+        }
+        assertEquals(1, metrics.incomplete.sum());
+        assertEquals(Reassembly.SIZE, reassembly.size());
+    }
+
+    @Test
+    public void evictsTheOldestToStayWithinTheMessageBound() {
+        ConnectionMetrics metrics = new ConnectionMetrics();
+        Reassembly reassembly = new Reassembly(metrics);
+        byte[] chunk = new byte[1_200];
+        for (int id = 0; id < Reassembly.MESSAGES + 10; id++) {
+            assertNull(reassembly.add(fragment(id, 0, 2, chunk), 0));
+        }
+        assertEquals(10, metrics.incomplete.sum());
+        assertEquals(Reassembly.MESSAGES * chunk.length, reassembly.size());
+    }
+}
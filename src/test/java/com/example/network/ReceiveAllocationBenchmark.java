@@ -0,0 +1,80 @@
+package com.example.network;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * Bytes allocated by the UDP receiver thread per received datagram, for
+ * the copying {@code byte[]} listener and the zero-copy {@code ByteBuffer}
+ * listener. Measured with the per-thread allocation counter of
+ * {@link com.sun.management.ThreadMXBean}.
+ *
+ * Run with {@code java -cp target/classes:target/test-classes com.example.network.ReceiveAllocationBenchmark}.
+ */
+public class ReceiveAllocationBenchmark {
+    private static final int COUNT = Integer.getInteger("bench.count", 200_000);
+    private static final int SIZE = Integer.getInteger("bench.size", 512);
+
+    private static long allocated(Thread thread) {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(thread.threadId());
+    }
+
+    private static Thread receiver() {
+        for (Thread thread: Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("UDP Receiver")) return thread;
+        }
+        throw new IllegalStateException("receiver thread not found");
+    }
+
+    private static void run(String name, DatagramChannel sender, InetSocketAddress target, AtomicInteger received) throws Exception {
+        ByteBuffer data = ByteBuffer.allocate(SIZE);
+        Thread thread = receiver();
+        // warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            received.set(0);
+            long before = allocated(thread);
+            int sent = 0;
+            while (sent < COUNT) {
+                // stay below the socket buffer so nothing is dropped
+                if (sent - received.get() < 64) {
+                    sender.send(data.clear(), target);
+                    sent++;
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+            while (received.get() < COUNT) Thread.sleep(1);
+            if (round == 1) {
+                System.out.println(String.format(
+                    "%-10s %,d datagrams, %.1f bytes allocated per datagram",
+                    name, COUNT, (allocated(thread) - before) / (double) COUNT
+                ));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        DatagramChannel sender = DatagramChannel.open();
+        sender.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        AtomicInteger received = new AtomicInteger();
+        UdpConnection connection = UdpConnectionManager.add((InetSocketAddress) sender.getLocalAddress());
+        UdpConnectionManager.start();
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), UdpConnectionManager.getPort());
+
+        connection.onReceive(data -> received.incrementAndGet());
+        run("byte[]", sender, target, received);
+
+        connection.onReceive(null).onReceiveBuffer(data -> received.incrementAndGet());
+        run("ByteBuffer", sender, target, received);
+
+        UdpConnectionManager.stop();
+        sender.close();
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loopback comparison of the legacy sleep-polling receive loop and the
+ * selector-driven loop in {@link UdpConnectionManager}.
+ *
+ * Run with {@code java -cp target/classes:target/test-classes com.example.network.ReceiveLoopBenchmark}.
+ */
+public class ReceiveLoopBenchmark {
+    private static final int PINGS = Integer.getInteger("bench.pings", 2_000);
+    private static final int BURST = Integer.getInteger("bench.burst", 100_000);
+
+    private static class Sink {
+        private final AtomicInteger received = new AtomicInteger();
+        private final long[] latencies = new long[Math.max(PINGS, BURST)];
+        private volatile long last;
+
+        void accept(long sent) {
+            long now = System.nanoTime();
+            int i = this.received.getAndIncrement();
+            if (i < this.latencies.length) this.latencies[i] = now - sent;
+            this.last = now;
+        }
+
+        void reset() {
+            this.received.set(0);
+            this.last = 0;
+        }
+
+        long percentile(double p) {
+            int n = Math.min(this.received.get(), this.latencies.length);
+            if (n == 0) return -1;
+            long[] sorted = Arrays.copyOf(this.latencies, n);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(n - 1, Math.round(p * (n - 1)))];
+        }
+    }
+
+    private static void run(String name, DatagramChannel sender, InetSocketAddress target, Sink sink) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+
+        // latency: one datagram in flight at a time
+        sink.reset();
+        for (int i = 0; i < PINGS; i++) {
+            int before = sink.received.get();
+            sender.send(buffer.clear().putLong(System.nanoTime()).flip(), target);
+            long deadline = System.nanoTime() + 1_000_000_000L;
+            while (sink.received.get() == before && System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+        }
+        System.out.println(String.format(
+            "%-8s latency    : p50=%,dns p99=%,dns (%d/%d)",
+            name, sink.percentile(0.50), sink.percentile(0.99), sink.received.get(), PINGS
+        ));
+
+        // throughput: blast and count what the loop manages to drain
+        sink.reset();
+        long start = System.nanoTime();
+        for (int i = 0; i < BURST; i++) {
+            sender.send(buffer.clear().putLong(System.nanoTime()).flip(), target);
+        }
+        int seen = -1;
+        while (seen != sink.received.get()) {
+            seen = sink.received.get();
+            Thread.sleep(500);
+        }
+        double seconds = (sink.last - start) / 1e9;
+        System.out.println(String.format(
+            "%-8s throughput : %,.0f pkt/s, received %d/%d, p99=%,dns",
+            name, seen / seconds, seen, BURST, sink.percentile(0.99)
+        ));
+    }
+
+    private static void legacy() throws Exception {
+        Sink sink = new Sink();
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread receiver = new Thread(() -> {
+            while (channel.isOpen()) {
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate((1 << 16) - 1);
+                    if (channel.receive(buffer) != null) {
+                        sink.accept(buffer.flip().getLong());
+                    }
+                    Thread.sleep(1);
+                } catch (IOException | InterruptedException e) {
+                    // pass
+                }
+            }
+        }, "Legacy Receiver");
+        receiver.start();
+        DatagramChannel sender = DatagramChannel.open();
+        sender.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        run("legacy", sender, (InetSocketAddress) channel.getLocalAddress(), sink);
+        sender.close();
+        channel.close();
+        receiver.join();
+    }
+
+    private static void selector() throws Exception {
+        Sink sink = new Sink();
+        DatagramChannel sender = DatagramChannel.open();
+        sender.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        UdpConnectionManager.add(
+            (InetSocketAddress) sender.getLocalAddress()
+        ).raw(
+        ).onReceive(
+            data -> sink.accept(ByteBuffer.wrap(data).getLong())
+        );
+        UdpConnectionManager.start();
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), UdpConnectionManager.getPort());
+        run("selector", sender, target, sink);
+        UdpConnectionManager.stop();
+        sender.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        legacy();
+        selector();
+    }
+}
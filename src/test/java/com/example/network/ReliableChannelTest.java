@@ -0,0 +1,228 @@
+package com.example.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+public class ReliableChannelTest {
+    private static InetSocketAddress loopback(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @Test
+    public void deliversEverythingInOrderDespiteLoss() throws Exception {
+        UdpEndpoint a = new UdpEndpoint(0, 1);
+        UdpEndpoint b = new UdpEndpoint(0, 1);
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        a.start();
+        b.start();
+        try (LossyRelay relay = new LossyRelay(a.getPort(), b.getPort(), 0.05)) {
+            UdpConnection sender = a.add(relay.front());
+            UdpConnection receiver = b.add(relay.back())
+                .mailbox(64, SerialExecutor.OverflowPolicy.BLOCK)
+                .onReceiveBuffer(data -> received.add(data.getInt()));
+            sender.start();
+            receiver.start();
+
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                futures.add(sender.sendReliable(ByteBuffer.allocate(Integer.BYTES).putInt(0, i)));
+                // unreliable traffic in between is not ordered with it
+                sender.offer(ByteBuffer.allocate(Integer.BYTES).putInt(0, -1));
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (received.stream().filter(i -> i >= 0).count() < 1000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            List<Integer> reliable = received.stream().filter(i -> i >= 0).toList();
+            assertEquals(1000, reliable.size());
+            for (int i = 0; i < reliable.size(); i++) {
+                assertEquals(i, (int) reliable.get(i));
+            }
+            assertTrue(relay.dropped.sum() > 0);
+            assertTrue(sender.getMetrics().retransmits() > 0);
+        } finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    @Test
+    public void deliversLargeMessagesIntactDespiteLoss() throws Exception {
+        UdpEndpoint a = new UdpEndpoint(0, 1);
+        UdpEndpoint b = new UdpEndpoint(0, 1);
+        List<byte[]> received = new CopyOnWriteArrayList<>();
+        a.start();
+        b.start();
+        try (LossyRelay relay = new LossyRelay(a.getPort(), b.getPort(), 0.05)) {
+            UdpConnection sender = a.add(relay.front());
+            UdpConnection receiver = b.add(relay.back()).onReceive(received::add);
+            sender.start();
+            receiver.start();
+
+            List<byte[]> messages = new ArrayList<>();
+            Random random = new Random(1);
+            for (int i = 0; i < 10; i++) {
+                byte[] message = new byte[200_000 + i];
+                random.nextBytes(message);
+                messages.add(message);
+                // a few hundred fragments each, more than one at a time overflows the send queue
+                sender.sendReliable(ByteBuffer.wrap(message)).get(30, TimeUnit.SECONDS);
+            }
+
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (received.size() < messages.size() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(messages.size(), received.size());
+            for (int i = 0; i < messages.size(); i++) {
+                assertArrayEquals(messages.get(i), received.get(i));
+            }
+            assertTrue(sender.getMetrics().retransmits() > 0);
+        } finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    @Test
+    public void streamsAreOrderedAndDeliveredSeparately() throws Exception {
+        UdpEndpoint a = new UdpEndpoint(0, 1);
+        UdpEndpoint b = new UdpEndpoint(0, 1);
+        List<Integer> one = new CopyOnWriteArrayList<>();
+        List<Integer> two = new CopyOnWriteArrayList<>();
+        List<byte[]> other = new CopyOnWriteArrayList<>();
+        a.start();
+        b.start();
+        try (LossyRelay relay = new LossyRelay(a.getPort(), b.getPort(), 0.05)) {
+            UdpConnection sender = a.add(relay.front());
+            UdpConnection receiver = b.add(relay.back())
+                .mailbox(64, SerialExecutor.OverflowPolicy.BLOCK)
+                .onReceive(other::add);
+            receiver.stream(1).onReceiveBuffer(data -> one.add(data.getInt()));
+            receiver.stream(2).onReceiveBuffer(data -> two.add(data.getInt()));
+            sender.start();
+            receiver.start();
+
+            UdpStream first = sender.stream(1);
+            UdpStream second = sender.stream(2).priority(0);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                futures.add(first.sendReliable(ByteBuffer.allocate(Integer.BYTES).putInt(0, i)));
+                futures.add(second.sendReliable(ByteBuffer.allocate(Integer.BYTES).putInt(0, i)));
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+            // a stream without listeners of its own goes to the connection's
+            byte[] large = new byte[10_000];
+            new Random(1).nextBytes(large);
+            sender.stream(3).sendReliable(ByteBuffer.wrap(large)).get(30, TimeUnit.SECONDS);
+
+            long deadline = System.currentTimeMillis() + 5_000;
+            while ((one.size() < 500 || two.size() < 500 || other.isEmpty()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            for (List<Integer> received: List.of(one, two)) {
+                assertEquals(500, received.size());
+                for (int i = 0; i < received.size(); i++) {
+                    assertEquals(i, (int) received.get(i));
+                }
+            }
+            assertEquals(1, other.size());
+            assertArrayEquals(large, other.get(0));
+        } finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    @Test
+    public void suppressesDuplicatesAndReordersEarlyMessages() throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        try (DatagramChannel peer = DatagramChannel.open()) {
+            peer.bind(loopback(0));
+            endpoint.start();
+            UdpConnection connection = endpoint.add((InetSocketAddress) peer.getLocalAddress())
+                .mailbox(0, SerialExecutor.OverflowPolicy.BLOCK)
+                .onReceive(data -> received.add((int) data[0]));
+
+            InetSocketAddress target = loopback(endpoint.getPort());
+            for (int seq: new int[] { 0, 0, 2, 2, 1, 1 }) {
+                ByteBuffer frame = ByteBuffer.allocate(Frame.RELIABLE_HEADER + 1);
+                frame.put(Frame.RELIABLE).putInt(42).putInt(seq).put((byte) seq).flip();
+                peer.send(frame, target);
+            }
+
+            // every frame is answered, the last ACK covers all three
+            ByteBuffer ack = ByteBuffer.allocate(64);
+            int acks = 0;
+            int cumulative = -1;
+            peer.configureBlocking(true);
+            while (acks < 6) {
+                peer.receive(ack.clear());
+                if (ack.get(0) != Frame.ACK) continue;
+                assertEquals(42, ack.getInt(Frame.HEADER));
+                cumulative = ack.getInt(Frame.HEADER + Integer.BYTES);
+                acks++;
+            }
+            assertEquals(3, cumulative);
+            assertEquals(List.of(0, 1, 2), received);
+            assertEquals(3, connection.getMetrics().duplicates());
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    @Test
+    public void framesOfAnOlderSessionAreDropped() throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        try (DatagramChannel peer = DatagramChannel.open()) {
+            peer.bind(loopback(0));
+            endpoint.start();
+            UdpConnection connection = endpoint.add((InetSocketAddress) peer.getLocalAddress())
+                .mailbox(0, SerialExecutor.OverflowPolicy.BLOCK)
+                .onReceive(data -> received.add((int) data[0]));
+
+            InetSocketAddress target = loopback(endpoint.getPort());
+            // a late frame of session 41 in the middle of session 42, then the peer restarts with 43
+            int[][] frames = { { 42, 0 }, { 42, 1 }, { 41, 5 }, { 42, 2 }, { 43, 0 } };
+            for (int[] session: frames) {
+                ByteBuffer frame = ByteBuffer.allocate(Frame.RELIABLE_HEADER + 1);
+                frame.put(Frame.RELIABLE).putInt(session[0]).putInt(session[1]).put((byte) session[1]).flip();
+                peer.send(frame, target);
+            }
+
+            ByteBuffer ack = ByteBuffer.allocate(64);
+            List<String> acks = new ArrayList<>();
+            peer.configureBlocking(true);
+            while (acks.size() < 4) {
+                peer.receive(ack.clear());
+                if (ack.get(0) != Frame.ACK) continue;
+                acks.add(ack.getInt(Frame.HEADER) + ":" + ack.getInt(Frame.HEADER + Integer.BYTES));
+            }
+            assertEquals(List.of("42:1", "42:2", "42:3", "43:1"), acks);
+            assertEquals(List.of(0, 1, 2, 0), received);
+            assertEquals(1, connection.getMetrics().duplicates());
+        } finally {
+            endpoint.stop();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * Goodput of reliable sends between two loopback endpoints through a relay
+ * dropping datagrams, in both directions, at increasing rates.
+ *
+ * Run with {@code java -cp target/classes:target/test-classes com.example.network.ReliableLossBenchmark}.
+ */
+public class ReliableLossBenchmark {
+    private static final int COUNT = Integer.getInteger("bench.count", 20_000);
+    private static final int SIZE = Integer.getInteger("bench.size", 1_024);
+
+    private static void run(double loss) throws Exception {
+        UdpEndpoint a = new UdpEndpoint(0, 1);
+        UdpEndpoint b = new UdpEndpoint(0, 1);
+        a.start();
+        b.start();
+        try (LossyRelay relay = new LossyRelay(a.getPort(), b.getPort(), loss)) {
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger outOfOrder = new AtomicInteger();
+            UdpConnection sender = a.add(relay.front());
+            UdpConnection receiver = b.add(relay.back())
+                .mailbox(0, SerialExecutor.OverflowPolicy.BLOCK)
+                .onReceiveBuffer(data -> {
+                    if (data.getInt() != next.getAndIncrement()) outOfOrder.incrementAndGet();
+                });
+            sender.start();
+            receiver.start();
+
+            // keep a window's worth outstanding
+            Semaphore outstanding = new Semaphore(ReliableChannel.WINDOW);
+            ByteBuffer payload = ByteBuffer.allocate(SIZE);
+            long start = System.nanoTime();
+            CompletableFuture<Void> last = null;
+            for (int i = 0; i < COUNT; i++) {
+                outstanding.acquire();
+                last = sender.sendReliable(payload.putInt(0, i)).whenComplete((result, e) -> outstanding.release());
+            }
+            last.get(60, TimeUnit.SECONDS);
+            outstanding.acquire(ReliableChannel.WINDOW);
+            long elapsed = System.nanoTime() - start;
+
+            ConnectionMetrics.Snapshot metrics = sender.getMetrics();
+            System.out.println(String.format(
+                "loss=%2.0f%% goodput=%,7.1f msg/s %,6.1f Mbit/s retransmits=%,d duplicates=%,d out of order=%d",
+                loss * 100,
+                COUNT * 1e9 / elapsed,
+                COUNT * SIZE * 8e3 / elapsed,
+                metrics.retransmits(),
+                receiver.getMetrics().duplicates(),
+                outOfOrder.get()
+            ));
+        } finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        for (double loss: new double[] { 0, 0.01, 0.03, 0.05 }) {
+            run(loss);
+        }
+    }
+}
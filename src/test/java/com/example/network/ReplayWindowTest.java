@@ -0,0 +1,47 @@
+package com.example.network;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ReplayWindowTest {
+    private static boolean receive(ReplayWindow window, long counter) {
+        if (!window.check(counter)) return false;
+        window.update(counter);
+        return true;
+    }
+
+    @Test
+    public void acceptsEachCounterOnceInAnyOrder() {
+        ReplayWindow window = new ReplayWindow();
+        for (long counter: new long[] { 0, 2, 1, 5, 3, 64, 4, 65 }) {
+            assertTrue(receive(window, counter));
+        }
+        for (long counter: new long[] { 0, 1, 2, 3, 4, 5, 64, 65 }) {
+            assertFalse(receive(window, counter));
+        }
+        assertTrue(receive(window, 6));
+    }
+
+    @Test
+    public void rejectsCountersBelowTheWindow() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(receive(window, 10_000));
+        assertFalse(receive(window, 10_000 - ReplayWindow.SIZE));
+        assertTrue(receive(window, 10_000 - ReplayWindow.SIZE + 1));
+        assertFalse(receive(window, -1));
+    }
+
+    @Test
+    public void forgetsBitsOfReusedWords() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(receive(window, 100));
+        // far enough that every word comes around again
+        long jump = 100 + 64 * 64;
+        assertTrue(receive(window, jump));
+        for (long counter = jump - ReplayWindow.SIZE + 1; counter < jump; counter++) {
+            assertTrue(window.check(counter));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RttEstimatorTest {
+    @Test
+    public void followsRfc6298() {
+        RttEstimator estimator = new RttEstimator();
+        assertNull(estimator.getRtt());
+        assertEquals(Duration.ofSeconds(1), estimator.getRto());
+
+        // first sample: SRTT = R, RTTVAR = R / 2
+        estimator.sample(TimeUnit.MILLISECONDS.toNanos(80));
+        assertEquals(Duration.ofMillis(80), estimator.getRtt());
+        assertEquals(Duration.ofMillis(40), estimator.getRttVariance());
+        assertEquals(Duration.ofMillis(80 + 4 * 40), estimator.getRto());
+
+        // RTTVAR = 3/4 * 40 + 1/4 * |80 - 120|, SRTT = 7/8 * 80 + 1/8 * 120
+        estimator.sample(TimeUnit.MILLISECONDS.toNanos(120));
+        assertEquals(Duration.ofMillis(85), estimator.getRtt());
+        assertEquals(Duration.ofMillis(40), estimator.getRttVariance());
+        assertEquals(Duration.ofMillis(85 + 4 * 40), estimator.getRto());
+        assertEquals(2 * (85 + 4 * 40), estimator.rto(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void clampsToMinimum() {
+        RttEstimator estimator = new RttEstimator();
+        for (int i = 0; i < 32; i++) estimator.sample(TimeUnit.MICROSECONDS.toNanos(100));
+        assertEquals(Duration.ofMillis(10), estimator.getRto());
+    }
+}
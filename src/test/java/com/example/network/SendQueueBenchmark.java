@@ -0,0 +1,92 @@
+package com.example.network;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+
+/**
+ * Sustained packets per second from many concurrent producers: every
+ * producer calling send on one shared channel versus producers offering to
+ * per-connection queues drained by the sender thread.
+ *
+ * Run with {@code java -cp target/classes:target/test-classes com.example.network.SendQueueBenchmark}.
+ */
+public class SendQueueBenchmark {
+    private static final int PRODUCERS = Integer.getInteger("bench.producers", 16);
+    private static final long WINDOW = Long.getLong("bench.window", 3_000);
+    private static final int SIZE = Integer.getInteger("bench.size", 256);
+
+    private interface Producer {
+        boolean send(int index, ByteBuffer data) throws Exception;
+    }
+
+    private static void run(String name, Producer producer, DatagramChannel sink) throws Exception {
+        AtomicLong sent = new AtomicLong();
+        AtomicLong received = new AtomicLong();
+        long deadline = System.nanoTime() + WINDOW * 1_000_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; i++) {
+            int index = i;
+            threads.add(new Thread(() -> {
+                ByteBuffer data = ByteBuffer.allocate(SIZE);
+                try {
+                    while (System.nanoTime() < deadline) {
+                        // a fresh buffer per packet: queued buffers must not be reused
+                        if (producer.send(index, data.duplicate().clear())) {
+                            sent.incrementAndGet();
+                        } else {
+                            // queue full, let the sender thread catch up
+                            Thread.yield();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        Thread counter = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+            try {
+                while (System.nanoTime() < deadline + 500_000_000L) {
+                    if (sink.receive(buffer.clear()) != null) received.incrementAndGet();
+                    else Thread.onSpinWait();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        counter.start();
+        for (Thread thread: threads) thread.start();
+        for (Thread thread: threads) thread.join();
+        counter.join();
+        System.out.println(String.format(
+            "%-7s producers=%d sent=%,.0f pkt/s received=%,.0f pkt/s",
+            name, PRODUCERS, sent.get() * 1000.0 / WINDOW, received.get() * 1000.0 / WINDOW
+        ));
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        DatagramChannel sink = DatagramChannel.open();
+        sink.configureBlocking(false);
+        sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        InetSocketAddress target = (InetSocketAddress) sink.getLocalAddress();
+
+        DatagramChannel shared = DatagramChannel.open();
+        run("direct", (index, data) -> shared.send(data, target) > 0, sink);
+        shared.close();
+
+        // the queue itself is measured, not the pacer
+        UdpConnection connection = UdpConnectionManager.add(target).congestion(null);
+        UdpConnectionManager.start();
+        run("queued", (index, data) -> connection.offer(data), sink);
+        UdpConnectionManager.stop();
+        sink.close();
+    }
+}
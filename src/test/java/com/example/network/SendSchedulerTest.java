@@ -0,0 +1,88 @@
+package com.example.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+import com.example.network.UdpEndpoint.Outbound;
+
+public class SendSchedulerTest {
+    private final UdpConnection connection = new UdpConnection(new UdpEndpoint(0, 1), new InetSocketAddress("127.0.0.1", 9));
+
+    private static Outbound item(UdpStream stream, int size) {
+        return new Outbound(ByteBuffer.allocate(size), null, 0, stream.getId());
+    }
+
+    @Test
+    public void higherPriorityGoesFirst() {
+        SendScheduler scheduler = new SendScheduler();
+        UdpStream bulk = this.connection.stream(1).priority(7);
+        UdpStream control = this.connection.stream(2).priority(0);
+        for (int i = 0; i < 10; i++) assertTrue(scheduler.offer(bulk, item(bulk, 1_000)));
+        // the sender thread takes what it peeked
+        Outbound peeked = scheduler.peek();
+        assertEquals(1, peeked.stream());
+        scheduler.offer(control, item(control, 10));
+        assertEquals(peeked, scheduler.poll());
+        assertEquals(2, scheduler.poll().stream());
+        for (int i = 0; i < 9; i++) assertEquals(1, scheduler.poll().stream());
+        assertTrue(scheduler.isEmpty());
+        assertNull(scheduler.poll());
+    }
+
+    @Test
+    public void streamsOfOnePriorityShareByWeightInBytes() {
+        SendScheduler scheduler = new SendScheduler();
+        UdpStream a = this.connection.stream(1).priority(4);
+        UdpStream b = this.connection.stream(2).priority(4).weight(3);
+        // the same bytes queued, more than is taken
+        for (int i = 0; i < 200; i++) scheduler.offer(a, item(a, 1_200));
+        for (int i = 0; i < 800; i++) scheduler.offer(b, item(b, 300));
+        int[] bytes = new int[3];
+        while (bytes[1] + bytes[2] < 100 * SendScheduler.QUANTUM) {
+            Outbound item = scheduler.poll();
+            bytes[item.stream()] += item.data().remaining();
+        }
+        double share = (double) bytes[2] / (bytes[1] + bytes[2]);
+        assertEquals(0.75, share, 0.02);
+    }
+
+    @Test
+    public void streamsTakeTurnsWhenTheSenderConsumesTheBuffers() {
+        SendScheduler scheduler = new SendScheduler();
+        UdpStream a = this.connection.stream(1).priority(4);
+        UdpStream b = this.connection.stream(2).priority(4);
+        // one frame a round each
+        for (int i = 0; i < 20; i++) scheduler.offer(a, item(a, SendScheduler.QUANTUM));
+        for (int i = 0; i < 20; i++) scheduler.offer(b, item(b, SendScheduler.QUANTUM));
+        StringBuilder order = new StringBuilder();
+        Outbound item;
+        while ((item = scheduler.peek()) != null) {
+            // as a socket send does, before the sender polls
+            item.data().position(item.data().limit());
+            assertEquals(item, scheduler.poll());
+            order.append(item.stream());
+        }
+        assertEquals("12".repeat(20), order.toString());
+    }
+
+    @Test
+    public void eachStreamHasItsOwnCapacity() {
+        SendScheduler scheduler = new SendScheduler();
+        UdpStream a = this.connection.stream(1).capacity(2);
+        UdpStream b = this.connection.stream(2).capacity(2);
+        assertTrue(scheduler.offer(a, item(a, 1)));
+        assertTrue(scheduler.offer(a, item(a, 1)));
+        assertFalse(scheduler.offer(a, item(a, 1)));
+        assertEquals(0, scheduler.remainingCapacity(a));
+        assertTrue(scheduler.offer(b, item(b, 1)));
+        assertEquals(1, scheduler.remainingCapacity(b));
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SerialExecutorTest {
+    @Test
+    public void unboundedTasksAreNeverDropped() throws InterruptedException {
+        for (SerialExecutor.OverflowPolicy policy : List.of(SerialExecutor.OverflowPolicy.DROP_NEWEST, SerialExecutor.OverflowPolicy.DROP_OLDEST)) {
+            SerialExecutor executor = new SerialExecutor("test", 1, policy);
+            List<String> order = new CopyOnWriteArrayList<>();
+            CountDownLatch busy = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(1);
+            executor.execute(() -> {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // pass
+                }
+            });
+            assertTrue(busy.await(1, TimeUnit.SECONDS));
+            executor.executeUnbounded(() -> order.add("connect"));
+            executor.execute(() -> order.add("data 1"));
+            executor.execute(() -> order.add("data 2"));
+            executor.executeUnbounded(() -> order.add("disconnect"));
+            executor.executeUnbounded(done::countDown);
+            release.countDown();
+            assertTrue(done.await(1, TimeUnit.SECONDS));
+            assertEquals(policy.toString(), 1, executor.getDropped());
+            String data = policy == SerialExecutor.OverflowPolicy.DROP_NEWEST ? "data 1" : "data 2";
+            assertEquals(policy.toString(), List.of("connect", data, "disconnect"), order);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import org.junit.Test;
+
+public class SessionCipherTest {
+    private String open(SessionCipher session, ByteBuffer sealed) {
+        ByteBuffer received = ByteBuffer.allocateDirect(2048).put(sealed.duplicate());
+        int length = session.open(received, sealed.remaining());
+        if (length < 0) return null;
+        byte[] data = new byte[length];
+        received.get(0, data);
+        return new String(data, StandardCharsets.US_ASCII);
+    }
+
+    private static ByteBuffer frame(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * The exchange as connections run it: a hello that answers nothing
+     * yet, then one answering each side.
+     *
+     * @return the session of a, then that of b
+     */
+    private static SessionCipher[] exchange(KeyExchange a, KeyExchange b) {
+        assertNull(a.accept(b.hello()));
+        assertTrue(a.unanswered());
+        SessionCipher ba = b.accept(a.hello());
+        SessionCipher ab = a.accept(b.hello());
+        assertNotNull(ab);
+        assertNotNull(ba);
+        return new SessionCipher[] { ab, ba };
+    }
+
+    @Test
+    public void peersDeriveTheSameKeysAndRejectTampering() throws Exception {
+        SessionCipher[] sessions = exchange(new KeyExchange(null), new KeyExchange(null));
+        SessionCipher ab = sessions[0];
+        SessionCipher ba = sessions[1];
+
+        ByteBuffer frame = frame("hello");
+        ByteBuffer sealed = ab.seal(frame);
+        assertEquals(Frame.SECURE, sealed.get(0));
+        assertEquals(5 + SessionCipher.OVERHEAD, sealed.remaining());
+        // the frame is left as it was
+        assertEquals(5, frame.remaining());
+        assertEquals("hello", this.open(ba, sealed));
+        // replayed
+        assertNull(this.open(ba, sealed));
+
+        sealed = ab.seal(frame("world"));
+        sealed.put(Frame.SECURE_HEADER, (byte) (sealed.get(Frame.SECURE_HEADER) ^ 1));
+        assertNull(this.open(ba, sealed));
+        // its own frames are sealed for the other direction
+        assertNull(this.open(ab, ab.seal(frame("hello"))));
+        assertEquals("again", this.open(ab, ba.seal(frame("again"))));
+    }
+
+    @Test
+    public void aPeerKeyIsAcceptedOnlyOnce() {
+        KeyExchange a = new KeyExchange(null);
+        KeyExchange b = new KeyExchange(null);
+        assertNull(a.accept(b.hello()));
+        assertNotNull(b.accept(a.hello()));
+        ByteBuffer hello = b.hello();
+        assertNotNull(a.accept(hello.duplicate()));
+        assertNull(a.accept(hello.duplicate()));
+        assertNull(a.accept(a.hello()));
+    }
+
+    @Test
+    public void preSharedKeyAuthenticatesTheExchange() throws Exception {
+        byte[] psk = "correct horse battery staple".getBytes(StandardCharsets.US_ASCII);
+        KeyExchange a = new KeyExchange(psk);
+        KeyExchange b = new KeyExchange(psk);
+        KeyExchange other = new KeyExchange("something else".getBytes(StandardCharsets.US_ASCII));
+        KeyExchange none = new KeyExchange(null);
+
+        assertNull(a.accept(other.hello()));
+        assertNull(a.accept(none.hello()));
+        ByteBuffer forged = b.hello();
+        forged.put(Frame.HEADER, (byte) (forged.get(Frame.HEADER) ^ 1));
+        assertNull(a.accept(forged));
+        SessionCipher[] sessions = exchange(a, b);
+        assertEquals("hello", this.open(sessions[1], sessions[0].seal(frame("hello"))));
+    }
+
+    @Test
+    public void helloOfAnEarlierConnectionStartsNothing() {
+        byte[] psk = "correct horse battery staple".getBytes(StandardCharsets.US_ASCII);
+        KeyExchange a = new KeyExchange(psk);
+        KeyExchange b = new KeyExchange(psk);
+        exchange(a, b);
+        ByteBuffer replayed = b.hello();
+
+        // a restarts with a new key pair, which the old hello was not made for
+        KeyExchange restarted = new KeyExchange(psk);
+        assertNull(restarted.accept(replayed.duplicate()));
+        // and b's answer to the new one is still accepted
+        assertNotNull(b.accept(restarted.hello()));
+        assertNotNull(restarted.accept(b.hello()));
+    }
+
+    @Test
+    public void hkdfMatchesRfc5869() throws Exception {
+        // test case 1 of RFC 5869
+        byte[] ikm = new byte[22];
+        Arrays.fill(ikm, (byte) 0x0b);
+        byte[] salt = new byte[13];
+        for (int i = 0; i < salt.length; i++) salt[i] = (byte) i;
+        byte[] info = new byte[10];
+        for (int i = 0; i < info.length; i++) info[i] = (byte) (0xf0 + i);
+        byte[] okm = KeyExchange.hkdf(salt, ikm, info, 42);
+        assertEquals(
+            "3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865",
+            HexFormat.of().formatHex(okm)
+        );
+    }
+}
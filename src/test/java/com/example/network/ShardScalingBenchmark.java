@@ -0,0 +1,68 @@
+package com.example.network;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receive throughput on loopback with 1, 2, 4 and 8 SO_REUSEPORT shards,
+ * fed by a fixed set of concurrent senders.
+ *
+ * Run with {@code java -cp target/classes:target/test-classes com.example.network.ShardScalingBenchmark}.
+ */
+public class ShardScalingBenchmark {
+    private static final int PEERS = Integer.getInteger("bench.peers", 32);
+    private static final int SENDERS = Integer.getInteger("bench.senders", 4);
+    private static final long WINDOW = Long.getLong("bench.window", 3_000);
+    private static final String SHARDS = System.getProperty("bench.shards", "1,2,4,8");
+
+    private static void run(int shards, List<DatagramChannel> peers) throws Exception {
+        LongAdder received = new LongAdder();
+        UdpEndpoint endpoint = new UdpEndpoint(0, shards);
+        for (DatagramChannel peer: peers) {
+            endpoint.add((InetSocketAddress) peer.getLocalAddress()).onReceiveBuffer(data -> received.increment());
+        }
+        endpoint.start();
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), endpoint.getPort());
+        long deadline = System.nanoTime() + WINDOW * 1_000_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++) {
+            int offset = i;
+            threads.add(new Thread(() -> {
+                ByteBuffer data = ByteBuffer.allocate(64);
+                try {
+                    for (int n = offset; System.nanoTime() < deadline; n += SENDERS) {
+                        peers.get(n % PEERS).send(data.clear(), target);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        for (Thread thread: threads) thread.start();
+        for (Thread thread: threads) thread.join();
+        System.out.println(String.format(
+            "shards=%d received=%,.0f pkt/s",
+            shards, received.sum() * 1000.0 / WINDOW
+        ));
+        endpoint.stop();
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        List<DatagramChannel> peers = new ArrayList<>();
+        for (int i = 0; i < PEERS; i++) {
+            DatagramChannel peer = DatagramChannel.open();
+            peer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            peers.add(peer);
+        }
+        for (String shards: SHARDS.split(",")) {
+            run(Integer.parseInt(shards.trim()), peers);
+        }
+        for (DatagramChannel peer: peers) peer.close();
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.network;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receive latency of a fast peer while another peer's listener is slow,
+ * with listeners run inline on the receiver thread versus on per-connection
+ * serial executors.
+ *
+ * Run with {@code java -cp target/classes:target/test-classes com.example.network.SlowListenerBenchmark}.
+ */
+public class SlowListenerBenchmark {
+    private static final int COUNT = Integer.getInteger("bench.count", 1_000);
+    private static final long SLOW = Long.getLong("bench.slow", 20);
+
+    private static void run(String name, int mailbox) throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        DatagramChannel fast = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        DatagramChannel slow = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        long[] latencies = new long[COUNT];
+        AtomicInteger received = new AtomicInteger();
+        endpoint.add(
+            (InetSocketAddress) fast.getLocalAddress()
+        ).raw(
+        ).mailbox(
+            mailbox, SerialExecutor.OverflowPolicy.DROP_NEWEST
+        ).onReceiveBuffer(data -> {
+            int i = received.getAndIncrement();
+            if (i < COUNT) latencies[i] = System.nanoTime() - data.getLong();
+        });
+        endpoint.add(
+            (InetSocketAddress) slow.getLocalAddress()
+        ).raw(
+        ).mailbox(
+            mailbox, SerialExecutor.OverflowPolicy.DROP_NEWEST
+        ).onReceiveBuffer(data -> {
+            try {
+                Thread.sleep(SLOW);
+            } catch (InterruptedException e) {
+                // pass
+            }
+        });
+        endpoint.start();
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), endpoint.getPort());
+
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        for (int i = 0; i < COUNT; i++) {
+            slow.send(buffer.clear().putLong(System.nanoTime()).flip(), target);
+            fast.send(buffer.clear().putLong(System.nanoTime()).flip(), target);
+            Thread.sleep(1);
+        }
+        long deadline = System.currentTimeMillis() + COUNT * SLOW + 1_000;
+        while (received.get() < COUNT && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+        int n = Math.min(received.get(), COUNT);
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        System.out.println(String.format(
+            "%-8s fast peer latency p50=%,dns p99=%,dns (%d/%d)",
+            name, sorted[n / 2], sorted[(int) (n * 0.99)], n, COUNT
+        ));
+        endpoint.stop();
+        fast.close();
+        slow.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        run("inline", 0);
+        run("executor", 64);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+    @Test
+    public void expiresInDeadlineOrder() throws InterruptedException {
+        TimingWheel timer = new TimingWheel("test", 1, TimeUnit.MILLISECONDS, 8);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        // longer than one revolution of the wheel
+        timer.schedule(() -> { order.add(3); latch.countDown(); }, 30, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> { order.add(1); latch.countDown(); }, 1, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> { order.add(2); latch.countDown(); }, 12, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 2, 3), order);
+        assertEquals(0, timer.size());
+    }
+
+    @Test
+    public void cancelledTimerNeverRuns() throws InterruptedException {
+        TimingWheel timer = new TimingWheel("test", 1, TimeUnit.MILLISECONDS, 8);
+        CountDownLatch fired = new CountDownLatch(1);
+        CountDownLatch after = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = timer.schedule(fired::countDown, 5, TimeUnit.MILLISECONDS);
+        timer.schedule(after::countDown, 20, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(after.await(1, TimeUnit.SECONDS));
+        assertEquals(1, fired.getCount());
+        assertTrue(timeout.isCancelled());
+        assertEquals(0, timer.size());
+    }
+}
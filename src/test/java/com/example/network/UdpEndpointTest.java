@@ -0,0 +1,417 @@
+package com.example.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+import com.example.network.UdpConnectionManager.UdpConnection;
+import com.example.network.UdpConnectionManager.UdpConnection.Status;
+
+public class UdpEndpointTest {
+    private static InetSocketAddress loopback(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @Test
+    public void shardedReceiveOnLoopback() throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 4);
+        List<DatagramChannel> peers = new ArrayList<>();
+        try {
+            endpoint.start();
+            int port = endpoint.getPort();
+            Set<String> receivers = ConcurrentHashMap.newKeySet();
+            CountDownLatch latch = new CountDownLatch(32);
+            for (int i = 0; i < 32; i++) {
+                DatagramChannel peer = DatagramChannel.open();
+                peer.bind(loopback(0));
+                peers.add(peer);
+                endpoint.add((InetSocketAddress) peer.getLocalAddress()).onReceiveBuffer(data -> {
+                    receivers.add(Thread.currentThread().getName());
+                    latch.countDown();
+                });
+            }
+            for (DatagramChannel peer: peers) {
+                peer.send(ByteBuffer.wrap(new byte[] { Frame.DATA, 1 }), loopback(port));
+            }
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            // every shard shares the port, the kernel spreads peers across them
+            assertEquals(port, (int) endpoint.getPort());
+            assertTrue(receivers.size() > 1);
+        } finally {
+            endpoint.stop();
+            for (DatagramChannel peer: peers) peer.close();
+        }
+    }
+
+    @Test
+    public void badPortOrShardsAreRejected() {
+        for (int[] args: new int[][] { { 0, 0 }, { -1, 1 }, { 65536, 1 } }) {
+            try {
+                new UdpEndpoint(args[0], args[1]);
+                fail(args[0] + ", " + args[1]);
+            } catch (IllegalArgumentException e) {
+                // pass
+            }
+        }
+    }
+
+    @Test
+    public void addAndRemoveWhileTrafficIsFlowing() throws Exception {
+        UdpEndpoint hub = new UdpEndpoint(0, 2);
+        List<UdpEndpoint> peers = new ArrayList<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder hubReceived = new LongAdder();
+        LongAdder peerReceived = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        try {
+            hub.start();
+            for (int i = 0; i < 4; i++) {
+                UdpEndpoint peer = new UdpEndpoint(0, 1);
+                peer.start();
+                peers.add(peer);
+                peer.add(loopback(hub.getPort())).onReceiveBuffer(data -> peerReceived.increment()).start();
+                hub.add(loopback(peer.getPort())).onReceiveBuffer(data -> hubReceived.increment()).start();
+            }
+
+            Runnable traffic = () -> {
+                ByteBuffer data = ByteBuffer.allocate(32);
+                while (running.get()) {
+                    for (UdpEndpoint peer: peers) {
+                        peer.get(loopback(hub.getPort())).offer(data.duplicate());
+                        UdpConnection connection = hub.get(loopback(peer.getPort()));
+                        if (connection != null) connection.offer(data.duplicate());
+                    }
+                    Thread.yield();
+                }
+            };
+            // the peers are bound to ephemeral ports, which may fall in the churn ranges
+            Set<Integer> stable = ConcurrentHashMap.newKeySet();
+            for (UdpEndpoint peer: peers) stable.add(peer.getPort());
+            Function<Integer, Runnable> churn = base -> () -> {
+                int port = base;
+                while (running.get()) {
+                    if (port > base + 500) port = base;
+                    if (stable.contains(port)) {
+                        port++;
+                        continue;
+                    }
+                    InetSocketAddress host = loopback(port++);
+                    UdpConnection connection = hub.add(host);
+                    connection.start();
+                    connection.offer(ByteBuffer.allocate(8));
+                    for (UdpConnection other: hub.getConnections()) {
+                        other.getStatus();
+                    }
+                    hub.remove(host);
+                }
+            };
+            for (Runnable task: List.of(traffic, traffic, churn.apply(40_000), churn.apply(41_000))) {
+                Thread thread = new Thread(task);
+                thread.setUncaughtExceptionHandler((t, e) -> failure.set(e));
+                threads.add(thread);
+                thread.start();
+            }
+            Thread.sleep(2_000);
+        } finally {
+            running.set(false);
+            for (Thread thread: threads) thread.join();
+        }
+        try {
+            assertNull(failure.get());
+            assertTrue(hubReceived.sum() > 0);
+            assertTrue(peerReceived.sum() > 0);
+            // only the stable peers are left once the churn is over
+            assertEquals(peers.size(), hub.getConnections().size());
+        } finally {
+            hub.stop();
+            for (UdpEndpoint peer: peers) peer.stop();
+        }
+    }
+
+    @Test
+    public void metricsCountTrafficAndShowInJmx() throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        DatagramChannel peer = DatagramChannel.open();
+        try {
+            endpoint.start();
+            peer.bind(loopback(0));
+            CountDownLatch latch = new CountDownLatch(3);
+            InetSocketAddress host = (InetSocketAddress) peer.getLocalAddress();
+            UdpConnection connection = endpoint.add(host).onReceiveBuffer(data -> latch.countDown());
+            for (int i = 0; i < 3; i++) {
+                peer.send(ByteBuffer.allocate(Frame.HEADER + 10).put(0, Frame.DATA), loopback(endpoint.getPort()));
+            }
+            peer.send(ByteBuffer.allocate(0), loopback(endpoint.getPort()));
+            connection.send(ByteBuffer.allocate(5));
+            connection.send(ByteBuffer.allocate(5));
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (connection.getMetrics().keepalivesIn() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            ConnectionMetrics.Snapshot metrics = connection.getMetrics();
+            assertEquals(3, metrics.packetsIn());
+            assertEquals(30, metrics.bytesIn());
+            assertEquals(1, metrics.keepalivesIn());
+            assertEquals(2, metrics.packetsOut());
+            assertEquals(10, metrics.bytesOut());
+            assertEquals(0, metrics.sendErrors());
+            assertTrue(metrics.sinceLastReceive() >= 0);
+
+            ObjectName name = new ObjectName("com.example.network:type=UdpEndpoint,port=" + endpoint.getPort());
+            CompositeData total = (CompositeData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Metrics");
+            assertEquals(3L, total.get("packetsIn"));
+
+            // removed connections still count towards the totals
+            endpoint.remove(host);
+            assertEquals(3, endpoint.getMetrics().packetsIn());
+            assertEquals(0, endpoint.getConnectionCount());
+        } finally {
+            endpoint.stop();
+            peer.close();
+        }
+    }
+
+    @Test
+    public void rttIsMeasuredAndLostPeerDetectedQuickly() throws Exception {
+        UdpEndpoint local = new UdpEndpoint(0, 1);
+        UdpEndpoint remote = new UdpEndpoint(0, 1);
+        try {
+            local.start();
+            remote.start();
+            CountDownLatch connected = new CountDownLatch(1);
+            CountDownLatch disconnected = new CountDownLatch(1);
+            UdpConnection connection = local.add(loopback(remote.getPort())).config(
+                100, 3_000
+            ).onConnect(
+                connected::countDown
+            ).onDisconnect(
+                disconnected::countDown
+            );
+            connection.start();
+            remote.add(loopback(local.getPort())).config(100, 3_000).start();
+            assertTrue(connected.await(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (connection.getRtt() == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(connection.getRtt().toMillis() < 100);
+            assertTrue(connection.getMetrics().rtt() >= 0);
+
+            // an interval of silence and the probe retries, well before the fixed 3 s timeout
+            remote.stop();
+            long stopped = System.currentTimeMillis();
+            assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+            assertTrue(System.currentTimeMillis() - stopped < 1_000);
+            assertEquals(1, connection.getMetrics().timeouts());
+        } finally {
+            local.stop();
+            remote.stop();
+        }
+    }
+
+    @Test
+    public void pathMtuIsDiscoveredAndLargeMessagesFragmented() throws Exception {
+        UdpEndpoint local = new UdpEndpoint(0, 1);
+        UdpEndpoint remote = new UdpEndpoint(0, 1);
+        try {
+            local.start();
+            remote.start();
+            AtomicReference<byte[]> received = new AtomicReference<>();
+            CountDownLatch latch = new CountDownLatch(1);
+            UdpConnection connection = local.add(loopback(remote.getPort())).config(100, 3_000);
+            remote.add(loopback(local.getPort())).config(100, 3_000).onReceive(data -> {
+                received.set(data);
+                latch.countDown();
+            }).start();
+            assertEquals(PathMtu.BASE, connection.getPathMtu());
+            connection.start();
+
+            // loopback carries anything, the first probe at the maximum gets through
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (connection.getPathMtu() < PathMtu.MAX && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(PathMtu.MAX, connection.getPathMtu());
+
+            byte[] message = new byte[100_000];
+            for (int i = 0; i < message.length; i++) message[i] = (byte) i;
+            connection.sendAsync(ByteBuffer.wrap(message)).get(5, TimeUnit.SECONDS);
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertArrayEquals(message, received.get());
+        } finally {
+            local.stop();
+            remote.stop();
+        }
+    }
+
+    @Test
+    public void secureConnectionsEncryptEverythingAndRejectPlaintext() throws Exception {
+        UdpEndpoint local = new UdpEndpoint(0, 1);
+        UdpEndpoint remote = new UdpEndpoint(0, 1);
+        byte[] psk = "shared secret".getBytes();
+        try (DatagramChannel plain = DatagramChannel.open()) {
+            plain.bind(loopback(0));
+            local.start();
+            remote.start();
+            List<byte[]> received = new CopyOnWriteArrayList<>();
+            CountDownLatch connected = new CountDownLatch(1);
+            UdpConnection connection = local.add(loopback(remote.getPort())).config(100, 3_000).secure(psk)
+                .onConnect(connected::countDown);
+            UdpConnection peer = remote.add(loopback(local.getPort())).config(100, 3_000).secure(psk)
+                .onReceive(received::add);
+            // queued before there is a key, sent once the session is confirmed
+            assertTrue(connection.offer(ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+            connection.start();
+            peer.start();
+            assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+            byte[] large = new byte[50_000];
+            for (int i = 0; i < large.length; i++) large[i] = (byte) i;
+            connection.sendReliable(ByteBuffer.wrap(large)).get(5, TimeUnit.SECONDS);
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (received.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, received.size());
+            assertArrayEquals(new byte[] { 1, 2, 3 }, received.get(0));
+            assertArrayEquals(large, received.get(1));
+            // probes are sealed as well and still find the largest size
+            deadline = System.currentTimeMillis() + 5_000;
+            while (connection.getPathMtu() < PathMtu.MAX && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(PathMtu.MAX, connection.getPathMtu());
+
+            // plaintext from an insecure peer is never delivered
+            List<byte[]> insecure = new CopyOnWriteArrayList<>();
+            UdpConnection unsealed = local.add((InetSocketAddress) plain.getLocalAddress()).secure(psk).onReceive(insecure::add);
+            unsealed.start();
+            plain.send(ByteBuffer.wrap(new byte[] { Frame.DATA, 42 }), loopback(local.getPort()));
+            deadline = System.currentTimeMillis() + 5_000;
+            while (unsealed.getMetrics().rejected() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, unsealed.getMetrics().rejected());
+            assertTrue(insecure.isEmpty());
+        } finally {
+            local.stop();
+            remote.stop();
+        }
+    }
+
+    @Test
+    public void secureSessionSurvivesAPeerRestart() throws Exception {
+        UdpEndpoint local = new UdpEndpoint(0, 1);
+        UdpEndpoint remote = new UdpEndpoint(0, 1);
+        byte[] psk = "shared secret".getBytes();
+        try {
+            local.start();
+            remote.start();
+            List<byte[]> received = new CopyOnWriteArrayList<>();
+            UdpConnection connection = local.add(loopback(remote.getPort())).config(100, 3_000).secure(psk);
+            UdpConnection peer = remote.add(loopback(local.getPort())).config(100, 3_000).secure(psk)
+                .onReceive(received::add);
+            connection.start();
+            peer.start();
+            for (int i = 0; i < 2; i++) {
+                // a new key pair on the second start, the confirmed session
+                // on this side is kept until the new one is proven
+                if (i == 1) {
+                    peer.stop();
+                    peer.start();
+                }
+                long deadline = System.currentTimeMillis() + 5_000;
+                while (received.size() <= i && System.currentTimeMillis() < deadline) {
+                    connection.offer(ByteBuffer.wrap(new byte[] { (byte) i }));
+                    Thread.sleep(50);
+                }
+                assertArrayEquals(new byte[] { (byte) i }, received.get(i));
+            }
+        } finally {
+            local.stop();
+            remote.stop();
+        }
+    }
+
+    @Test
+    public void secureConnectionsWithDifferentKeysNeverConnect() throws Exception {
+        UdpEndpoint local = new UdpEndpoint(0, 1);
+        UdpEndpoint remote = new UdpEndpoint(0, 1);
+        try {
+            local.start();
+            remote.start();
+            AtomicBoolean connected = new AtomicBoolean();
+            UdpConnection connection = local.add(loopback(remote.getPort())).config(50, 3_000)
+                .secure("one".getBytes()).onConnect(() -> connected.set(true));
+            remote.add(loopback(local.getPort())).config(50, 3_000)
+                .secure("two".getBytes()).onConnect(() -> connected.set(true)).start();
+            connection.start();
+            assertTrue(connection.offer(ByteBuffer.wrap(new byte[] { 1 })));
+            Thread.sleep(500);
+            assertFalse(connected.get());
+            assertEquals(Status.Connecting, connection.getStatus());
+            assertEquals(0, connection.getMetrics().packetsOut());
+        } finally {
+            local.stop();
+            remote.stop();
+        }
+    }
+
+    @Test
+    public void dualStackServesBothFamiliesOnOnePort() throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 2, UdpEndpoint.Stack.DUAL);
+        try (DatagramChannel v4 = DatagramChannel.open(StandardProtocolFamily.INET);
+                DatagramChannel v6 = DatagramChannel.open(StandardProtocolFamily.INET6)) {
+            endpoint.start();
+            v4.bind(new InetSocketAddress("127.0.0.1", 0));
+            v6.bind(new InetSocketAddress("::1", 0));
+            CountDownLatch latch = new CountDownLatch(2);
+            for (DatagramChannel peer: List.of(v4, v6)) {
+                endpoint.add((InetSocketAddress) peer.getLocalAddress()).onReceiveBuffer(data -> latch.countDown());
+            }
+            v4.send(ByteBuffer.wrap(new byte[] { Frame.DATA, 1 }), new InetSocketAddress("127.0.0.1", endpoint.getPort()));
+            v6.send(ByteBuffer.wrap(new byte[] { Frame.DATA, 1 }), new InetSocketAddress("::1", endpoint.getPort()));
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            // and each is answered from the same port
+            for (DatagramChannel peer: List.of(v4, v6)) {
+                endpoint.get((InetSocketAddress) peer.getLocalAddress()).offer(ByteBuffer.allocate(8));
+                ByteBuffer buffer = ByteBuffer.allocate(64);
+                peer.configureBlocking(true);
+                InetSocketAddress from = (InetSocketAddress) peer.receive(buffer);
+                assertEquals(endpoint.getPort().intValue(), from.getPort());
+            }
+        } finally {
+            endpoint.stop();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class WindowControllerTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void pacesAtTheRate() {
+        WindowController controller = new WindowController(1_000_000);
+        long now = System.nanoTime();
+        // a full bucket lets a 16 KiB burst through
+        for (int i = 0; i < 16; i++) {
+            assertEquals(0, controller.delay(1_024, now));
+            controller.sent(1_024, now);
+        }
+        // then 1,024 bytes at 1 MB/s take a little over 1 ms
+        long delay = controller.delay(1_024, now);
+        assertTrue(delay > 0 && delay <= 1_024 * 1_000);
+        assertEquals(0, controller.delay(1_024, now + delay));
+    }
+
+    @Test
+    public void growsThroughSparseLossButBacksOffOnBurstLoss() {
+        WindowController controller = new WindowController(1_000_000);
+        long now = System.nanoTime();
+        // slow start: one more per acknowledged message
+        for (int i = 0; i < 10; i++) controller.acked(1_024, MS, now += MS / 10);
+        assertEquals(20, controller.window());
+
+        // one in twenty lost, like a lossy link
+        for (int round = 0; round < 5; round++) {
+            controller.lost(now, now += MS / 10);
+            for (int i = 0; i < 19; i++) controller.acked(1_024, MS, now += MS / 10);
+        }
+        int window = controller.window();
+        assertTrue(window > 20);
+
+        // half of a round lost, like an overflowing queue
+        for (int i = 0; i < window; i++) {
+            if (i % 2 == 0) {
+                controller.lost(now, now += MS / 10);
+            } else {
+                controller.acked(1_024, MS, now += MS / 10);
+            }
+        }
+        assertTrue(controller.window() < window);
+    }
+
+    @Test
+    public void backsOffWhenTheRoundTripGrows() {
+        WindowController controller = new WindowController(1_000_000);
+        long now = System.nanoTime();
+        for (int i = 0; i < 10; i++) controller.acked(1_024, MS, now += MS);
+        assertEquals(20, controller.window());
+        // a queue of 100 ms built up on the path
+        controller.acked(1_024, 101 * MS, now += MS);
+        assertEquals(14, controller.window());
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.network.global;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.example.network.UdpEndpoint;
+
+public class RendezvousTest {
+    private static InetSocketAddress local(RendezvousServer server) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+    }
+
+    private static InetSocketAddress local(UdpEndpoint endpoint) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), endpoint.getPort());
+    }
+
+    @Test
+    public void peersAreToldToPunchEachOther() throws Exception {
+        RendezvousServer server = new RendezvousServer(0, 60_000, 1_000);
+        server.start();
+        UdpEndpoint a = new UdpEndpoint(0, 1);
+        UdpEndpoint b = new UdpEndpoint(0, 1);
+        a.start();
+        b.start();
+        try {
+            Map<String, InetSocketAddress> punched = new ConcurrentHashMap<>();
+            RendezvousClient alice = new RendezvousClient(a, local(server), "alice").onPunch((peer, address) -> punched.put("alice<-" + peer, address));
+            RendezvousClient bob = new RendezvousClient(b, local(server), "bob").onPunch((peer, address) -> punched.put("bob<-" + peer, address));
+
+            assertEquals(local(a), alice.register().get(5, TimeUnit.SECONDS));
+            assertEquals(local(a), alice.getMapped());
+            assertEquals(local(a), bob.lookup("alice").get(5, TimeUnit.SECONDS));
+            assertNull(bob.lookup("carol").get(5, TimeUnit.SECONDS));
+
+            assertEquals(local(a), bob.connect("alice").get(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (punched.size() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertEquals(local(b), punched.get("alice<-bob"));
+            assertEquals(local(a), punched.get("bob<-alice"));
+
+            try {
+                bob.connect("carol").get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+
+            alice.close();
+            deadline = System.currentTimeMillis() + 5_000;
+            while (server.getRegistrations() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertNull(bob.lookup("alice").get(5, TimeUnit.SECONDS));
+        } finally {
+            a.stop();
+            b.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void keepalivesRegisterAndRegistrationsExpire() throws Exception {
+        RendezvousServer server = new RendezvousServer(0, 300, 1_000);
+        server.start();
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        endpoint.start();
+        try {
+            RendezvousClient client = new RendezvousClient(endpoint, local(server), "alice");
+            client.getConnection().config(100, 60_000).start();
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (client.getMapped() == null && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertEquals(local(endpoint), client.getMapped());
+            // kept alive well past the TTL
+            Thread.sleep(600);
+            assertEquals(local(endpoint), client.lookup("alice").get(5, TimeUnit.SECONDS));
+
+            endpoint.remove(client.getConnection().getHost());
+            Thread.sleep(600);
+            assertEquals(0, server.getRegistrations());
+        } finally {
+            endpoint.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void thousandsOfRegistrations() throws Exception {
+        int count = 10_000;
+        RendezvousServer server = new RendezvousServer(0, 60_000, count);
+        server.start();
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channel.configureBlocking(false);
+            ByteBuffer out = ByteBuffer.allocate(Rendezvous.SIZE_MAX);
+            ByteBuffer in = ByteBuffer.allocate(Rendezvous.SIZE_MAX);
+            long start = System.nanoTime();
+            int sent = 0;
+            int received = 0;
+            long deadline = System.currentTimeMillis() + 20_000;
+            while (received < count && System.currentTimeMillis() < deadline) {
+                // a window, so the socket buffers do not overflow
+                while (sent < count && sent - received < 64) {
+                    byte[] id = ("peer-" + sent).getBytes(StandardCharsets.UTF_8);
+                    Rendezvous.put(out.clear(), Rendezvous.REGISTER, ++sent, id);
+                    channel.send(out.flip(), local(server));
+                }
+                if (channel.receive(in.clear()) != null) {
+                    assertEquals(Rendezvous.REGISTERED, Rendezvous.type(in.flip()));
+                    received++;
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals(count, received);
+            assertEquals(count, server.getRegistrations());
+            assertTrue(elapsed + "ms", elapsed < 10_000);
+
+            // full, a new ID is dropped but a known one refreshed
+            Rendezvous.put(out.clear(), Rendezvous.REGISTER, 1, "newcomer".getBytes(StandardCharsets.UTF_8));
+            channel.send(out.flip(), local(server));
+            Rendezvous.put(out.clear(), Rendezvous.REGISTER, 2, "peer-0".getBytes(StandardCharsets.UTF_8));
+            channel.send(out.flip(), local(server));
+            deadline = System.currentTimeMillis() + 5_000;
+            while (channel.receive(in.clear()) == null && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertEquals(2, Rendezvous.request(in.flip()));
+            assertEquals(1, server.getDropped());
+            assertEquals(count, server.getRegistrations());
+        } finally {
+            server.stop();
+        }
+    }
+}
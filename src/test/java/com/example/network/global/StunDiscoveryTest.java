@@ -0,0 +1,259 @@
+package com.example.network.global;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.example.network.UdpEndpoint;
+import com.example.network.global.StunClient.AttributeType;
+import com.example.network.global.StunClient.MessageType;
+import com.example.network.global.StunDiscovery.Behavior;
+import com.example.network.global.StunDiscovery.Filtering;
+import com.example.network.global.StunDiscovery.Mapping;
+import com.example.network.global.StunDiscovery.Observation;
+
+public class StunDiscoveryTest {
+    /**
+     * RFC 5780 server on 127.0.0.1 and 127.0.0.2, two ports each, with a
+     * NAT in front of the client simulated by what it reports and answers:
+     * a response only reaches the client from where its filtering lets it,
+     * after what the client sent to each socket.
+     */
+    private static class Server implements AutoCloseable {
+        // 127.0.0.1:p, 127.0.0.1:q, 127.0.0.2:p, 127.0.0.2:q
+        private final DatagramChannel[] channels = new DatagramChannel[4];
+        private final List<Thread> threads = new ArrayList<>();
+        // sockets each client has sent to, by the client's address
+        private final Map<InetSocketAddress, Set<Integer>> sent = new ConcurrentHashMap<>();
+        private final Mapping mapping;
+        private final Filtering filtering;
+
+        Server(Mapping mapping, Filtering filtering) throws IOException {
+            this.mapping = mapping;
+            this.filtering = filtering;
+            while (!this.bind()) {
+                for (DatagramChannel channel: this.channels) if (channel != null) channel.close();
+            }
+            for (int i = 0; i < this.channels.length; i++) {
+                int index = i;
+                Thread thread = new Thread(() -> this.run(index));
+                thread.start();
+                this.threads.add(thread);
+            }
+        }
+
+        private boolean bind() throws IOException {
+            int p = 0;
+            int q = 0;
+            for (int i = 0; i < this.channels.length; i++) {
+                InetAddress ip = InetAddress.getByName(i < 2 ? "127.0.0.1" : "127.0.0.2");
+                this.channels[i] = DatagramChannel.open();
+                try {
+                    this.channels[i].bind(new InetSocketAddress(ip, i % 2 == 0 ? p : q));
+                } catch (BindException e) {
+                    return false;
+                }
+                if (i == 0) p = this.address(0).getPort();
+                if (i == 1) q = this.address(1).getPort();
+            }
+            return true;
+        }
+
+        InetSocketAddress address(int index) throws IOException {
+            return (InetSocketAddress) this.channels[index].getLocalAddress();
+        }
+
+        /**
+         * Port the NAT would map the client to towards the socket.
+         */
+        private int mapped(int port, int index) {
+            int offset = switch (this.mapping) {
+                case ADDRESS_DEPENDENT -> index / 2;
+                case ADDRESS_AND_PORT_DEPENDENT -> index;
+                default -> 0;
+            };
+            return (port - 1 + offset) % 65535 + 1;
+        }
+
+        /**
+         * Whether the NAT lets through what the socket sends to the client.
+         */
+        private boolean passes(InetSocketAddress client, int from) {
+            Set<Integer> sent = this.sent.getOrDefault(client, Set.of());
+            return switch (this.filtering) {
+                case ENDPOINT_INDEPENDENT -> true;
+                // sockets 0 and 1 share an address, as do 2 and 3
+                case ADDRESS_DEPENDENT -> sent.stream().anyMatch(index -> index / 2 == from / 2);
+                default -> sent.contains(from);
+            };
+        }
+
+        private void run(int index) {
+            StunMessage request = new StunMessage();
+            StunMessage response = new StunMessage();
+            ByteBuffer in = ByteBuffer.allocate(1500);
+            ByteBuffer out = ByteBuffer.allocate(1500);
+            try {
+                while (true) {
+                    InetSocketAddress client = (InetSocketAddress) this.channels[index].receive(in.clear());
+                    this.sent.computeIfAbsent(client, c -> ConcurrentHashMap.newKeySet()).add(index);
+                    if (!request.wrap(in.flip()) || !request.is(MessageType.BINDING_REQUEST)) continue;
+                    boolean changeIp = false;
+                    boolean changePort = false;
+                    while (request.next()) {
+                        if (request.attribute() != AttributeType.CHANGE_REQUEST) continue;
+                        changeIp = request.changeIp();
+                        changePort = request.changePort();
+                    }
+                    int from = index ^ (changeIp ? 2 : 0) ^ (changePort ? 1 : 0);
+                    // the NAT drops what comes from elsewhere
+                    if (!this.passes(client, from)) continue;
+                    response.response(out.clear(), MessageType.BINDING_SUCCESS_RESPONSE, request)
+                        .addAddress(AttributeType.XOR_MAPPED_ADDRESS, new InetSocketAddress(client.getAddress(), this.mapped(client.getPort(), index)))
+                        .addAddress(AttributeType.RESPONSE_ORIGIN, this.address(from))
+                        .addAddress(AttributeType.OTHER_ADDRESS, this.address(index ^ 3))
+                        .addFingerprint();
+                    this.channels[from].send(out.flip(), client);
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (DatagramChannel channel: this.channels) channel.close();
+            try {
+                for (Thread thread: this.threads) thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Behavior classify(Mapping mapping, Filtering filtering) throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        endpoint.start();
+        try (Server server = new Server(mapping, filtering)) {
+            StunDiscovery discovery = new StunDiscovery(endpoint, List.of(server.address(0)));
+            Behavior behavior = discovery.classify().get(20, TimeUnit.SECONDS);
+            assertEquals((int) endpoint.getPort(), behavior.mapped().getPort());
+            // the temporary connections are gone
+            assertEquals(1, endpoint.getConnections().size());
+            return behavior;
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    @Test
+    public void discoverTakesTheFirstAnswer() throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        endpoint.start();
+        try (Server server = new Server(Mapping.ENDPOINT_INDEPENDENT, Filtering.ENDPOINT_INDEPENDENT);
+             DatagramChannel silent = DatagramChannel.open()) {
+            silent.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            StunDiscovery discovery = new StunDiscovery(endpoint, List.of((InetSocketAddress) silent.getLocalAddress(), server.address(0)));
+            long start = System.nanoTime();
+            InetSocketAddress mapped = discovery.discover().get(5, TimeUnit.SECONDS);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            // not held up by the server that never answers
+            assertTrue(elapsed + "ms", elapsed < 2_000);
+            assertEquals((int) endpoint.getPort(), mapped.getPort());
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    @Test
+    public void discoverAsksServersOfTheFamily() throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        endpoint.start();
+        try (Server server = new Server(Mapping.ENDPOINT_INDEPENDENT, Filtering.ENDPOINT_INDEPENDENT)) {
+            StunDiscovery discovery = new StunDiscovery(endpoint, List.of(server.address(0)));
+            InetSocketAddress mapped = discovery.discover(StandardProtocolFamily.INET).get(5, TimeUnit.SECONDS);
+            assertEquals((int) endpoint.getPort(), mapped.getPort());
+            try {
+                discovery.discover(StandardProtocolFamily.INET6).get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    @Test
+    public void openInternetIsEndpointIndependent() throws Exception {
+        Behavior behavior = classify(Mapping.ENDPOINT_INDEPENDENT, Filtering.ENDPOINT_INDEPENDENT);
+        assertEquals(Mapping.ENDPOINT_INDEPENDENT, behavior.mapping());
+        assertEquals(Filtering.ENDPOINT_INDEPENDENT, behavior.filtering());
+        assertFalse(behavior.isSymmetric());
+    }
+
+    @Test
+    public void symmetricNatIsDetected() throws Exception {
+        Behavior behavior = classify(Mapping.ADDRESS_AND_PORT_DEPENDENT, Filtering.ENDPOINT_INDEPENDENT);
+        assertEquals(Mapping.ADDRESS_AND_PORT_DEPENDENT, behavior.mapping());
+        assertTrue(behavior.isSymmetric());
+
+        behavior = classify(Mapping.ADDRESS_DEPENDENT, Filtering.ENDPOINT_INDEPENDENT);
+        assertEquals(Mapping.ADDRESS_DEPENDENT, behavior.mapping());
+        assertTrue(behavior.isSymmetric());
+    }
+
+    @Test
+    public void filteringIsDetected() throws Exception {
+        Behavior behavior = classify(Mapping.ENDPOINT_INDEPENDENT, Filtering.ADDRESS_DEPENDENT);
+        assertEquals(Mapping.ENDPOINT_INDEPENDENT, behavior.mapping());
+        assertEquals(Filtering.ADDRESS_DEPENDENT, behavior.filtering());
+
+        behavior = classify(Mapping.ENDPOINT_INDEPENDENT, Filtering.ADDRESS_AND_PORT_DEPENDENT);
+        assertEquals(Mapping.ENDPOINT_INDEPENDENT, behavior.mapping());
+        assertEquals(Filtering.ADDRESS_AND_PORT_DEPENDENT, behavior.filtering());
+    }
+
+    @Test
+    public void mappingFromObservations() {
+        InetSocketAddress a = new InetSocketAddress("192.0.2.1", 3478);
+        InetSocketAddress b = new InetSocketAddress("192.0.2.2", 3478);
+        InetSocketAddress c = new InetSocketAddress("192.0.2.2", 3479);
+        InetSocketAddress x = new InetSocketAddress("203.0.113.1", 40000);
+        InetSocketAddress y = new InetSocketAddress("203.0.113.1", 40001);
+        InetSocketAddress v6 = new InetSocketAddress("2001:db8::1", 3478);
+
+        assertEquals(Mapping.UNKNOWN, StunDiscovery.mapping(List.of(new Observation(a, x))));
+        assertEquals(Mapping.ENDPOINT_INDEPENDENT, StunDiscovery.mapping(List.of(
+            new Observation(a, x), new Observation(b, x), new Observation(v6, y)
+        )));
+        assertEquals(Mapping.ADDRESS_DEPENDENT, StunDiscovery.mapping(List.of(
+            new Observation(a, x), new Observation(b, y), new Observation(c, y)
+        )));
+        assertEquals(Mapping.ADDRESS_AND_PORT_DEPENDENT, StunDiscovery.mapping(List.of(
+            new Observation(a, x), new Observation(b, x), new Observation(c, y)
+        )));
+        // two servers only, cannot tell which
+        assertEquals(Mapping.ADDRESS_AND_PORT_DEPENDENT, StunDiscovery.mapping(List.of(
+            new Observation(a, x), new Observation(b, y)
+        )));
+    }
+}
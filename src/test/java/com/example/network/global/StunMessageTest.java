@@ -0,0 +1,135 @@
+package com.example.network.global;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HexFormat;
+
+import org.junit.Test;
+
+import com.example.network.global.StunClient.AttributeType;
+import com.example.network.global.StunClient.MappedAddressFamily;
+import com.example.network.global.StunClient.MessageType;
+
+public class StunMessageTest {
+    // sample IPv4 response of RFC 5769, section 2.2
+    private static final String SAMPLE =
+        "0101003c2112a442b7e7a701bc34d686fa87dfae" +
+        "8022000b7465737420766563746f7220" +
+        "002000080001a147e112a643" +
+        "000800142b91f599fd9e90c38c7489f92af9ba53f06be7d7" +
+        "80280004c07d4c96";
+
+    private static ByteBuffer sample() {
+        return ByteBuffer.wrap(HexFormat.of().parseHex(SAMPLE));
+    }
+
+    @Test
+    public void decodesTheRfc5769Sample() throws Exception {
+        StunMessage message = new StunMessage();
+        assertTrue(message.wrap(sample()));
+        assertTrue(message.is(MessageType.BINDING_SUCCESS_RESPONSE));
+        assertTrue(message.hasFingerprint());
+        assertEquals(0xb7e7a701bc34d686L, message.transactionHigh());
+        assertEquals(0xfa87dfae, message.transactionLow());
+
+        assertTrue(message.next());
+        assertEquals(AttributeType.SOFTWARE, message.attribute());
+        assertEquals("test vector", message.text());
+        assertTrue(message.next());
+        assertEquals(AttributeType.XOR_MAPPED_ADDRESS, message.attribute());
+        assertEquals(MappedAddressFamily.IPv4, message.family());
+        assertEquals(32853, message.port());
+        assertEquals(0xc0000201, message.ipv4());
+        assertTrue(message.next());
+        assertEquals(AttributeType.MESSAGE_INTEGRITY, message.attribute());
+        assertEquals(20, message.length());
+        assertFalse(message.next());
+
+        assertEquals(new InetSocketAddress("192.0.2.1", 32853), StunClient.parseResponse(sample()));
+    }
+
+    @Test
+    public void rejectsMalformedMessages() {
+        StunMessage message = new StunMessage();
+        ByteBuffer cookie = sample();
+        cookie.put(4, (byte) 0);
+        assertFalse(message.wrap(cookie));
+        ByteBuffer corrupt = sample();
+        corrupt.put(30, (byte) 'T');
+        assertFalse(message.wrap(corrupt));
+        ByteBuffer truncated = sample().limit(40);
+        assertFalse(message.wrap(truncated));
+        ByteBuffer overlong = sample();
+        overlong.putShort(22, (short) 0x100);
+        assertFalse(message.wrap(overlong));
+    }
+
+    @Test
+    public void encodesWhatItDecodes() throws Exception {
+        StunMessage request = new StunMessage();
+        ByteBuffer requestBuffer = ByteBuffer.allocate(64);
+        request.request(requestBuffer, MessageType.BINDING_REQUEST).addChangeRequest(true, false);
+        assertTrue(request.wrap(requestBuffer.flip()));
+        assertTrue(request.next());
+        assertEquals(AttributeType.CHANGE_REQUEST, request.attribute());
+
+        InetSocketAddress v4 = new InetSocketAddress("203.0.113.7", 40000);
+        InetSocketAddress v6 = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 50000);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256).position(3);
+        StunMessage response = new StunMessage()
+            .response(buffer, MessageType.BINDING_ERROR_RESPONSE, request)
+            .addAddress(AttributeType.XOR_MAPPED_ADDRESS, v6)
+            .addAddress(AttributeType.MAPPED_ADDRESS, v4)
+            .addErrorCode(420, "Unknown Attribute")
+            .addText(AttributeType.SOFTWARE, "udp")
+            .addFingerprint();
+        buffer.flip().position(3);
+
+        assertTrue(response.wrap(buffer));
+        assertTrue(response.is(MessageType.BINDING_ERROR_RESPONSE));
+        assertTrue(response.hasFingerprint());
+        assertEquals(buffer.remaining(), response.size());
+        assertEquals(request.transactionHigh(), response.transactionHigh());
+        assertEquals(request.transactionLow(), response.transactionLow());
+        assertTrue(response.next());
+        assertEquals(v6, response.socketAddress());
+        assertTrue(response.next());
+        assertEquals(v4, response.socketAddress());
+        assertTrue(response.next());
+        assertEquals(420, response.errorCode());
+        assertEquals("Unknown Attribute", response.text());
+        assertTrue(response.next());
+        assertEquals("udp", response.text());
+        assertFalse(response.next());
+    }
+
+    @Test
+    public void parsingAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        StunMessage message = new StunMessage();
+        ByteBuffer response = ByteBuffer.allocateDirect(SAMPLE.length() / 2).put(sample()).flip();
+        byte[] address = new byte[16];
+        long sum = 0;
+        for (int round = 0; round < 2; round++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < 100_000; i++) {
+                message.wrap(response);
+                while (message.next()) {
+                    if (message.attribute() == AttributeType.XOR_MAPPED_ADDRESS) {
+                        sum += message.port() + message.address(address);
+                    }
+                }
+            }
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+            // the first round may load and compile
+            if (round == 1) assertTrue(allocated + " bytes", allocated < 1_000);
+        }
+        assertEquals(2 * 100_000L * (32853 + 4), sum);
+    }
+}
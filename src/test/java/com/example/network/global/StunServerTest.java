@@ -0,0 +1,172 @@
+package com.example.network.global;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.example.network.UdpEndpoint;
+import com.example.network.global.StunClient.AttributeType;
+import com.example.network.global.StunClient.MessageType;
+
+public class StunServerTest {
+    private interface Body {
+        void run(StunServer server) throws Exception;
+    }
+
+    private static void with(Body body) throws Exception {
+        StunServer server = new StunServer(0, 1);
+        server.start();
+        try {
+            body.run(server);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Sends the request from a new socket on the address.
+     *
+     * @return the response, null if there was none within a second
+     */
+    private static ByteBuffer exchange(InetAddress address, int port, ByteBuffer request) throws IOException, InterruptedException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(address, 0));
+            channel.send(request, new InetSocketAddress(address, port));
+            ByteBuffer response = ByteBuffer.allocate(1500);
+            long deadline = System.currentTimeMillis() + 1_000;
+            while (channel.receive(response) == null) {
+                if (System.currentTimeMillis() > deadline) return null;
+                Thread.sleep(1);
+            }
+            return response.flip();
+        }
+    }
+
+    private static InetSocketAddress mapped(StunMessage message) throws IOException {
+        while (message.next()) {
+            if (message.attribute() == AttributeType.XOR_MAPPED_ADDRESS) return message.socketAddress();
+        }
+        return null;
+    }
+
+    @Test
+    public void answersWithTheSenderAddress() throws Exception {
+        with(server -> {
+            StunMessage message = new StunMessage();
+            ByteBuffer request = ByteBuffer.allocate(StunMessage.HEADER);
+            message.request(request, MessageType.BINDING_REQUEST);
+            long high = request.getLong(8);
+            ByteBuffer response = exchange(InetAddress.getByName("127.0.0.1"), server.getPort(), request.flip());
+            assertNotNull(response);
+            assertTrue(message.wrap(response));
+            assertTrue(message.is(MessageType.BINDING_SUCCESS_RESPONSE));
+            assertTrue(message.hasFingerprint());
+            assertEquals(high, message.transactionHigh());
+            InetSocketAddress mapped = mapped(message);
+            assertEquals(InetAddress.getByName("127.0.0.1"), mapped.getAddress());
+            assertEquals(1, server.getRequests());
+        });
+    }
+
+    @Test
+    public void badPortOrShardsAreRejected() {
+        for (int[] args: new int[][] { { 0, 0 }, { -1, 1 }, { 65536, 1 } }) {
+            try {
+                new StunServer(args[0], args[1]);
+                fail(args[0] + ", " + args[1]);
+            } catch (IllegalArgumentException e) {
+                // pass
+            }
+        }
+    }
+
+    @Test
+    public void answersIpv6Clients() throws Exception {
+        InetAddress loopback = InetAddress.getByName("::1");
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.bind(new InetSocketAddress(loopback, 0));
+        } catch (IOException e) {
+            // no IPv6 here
+            return;
+        }
+        with(server -> {
+            StunMessage message = new StunMessage();
+            ByteBuffer request = ByteBuffer.allocate(StunMessage.HEADER);
+            message.request(request, MessageType.BINDING_REQUEST);
+            ByteBuffer response = exchange(loopback, server.getPort(), request.flip());
+            assertNotNull(response);
+            assertTrue(message.wrap(response));
+            assertEquals(loopback, mapped(message).getAddress());
+        });
+    }
+
+    @Test
+    public void unknownRequiredAttributesAreRejected() throws Exception {
+        with(server -> {
+            StunMessage message = new StunMessage();
+            ByteBuffer request = ByteBuffer.allocate(StunMessage.HEADER + 16);
+            message.request(request, MessageType.BINDING_REQUEST).addChangeRequest(true, true);
+            // an unknown comprehension-optional attribute is ignored
+            request.putShort((short) 0x8123).putShort((short) 4).putInt(0);
+            request.putShort(2, (short) (request.position() - StunMessage.HEADER));
+            ByteBuffer response = exchange(InetAddress.getByName("127.0.0.1"), server.getPort(), request.flip());
+            assertNotNull(response);
+            assertTrue(message.wrap(response));
+            assertTrue(message.is(MessageType.BINDING_ERROR_RESPONSE));
+            int code = 0;
+            int unknown = 0;
+            while (message.next()) {
+                if (message.attribute() == AttributeType.ERROR_CODE) code = message.errorCode();
+                if (message.attribute() == AttributeType.UNKNOWN_ATTRIBUTES) {
+                    assertEquals(2, message.length());
+                    unknown = response.getShort(message.valueOffset()) & 0xffff;
+                }
+            }
+            assertEquals(420, code);
+            assertEquals(AttributeType.CHANGE_REQUEST.value(), (short) unknown);
+            assertEquals(1, server.getErrors());
+        });
+    }
+
+    @Test
+    public void otherDatagramsAreDropped() throws Exception {
+        with(server -> {
+            StunMessage message = new StunMessage();
+            ByteBuffer indication = ByteBuffer.allocate(StunMessage.HEADER);
+            message.request(indication, MessageType.BINDING_INDICATION);
+            assertEquals(null, exchange(InetAddress.getByName("127.0.0.1"), server.getPort(), indication.flip()));
+            assertEquals(null, exchange(InetAddress.getByName("127.0.0.1"), server.getPort(), ByteBuffer.wrap(new byte[] {1, 2, 3})));
+            assertEquals(2, server.getDropped());
+            assertEquals(0, server.getRequests());
+        });
+    }
+
+    @Test
+    public void servesTheTransactionManager() throws Exception {
+        with(server -> {
+            UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+            endpoint.start();
+            try {
+                InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+                StunTransactionManager stun = new StunTransactionManager(endpoint.add(address).raw());
+                InetSocketAddress mapped = stun.bind().get(5, TimeUnit.SECONDS);
+                assertEquals((int) endpoint.getPort(), mapped.getPort());
+                assertFalse(stun.getRetransmits() > 0);
+            } finally {
+                endpoint.stop();
+            }
+        });
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.network.global;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.example.network.UdpEndpoint;
+import com.example.network.UdpConnectionManager.UdpConnection;
+import com.example.network.global.StunClient.AttributeType;
+import com.example.network.global.StunClient.MessageType;
+
+public class StunTransactionManagerTest {
+    /**
+     * Answers binding requests with the sender's address, after dropping
+     * the given number of them.
+     */
+    private static class Server implements AutoCloseable {
+        private final DatagramChannel channel = DatagramChannel.open();
+        private final Thread thread;
+        private final AtomicInteger drop = new AtomicInteger();
+        private volatile boolean spoof = false;
+        private volatile boolean garbage = false;
+        private volatile int error = 0;
+        final AtomicInteger requests = new AtomicInteger();
+
+        Server() throws IOException {
+            this.channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            this.thread = new Thread(this::run);
+            this.thread.start();
+        }
+
+        InetSocketAddress address() throws IOException {
+            return (InetSocketAddress) this.channel.getLocalAddress();
+        }
+
+        private void run() {
+            StunMessage request = new StunMessage();
+            StunMessage response = new StunMessage();
+            ByteBuffer in = ByteBuffer.allocate(1500);
+            ByteBuffer out = ByteBuffer.allocate(1500);
+            try {
+                while (true) {
+                    InetSocketAddress client = (InetSocketAddress) this.channel.receive(in.clear());
+                    if (!request.wrap(in.flip()) || !request.is(MessageType.BINDING_REQUEST)) continue;
+                    this.requests.incrementAndGet();
+                    if (this.drop.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) continue;
+                    if (this.spoof) {
+                        // an off-path attacker has to guess the transaction id
+                        response.response(out.clear(), MessageType.BINDING_SUCCESS_RESPONSE, request)
+                            .addAddress(AttributeType.XOR_MAPPED_ADDRESS, new InetSocketAddress("198.51.100.1", 1));
+                        out.put(19, (byte) (out.get(19) ^ 1));
+                        this.channel.send(out.flip(), client);
+                    }
+                    if (this.garbage) {
+                        // too short for a header, then an error response with a bad magic cookie
+                        this.channel.send(ByteBuffer.allocate(10), client);
+                        response.response(out.clear(), MessageType.BINDING_ERROR_RESPONSE, request).addErrorCode(400, "Bad Request");
+                        out.put(4, (byte) (out.get(4) ^ 1));
+                        this.channel.send(out.flip(), client);
+                    }
+                    if (this.error != 0) {
+                        response.response(out.clear(), MessageType.BINDING_ERROR_RESPONSE, request).addErrorCode(this.error, "Bad Request");
+                    } else {
+                        response.response(out.clear(), MessageType.BINDING_SUCCESS_RESPONSE, request)
+                            .addAddress(AttributeType.XOR_MAPPED_ADDRESS, client)
+                            .addFingerprint();
+                    }
+                    this.channel.send(out.flip(), client);
+                    // and again, once the transaction is over
+                    if (this.spoof) this.channel.send(out.rewind(), client);
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private interface Body {
+        void run(Server server, StunTransactionManager stun, UdpEndpoint endpoint) throws Exception;
+    }
+
+    private static void with(Body body) throws Exception {
+        UdpEndpoint endpoint = new UdpEndpoint(0, 1);
+        endpoint.start();
+        try (Server server = new Server()) {
+            UdpConnection connection = endpoint.add(server.address()).raw().config(60_000, 180_000);
+            body.run(server, new StunTransactionManager(connection), endpoint);
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    @Test
+    public void keepalivesDiscoverTheMappedAddressInOneRoundTrip() throws Exception {
+        with((server, stun, endpoint) -> {
+            InetSocketAddress[] mapped = new InetSocketAddress[1];
+            stun.onMapped(address -> mapped[0] = address);
+            stun.getConnection().start();
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (mapped[0] == null && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertEquals(new InetSocketAddress(InetAddress.getLoopbackAddress(), endpoint.getPort()), mapped[0]);
+            assertEquals(1, server.requests.get());
+            assertEquals(0, stun.getRetransmits());
+        });
+    }
+
+    @Test
+    public void lostRequestsAreRetransmittedWithBackoff() throws Exception {
+        with((server, stun, endpoint) -> {
+            server.drop.set(2);
+            long start = System.nanoTime();
+            InetSocketAddress mapped = stun.bind().get(10, TimeUnit.SECONDS);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals((int) endpoint.getPort(), mapped.getPort());
+            assertEquals(3, server.requests.get());
+            assertEquals(2, stun.getRetransmits());
+            // RTO then twice the RTO
+            assertTrue(elapsed + "ms", elapsed >= 1_400 && elapsed < 3_000);
+        });
+    }
+
+    @Test
+    public void keepalivesSentAgainGiveNoRttSample() throws Exception {
+        with((server, stun, endpoint) -> {
+            server.drop.set(1);
+            InetSocketAddress[] mapped = new InetSocketAddress[1];
+            stun.onMapped(address -> mapped[0] = address);
+            // the next keepalive hands out the outstanding request before its RTO
+            stun.getConnection().config(100, 180_000).start();
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (mapped[0] == null && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertEquals((int) endpoint.getPort(), mapped[0].getPort());
+            assertTrue(stun.getRetransmits() >= 1);
+            assertEquals(500, stun.getRto());
+        });
+    }
+
+    @Test
+    public void spoofedAndStaleResponsesAreDropped() throws Exception {
+        with((server, stun, endpoint) -> {
+            server.spoof = true;
+            InetSocketAddress mapped = stun.bind().get(5, TimeUnit.SECONDS);
+            assertEquals((int) endpoint.getPort(), mapped.getPort());
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (stun.getDropped() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertTrue(stun.getDropped() >= 2);
+        });
+    }
+
+    @Test
+    public void malformedResponsesAreDropped() throws Exception {
+        with((server, stun, endpoint) -> {
+            server.garbage = true;
+            InetSocketAddress mapped = stun.bind().get(5, TimeUnit.SECONDS);
+            assertEquals((int) endpoint.getPort(), mapped.getPort());
+            assertTrue(stun.getDropped() >= 2);
+        });
+    }
+
+    @Test
+    public void errorResponsesFailTheTransaction() throws Exception {
+        with((server, stun, endpoint) -> {
+            server.error = 400;
+            try {
+                stun.bind().get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals("stun error 400", e.getCause().getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.network.local;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Discovery latency against becons sent on one segment, fixed interval
+ * becons versus Trickle: the time until every instance knows every other
+ * after a cold start, the becon rate once the segment is stable, and the
+ * time until a newcomer and the rest know each other.
+ *
+ * Instances run on a virtual clock in steps of bench.step milliseconds,
+ * and every becon is handed straight to every other instance, as the
+ * loopback multicast group would, so minutes pass in seconds. Latencies
+ * are reported with the becons sent meanwhile; mesh says whether every
+ * instance still knows every other at the end, none having expired while
+ * suppressed.
+ *
+ * Not a JMH benchmark: what it reports is virtual time and becon counts,
+ * which do not depend on how fast the simulation itself runs.
+ *
+ * Run with {@code java -cp target/classes:target/test-classes com.example.network.local.BeconDiscoverySimulation}.
+ */
+public class BeconDiscoverySimulation {
+    private static final int PEERS = Integer.getInteger("bench.peers", 32);
+    private static final long STEADY = Long.getLong("bench.steady", 600_000);
+    private static final long STEP = Long.getLong("bench.step", 10);
+    private static final long LIMIT = 600_000;
+
+    private static class Segment {
+        private final List<BeconManager> managers = new ArrayList<>();
+        private final List<InetSocketAddress> sources = new ArrayList<>();
+        private long now = 0;
+        private long becons = 0;
+
+        private void join() throws Exception {
+            BeconManager manager = new BeconManager(5000);
+            manager.clock = () -> this.now;
+            this.managers.add(manager);
+            this.sources.add(new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) this.managers.size() }), 12345));
+        }
+
+        private void step() {
+            this.now += STEP;
+            for (int i = 0; i < this.managers.size(); i++) {
+                ByteBuffer becon = this.managers.get(i).poll();
+                if (becon == null) continue;
+                this.becons++;
+                for (int j = 0; j < this.managers.size(); j++) {
+                    if (j != i) this.managers.get(j).receive(becon.duplicate(), this.sources.get(i));
+                }
+            }
+            if (this.now % 1_000 == 0) {
+                for (BeconManager manager: this.managers) manager.sweep();
+            }
+        }
+
+        private boolean converged() {
+            return this.managers.stream().allMatch(manager -> manager.getPeers() == this.managers.size() - 1);
+        }
+
+        /**
+         * @return milliseconds until every instance knows every other
+         */
+        private long converge() {
+            long start = this.now;
+            while (!this.converged() && this.now - start < LIMIT) this.step();
+            return this.now - start;
+        }
+    }
+
+    private static void run(String name, long intervalMax, int redundancy) throws Exception {
+        System.setProperty("multicast.interval.max", String.valueOf(intervalMax));
+        System.setProperty("multicast.redundancy", String.valueOf(redundancy));
+        Segment segment = new Segment();
+        for (int i = 0; i < PEERS - 1; i++) segment.join();
+
+        long cold = segment.converge();
+        long coldBecons = segment.becons;
+
+        long start = segment.now;
+        long becons = segment.becons;
+        while (segment.now - start < STEADY) segment.step();
+        double rate = (segment.becons - becons) * 1_000.0 / (segment.now - start);
+
+        becons = segment.becons;
+        segment.join();
+        long join = segment.converge();
+        System.out.println(String.format(
+            "%-8s peers=%-4d cold=%6dms/%-5d steady=%6.2f becons/s join=%6dms/%-5d mesh=%s",
+            name, PEERS, cold, coldBecons, rate, join, segment.becons - becons,
+            segment.managers.stream().allMatch(manager -> manager.getPeers() == PEERS - 1)
+        ));
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        System.setProperty("multicast.port", "0");
+        long interval = Long.getLong("multicast.interval", 1_000);
+        long intervalMax = Long.getLong("multicast.interval.max", 30_000);
+        int redundancy = Integer.getInteger("multicast.redundancy", 2);
+        // what every instance did before: a becon every interval
+        run("fixed", interval, 0);
+        run("trickle", intervalMax, redundancy);
+    }
+}
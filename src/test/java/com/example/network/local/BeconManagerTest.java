@@ -0,0 +1,119 @@
+package com.example.network.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.example.network.Candidate;
+
+public class BeconManagerTest {
+    private interface Body {
+        void run(BeconManager a, BeconManager b) throws Exception;
+    }
+
+    /**
+     * Two managers that are not started, becons are handed over directly.
+     */
+    private static void with(long expire, Body body) throws Exception {
+        System.setProperty("multicast.port", "0");
+        System.setProperty("multicast.expire", String.valueOf(expire));
+        try {
+            body.run(new BeconManager(5000), new BeconManager(6000));
+        } finally {
+            System.clearProperty("multicast.port");
+            System.clearProperty("multicast.expire");
+        }
+    }
+
+    private static InetSocketAddress address(String host, int port) throws Exception {
+        return new InetSocketAddress(InetAddress.getByName(host), port);
+    }
+
+    @Test
+    public void onlyNewAndChangedPeersAreReported() throws Exception {
+        with(60_000, (a, b) -> {
+            List<InetSocketAddress> received = new CopyOnWriteArrayList<>();
+            List<List<Candidate>> announced = new CopyOnWriteArrayList<>();
+            b.onReceive(received::add).onReceiveCandidates(announced::add);
+            AtomicReference<List<Candidate>> candidates = new AtomicReference<>(List.of());
+            a.candidates(candidates::get);
+            InetSocketAddress source = address("192.0.2.10", a.getMulticastPort());
+
+            for (int i = 0; i < 10; i++) b.receive(a.becon(), source);
+            assertEquals(List.of(address("192.0.2.10", 5000)), received);
+            assertEquals(1, b.getPeers());
+
+            // another candidate changes the sequence
+            Candidate mapped = new Candidate(Candidate.Type.SERVER_REFLEXIVE, address("198.51.100.2", 40000));
+            candidates.set(List.of(mapped));
+            for (int i = 0; i < 10; i++) b.receive(a.becon(), source);
+            assertEquals(2, received.size());
+            assertEquals(mapped, announced.get(1).get(1));
+            assertEquals(1, b.getPeers());
+
+            // another address, same peer
+            b.receive(a.becon(), address("192.0.2.11", a.getMulticastPort()));
+            assertEquals(address("192.0.2.11", 5000), received.get(2));
+            assertEquals(1, b.getPeers());
+
+            // own becons, and malformed ones
+            b.receive(b.becon(), source);
+            b.receive(ByteBuffer.wrap(new byte[] { 2, 36, 0, 1, 0, 0, 0, 1, 0, 0, 0, 0 }), source);
+            b.receive(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), source);
+            assertEquals(3, received.size());
+
+            // a version 1 becon, the port alone
+            for (int i = 0; i < 10; i++) b.receive(ByteBuffer.allocate(2).putShort(0, (short) 7000), address("192.0.2.12", 1));
+            assertEquals(address("192.0.2.12", 7000), received.get(3));
+            assertEquals(4, received.size());
+            assertEquals(2, b.getPeers());
+            assertFalse(a.getId().equals(b.getId()));
+        });
+    }
+
+    @Test
+    public void peersAreKeptOncePerFamily() throws Exception {
+        with(60_000, (a, b) -> {
+            List<InetSocketAddress> received = new CopyOnWriteArrayList<>();
+            b.onReceive(received::add);
+            InetSocketAddress source4 = address("192.0.2.10", a.getMulticastPort());
+            InetSocketAddress source6 = address("fe80::1%1", a.getMulticastPort());
+
+            // the same becons over both, interleaved as they arrive
+            for (int i = 0; i < 10; i++) {
+                b.receive(a.becon(), source4);
+                b.receive(a.becon(), source6);
+            }
+            assertEquals(List.of(address("192.0.2.10", 5000), address("fe80::1%1", 5000)), received);
+            assertEquals(2, b.getPeers());
+        });
+    }
+
+    @Test
+    public void silentPeersExpire() throws Exception {
+        with(100, (a, b) -> {
+            List<InetSocketAddress> received = new CopyOnWriteArrayList<>();
+            List<InetSocketAddress> expired = new CopyOnWriteArrayList<>();
+            b.onReceive(received::add).onExpire(expired::add);
+            b.receive(a.becon(), address("192.0.2.10", 1));
+            b.sweep();
+            assertEquals(1, b.getPeers());
+            Thread.sleep(200);
+            b.sweep();
+            assertEquals(List.of(address("192.0.2.10", 5000)), expired);
+            assertEquals(0, b.getPeers());
+
+            // back again, a new peer once more
+            b.receive(a.becon(), address("192.0.2.10", 1));
+            assertEquals(2, received.size());
+        });
+    }
+}
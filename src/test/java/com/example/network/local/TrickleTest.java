@@ -0,0 +1,72 @@
+package com.example.network.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TrickleTest {
+    /**
+     * @return the times a becon was due, polled every millisecond
+     */
+    private static List<Long> run(Trickle trickle, long from, long to) {
+        List<Long> due = new ArrayList<>();
+        for (long now = from; now < to; now++) {
+            if (trickle.poll(now)) due.add(now);
+        }
+        return due;
+    }
+
+    @Test
+    public void intervalDoublesUpToMax() {
+        Trickle trickle = new Trickle(100, 800, 2);
+        List<Long> due = run(trickle, 0, 3_100);
+        assertEquals(800, trickle.getInterval());
+        // 100, 200, 400, then 800 three times, each due in its second half
+        assertEquals(6, due.size());
+        assertTrue(due.get(0) >= 50 && due.get(0) < 100);
+        assertTrue(due.get(3) >= 700 + 400 && due.get(3) < 700 + 800);
+    }
+
+    @Test
+    public void consistentBeconsSuppress() {
+        Trickle trickle = new Trickle(100, 1_000, 2);
+        List<Long> due = new ArrayList<>();
+        for (long now = 0; now < 10_000; now++) {
+            // others are heard all the time
+            trickle.consistent();
+            trickle.consistent();
+            if (trickle.poll(now)) due.add(now);
+        }
+        // the first becon is always due, then one every max to stay alive
+        assertTrue(due.get(0) < 100);
+        for (int i = 1; i < due.size(); i++) assertTrue(due.toString(), due.get(i) - due.get(i - 1) >= 1_000);
+        assertTrue(due.toString(), due.size() >= 5);
+
+        // a redundancy of 0 never suppresses
+        Trickle fixed = new Trickle(100, 100, 0);
+        int count = 0;
+        for (long now = 0; now < 1_000; now++) {
+            fixed.consistent();
+            if (fixed.poll(now)) count++;
+        }
+        assertEquals(10, count);
+    }
+
+    @Test
+    public void inconsistencyResetsAndForces() {
+        Trickle trickle = new Trickle(100, 10_000, 1);
+        run(trickle, 0, 1_600);
+        assertEquals(1_600, trickle.getInterval());
+        trickle.consistent();
+        trickle.inconsistent(1_600);
+        assertEquals(100, trickle.getInterval());
+        // due within one short interval, although one consistent becon was heard
+        List<Long> due = run(trickle, 1_600, 1_700);
+        assertEquals(1, due.size());
+        assertTrue(due.get(0) >= 1_650);
+    }
+}